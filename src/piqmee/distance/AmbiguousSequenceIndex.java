@@ -0,0 +1,234 @@
+package piqmee.distance;
+
+import beast.core.Description;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.datatype.DataType;
+
+import java.util.*;
+
+/**
+ * Finds the pairs of sequences that are identical up to ambiguous sites, i.e. that share at least one state
+ * at every site (the same criterion as DifferenceCount.pairwiseDifference with collapseIdenticalUptoMissingData).
+ *
+ * Each site pattern of a sequence is encoded as the bit set of states compatible with its character.
+ * The bit sets of several sites are packed into one long, such that the check of two sequences
+ * is a few bitwise operations per word. Only pairs that can be compatible are checked: sequences that
+ * are unambiguous at a set of key sites are bucketed by their states at these sites, and compatible
+ * sequences unambiguous at all key sites necessarily fall into the same bucket.
+ */
+@Description("Index of sequences encoded as bit sets of states per site, " +
+        "used to find sequences that are identical up to ambiguous sites.")
+public class AmbiguousSequenceIndex {
+
+    // maximum number of key sites used for bucketing
+    protected static final int MAX_KEY_SITES = 32;
+
+    protected final int sequenceCount;
+    protected final int wordCount;
+    // bit sets of the states compatible with each site of each sequence, several sites per word
+    protected final long[][] sequenceWords;
+    // for each word the highest bit of each site field and the remaining bits of each site field
+    protected final long[] highBits;
+    protected final long[] lowBits;
+    // true if the sequence has at least one ambiguous site
+    protected final boolean[] ambiguous;
+
+    // key sites as word, shift and mask of the site field
+    protected final int[] keyWords;
+    protected final int[] keyShifts;
+    protected final long[] keyMasks;
+
+    /**
+     * @param alignments alignments, the sequences are compared over all of them
+     * @param taxa       for each alignment, the taxon index of each sequence to index
+     */
+    public AmbiguousSequenceIndex(List<Alignment> alignments, int[][] taxa) {
+        sequenceCount = taxa.length == 0 ? 0 : taxa[0].length;
+
+        // lay out the words: each alignment starts a new word, sites use stateCount bits each
+        int[] firstWords = new int[alignments.size() + 1];
+        int[] fieldWidths = new int[alignments.size()];
+        int[] sitesPerWord = new int[alignments.size()];
+        for (int p = 0; p < alignments.size(); p++) {
+            Alignment alignment = alignments.get(p);
+            fieldWidths[p] = alignment.getDataType().getStateCount();
+            if (fieldWidths[p] > Long.SIZE)
+                throw new IllegalArgumentException("Collapsing sequences identical up to missing data is not " +
+                        "implemented for data types with more than " + Long.SIZE + " states.");
+            sitesPerWord[p] = Long.SIZE / fieldWidths[p];
+            firstWords[p + 1] = firstWords[p] + (alignment.getPatternCount() + sitesPerWord[p] - 1) / sitesPerWord[p];
+        }
+        wordCount = firstWords[alignments.size()];
+
+        highBits = new long[wordCount];
+        lowBits = new long[wordCount];
+        sequenceWords = new long[sequenceCount][wordCount];
+        ambiguous = new boolean[sequenceCount];
+        // number of sequences ambiguous at each site, to pick the key sites
+        List<int[]> siteAmbiguityCounts = new ArrayList<>();
+
+        for (int p = 0; p < alignments.size(); p++) {
+            Alignment alignment = alignments.get(p);
+            DataType dataType = alignment.getDataType();
+            final int width = fieldWidths[p];
+            final long fieldMask = width == Long.SIZE ? -1L : (1L << width) - 1;
+            final int patternCount = alignment.getPatternCount();
+            int[] ambiguityCounts = new int[patternCount];
+            siteAmbiguityCounts.add(ambiguityCounts);
+            // bit sets of the codes seen so far, 0 if not yet computed
+            long[] codeMasks = new long[dataType.getStateCount() + 1];
+
+            for (int site = 0; site < patternCount; site++) {
+                final int word = firstWords[p] + site / sitesPerWord[p];
+                final int shift = (site % sitesPerWord[p]) * width;
+                highBits[word] |= (1L << (width - 1)) << shift;
+                lowBits[word] |= (fieldMask >>> 1) << shift;
+
+                for (int s = 0; s < sequenceCount; s++) {
+                    final int code = alignment.getPattern(taxa[p][s], site);
+                    if (code >= codeMasks.length)
+                        codeMasks = Arrays.copyOf(codeMasks, code + 1);
+                    long mask = codeMasks[code];
+                    if (mask == 0) {
+                        for (int state : dataType.getStatesForCode(code))
+                            mask |= 1L << state;
+                        codeMasks[code] = mask;
+                    }
+                    sequenceWords[s][word] |= mask << shift;
+                    if (Long.bitCount(mask) != 1) {
+                        ambiguous[s] = true;
+                        ambiguityCounts[site]++;
+                    }
+                }
+            }
+        }
+
+        // key sites: the sites at which the fewest sequences are ambiguous
+        List<int[]> sites = new ArrayList<>();
+        for (int p = 0; p < alignments.size(); p++) {
+            for (int site = 0; site < siteAmbiguityCounts.get(p).length; site++)
+                sites.add(new int[]{siteAmbiguityCounts.get(p)[site], p, site});
+        }
+        sites.sort(Comparator.comparingInt(a -> a[0]));
+        final int keySiteCount = Math.min(MAX_KEY_SITES, sites.size());
+        keyWords = new int[keySiteCount];
+        keyShifts = new int[keySiteCount];
+        keyMasks = new long[keySiteCount];
+        for (int k = 0; k < keySiteCount; k++) {
+            final int p = sites.get(k)[1];
+            final int site = sites.get(k)[2];
+            final int width = fieldWidths[p];
+            keyWords[k] = firstWords[p] + site / sitesPerWord[p];
+            keyShifts[k] = (site % sitesPerWord[p]) * width;
+            keyMasks[k] = width == Long.SIZE ? -1L : (1L << width) - 1;
+        }
+    }
+
+    /**
+     * @return number of indexed sequences
+     */
+    public int getSequenceCount() {
+        return sequenceCount;
+    }
+
+    /**
+     * @return true if sequence i has at least one ambiguous site
+     */
+    public boolean isAmbiguous(int i) {
+        return ambiguous[i];
+    }
+
+    /**
+     * @return true if the sequences i and j share at least one state at every site
+     */
+    public boolean isCompatible(int i, int j) {
+        final long[] words1 = sequenceWords[i];
+        final long[] words2 = sequenceWords[j];
+        for (int w = 0; w < wordCount; w++) {
+            final long common = words1[w] & words2[w];
+            // adding the low bits of a field to their maximum carries into the high bit iff any of them is set
+            if (((((common & lowBits[w]) + lowBits[w]) | common) & highBits[w]) != highBits[w])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * Find all pairs of distinct sequences that are identical up to ambiguous sites.
+     * Two sequences without ambiguous sites are compatible only if they are identical, such pairs are not checked.
+     *
+     * @return the pairs (i, j) with i < j
+     */
+    public List<int[]> getCompatiblePairs() {
+        List<int[]> pairs = new ArrayList<>();
+
+        // bucket the sequences unambiguous at all key sites, the others are compared with all sequences
+        Map<KeyStates, List<Integer>> buckets = new HashMap<>();
+        List<Integer> unkeyed = new ArrayList<>();
+        for (int s = 0; s < sequenceCount; s++) {
+            long[] states = new long[keyWords.length];
+            boolean keyed = true;
+            for (int k = 0; k < keyWords.length && keyed; k++) {
+                states[k] = (sequenceWords[s][keyWords[k]] >>> keyShifts[k]) & keyMasks[k];
+                keyed = Long.bitCount(states[k]) == 1;
+            }
+            if (keyed)
+                buckets.computeIfAbsent(new KeyStates(states), key -> new ArrayList<>()).add(s);
+            else
+                unkeyed.add(s);
+        }
+
+        for (List<Integer> bucket : buckets.values()) {
+            for (int a = 0; a < bucket.size() - 1; a++) {
+                final int i = bucket.get(a);
+                for (int b = a + 1; b < bucket.size(); b++) {
+                    final int j = bucket.get(b);
+                    if ((ambiguous[i] || ambiguous[j]) && isCompatible(i, j))
+                        addPair(pairs, i, j);
+                }
+            }
+        }
+
+        boolean[] isUnkeyed = new boolean[sequenceCount];
+        for (int i : unkeyed)
+            isUnkeyed[i] = true;
+        for (int i : unkeyed) {
+            for (int j = 0; j < sequenceCount; j++) {
+                // pairs of two unkeyed sequences are checked once
+                if (j == i || (isUnkeyed[j] && j < i))
+                    continue;
+                if (isCompatible(i, j))
+                    addPair(pairs, i, j);
+            }
+        }
+        return pairs;
+    }
+
+    private static void addPair(List<int[]> pairs, int i, int j) {
+        pairs.add(i < j ? new int[]{i, j} : new int[]{j, i});
+    }
+
+    /**
+     * states at the key sites, used as hash key
+     */
+    protected static final class KeyStates {
+        private final long[] states;
+        private final int hash;
+
+        KeyStates(long[] states) {
+            this.states = states;
+            this.hash = Arrays.hashCode(states);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof KeyStates && Arrays.equals(states, ((KeyStates) o).states);
+        }
+    }
+
+}
@@ -841,7 +841,15 @@ public class BirthDeathSkylineModel extends SpeciesTreeDistribution {
 
     public double log_q(int index, double ti, double t) {
         // replacing FastMathLog( g(...) ) for better numerical stability
-        return FastMathLog(4) + Ai[index] * (t - ti) - 2 * FastMathLog(FastMathExp(Ai[index] * (t - ti)) * (1 - Bi[index]) + (1 + Bi[index]));
+        return FastMathLog(4) + Ai[index] * (t - ti) - 2 * log_qDenominator(index, ti, t);
+    }
+
+    /**
+     * @return the log of the term squared in the denominator of g, such that
+     *         log_q = log(4) + Ai * (t - ti) - 2 * log_qDenominator
+     */
+    public double log_qDenominator(int index, double ti, double t) {
+        return FastMathLog(FastMathExp(Ai[index] * (t - ti)) * (1 - Bi[index]) + (1 + Bi[index]));
     }
 
     /**
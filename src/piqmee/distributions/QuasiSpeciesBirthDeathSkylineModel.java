@@ -4,13 +4,13 @@ package piqmee.distributions;
 import beast.core.Citation;
 import beast.core.Description;
 import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
 import beast.evolution.tree.TreeInterface;
 import piqmee.tree.QuasiSpeciesIncidence;
 import piqmee.tree.QuasiSpeciesNode;
 import piqmee.tree.QuasiSpeciesTree;
 
 import java.util.*;
-import java.util.stream.IntStream;
 
 /**
  *  @author Veronika Boskova created on 26/06/2015
@@ -36,12 +36,8 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
     
     private double [] log;
 
-    // variables for logNumberOfQSTrees
-    double[] INT;
-    double[] allTimes;
-    int[] nrqsattachments;
-    int[] nrqslineages;
-    int[] indexes;
+    // variables for logNumberOfQSTrees: heights of the internal nodes the haplotype passes through, from its tip up
+    double[] haploNodeHeights;
 
     @Override
     public void initAndValidate() {
@@ -74,12 +70,8 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
         // get the unique sampling times as array
         uniqueSampTimes = getArrayOfUniqueSamplingTimes(treeInput.get());
 
-        // set the size of the array storing internal node times, all times, and nr qs attachment + nr qs lineages at those times (for logNumberOfQSTrees)
-        INT = new double[treeInput.get().getInternalNodeCount()];
-        allTimes = new double[uniqueSampTimes.length + INT.length];
-        nrqsattachments = new int[allTimes.length];
-        nrqslineages = new int[allTimes.length];
-        indexes = new int[INT.length];
+        // set the size of the array storing the internal node heights of a haplotype (for logNumberOfQSTrees)
+        haploNodeHeights = new double[treeInput.get().getInternalNodeCount()];
 
         if(SAModel || r!=null)
             throw new IllegalArgumentException("The sampled ancestor model has not been implemented to work with quasispecies model yet");
@@ -185,55 +177,15 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
 
         QuasiSpeciesTree qsTree = (QuasiSpeciesTree) tree;
 
-        // make 3 time arrays - 1) sampling times -- this one is made in initAndValidate already
-        //                      2) true internal node times and
-        //                      3) merge of these
-        // store in 2 arrays a) number of bifurcations and b) total number of lineages A at time t0, t1 etc
-        // at each time t0, t1 etc add the gamma contribution from A -> knowing number of bifurcations and total nr of lineages
-        // add total number of QS lineages to TOTAL number of all lineages array
-
-        // times arrays
-        int nrTips = tree.getLeafNodeCount();
-        int nrINTnodes = tree.getInternalNodeCount();
-
-        // only need to recalculate allTimes if an internal node changed
-        if (tree.somethingIsDirty()) {
-            // fill time arrays
-            for (int i = nrTips; i < nrTips + nrINTnodes; i++) {
-                // internal node, add its height to INT
-                INT[i - nrTips] = ((tree.getNode(i)).getHeight());
-            }
-
-            // make array of sort indexes for INT --- for checking later if the node belonging to this height has QS passing through
-            // get in descending order (so compare --> -INT)
-            indexes = IntStream.range(0, INT.length).boxed()
-                    .sorted((i, j) -> ((Double) (-INT[i])).compareTo(-INT[j])).mapToInt(ele -> ele).toArray();
-
-            // sort time arrays in descending order
-            //sortListDescending(INT); RRB: INT is not used in sorted form, but allTimes is, so only sort allTimes
-            System.arraycopy(uniqueSampTimes, 0, allTimes, 0, uniqueSampTimes.length);
-            System.arraycopy(INT, 0, allTimes, uniqueSampTimes.length, INT.length);
-            sortListDescending(allTimes);
-        }
+        // each haplotype only depends on its own attachment times, sampling times and the internal nodes it passes
+        //   through, so the count is done for each haplotype separately by merging these times (see below)
         if (logNumberOfQSTrees == null) {
             logNumberOfQSTrees = new double[tree.getExternalNodes().size()];
             storedLogNumberOfQSTrees = new double[logNumberOfQSTrees.length];
         }
 
-        // arrays to store number of bifurcations / total number of lineages of QS and total number of all lineages
-        // QS -- specified in initAndValidate
-//        if (nrqsattachments.length != allTimes.length) {
-//        	nrqsattachments = new int[allTimes.length];
-//        	nrqslineages = new int[allTimes.length];
-//        }
-        // total
-//        int[] nrtotalqsattachments = new int[allTimes.length];
-//        int[] nrtotallineages = new int[allTimes.length];
-//        Arrays.fill(nrtotallineages,1);
-
-
 //        if (threads <= 1) {
-        	logNumberOfQSTrees(0, ((QuasiSpeciesTree)tree).getExternalNodesArray().length, tree, qsTree, indexes, nrTips);
+        	logNumberOfQSTrees(0, ((QuasiSpeciesTree)tree).getExternalNodesArray().length, tree, qsTree);
 //        } else {
 //            countDown = new CountDownLatch(threads - 1);
 //            int delta = tree.getExternalNodes().size() / threads;
@@ -241,12 +193,12 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
 //            int to = delta;
 //            CoreRunnable [] results = new CoreRunnable[threads - 1];
 //            for (int i = 0; i < threads - 1; i++) {
-//                results[i] = new CoreRunnable(from, to , tree, qsTree, indexes, nrTips);
+//                results[i] = new CoreRunnable(from, to , tree, qsTree);
 //                exec.execute(results[i]);
 //                from = to;
 //                to += delta;
 //            }
-//            logNumberOfQSTrees(from, tree.getExternalNodes().size(), tree, qsTree, indexes, nrTips);
+//            logNumberOfQSTrees(from, tree.getExternalNodes().size(), tree, qsTree);
 //            try {
 //				countDown.await();
 //			} catch (InterruptedException e) {
@@ -273,22 +225,18 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
 //        int start; int end;
 //        TreeInterface tree;
 //        QuasiSpeciesTree qsTree;
-//        int[] indexes;
-//        int nrTips;
 //        
-//        CoreRunnable(int start, int end, TreeInterface tree, QuasiSpeciesTree qsTree, int[] indexes, int nrTips) {
+//        CoreRunnable(int start, int end, TreeInterface tree, QuasiSpeciesTree qsTree) {
 //        	this.start = start;
 //        	this.end = end;
 //        	this.tree = tree;
 //        	this.qsTree = qsTree;
-//        	this.indexes = indexes;
-//        	this.nrTips = nrTips;
 //        }
 //
 //        @Override
 //		public void run() {
 //            try {
-//            	logNumberOfQSTrees(start, end, tree, qsTree, indexes, nrTips);
+//            	logNumberOfQSTrees(start, end, tree, qsTree);
 //            } catch (Exception e) {
 //                Log.err.println("Something went wrong in a calculation of logNumberOfQSTrees");
 //                e.printStackTrace();
@@ -302,7 +250,7 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
     
     
     
-    private void logNumberOfQSTrees(int start, int end, TreeInterface tree, QuasiSpeciesTree qsTree, int[] indexes, int nrTips) {
+    private void logNumberOfQSTrees(int start, int end, TreeInterface tree, QuasiSpeciesTree qsTree) {
         // count for each haplo at each time point the n's and add to total count
     	Node [] nodes = ((QuasiSpeciesTree)tree).getExternalNodesArray();
     	
@@ -327,66 +275,60 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
 
        		if (isNodesAncestorDirty || ((QuasiSpeciesNode) node).attachmentTimesListChanged()) {
                 double gamma = 0;
-	            Arrays.fill(nrqsattachments,0);
-	            Arrays.fill(nrqslineages,0);
 	            double[] QSTimesTemp = ((QuasiSpeciesNode) node).getAttachmentTimesListAndReset();
 	            double[] QSTipTimesTemp = ((QuasiSpeciesNode) node).getTipTimesList();
 	            int[] QSTipTimesCountTemp = ((QuasiSpeciesNode) node).getTipTimesCountList();
+	            // check if all attachment times can be accounted for, i.e. are above the most recent sampling time
+	            if (QSTimesTemp.length < qsTree.getHaplotypeCounts(node) || (QSTimesTemp.length > 1
+                        && QSTimesTemp[QSTimesTemp.length - 1] <= uniqueSampTimes[uniqueSampTimes.length - 1])) {
+	                throw new RuntimeException("There is somethings wrong with accounting for attachments times of node " +
+	                        node.getNr() + " in QuasiSpeciesBirthDeathSkylineModel class.");
+	            }
+	            // collect the heights of the real internal nodes the haplotype passes through, in ascending order
+	            int nrHaploNodes = 0;
+	            Node nodeOnPath = node;
+	            while (!nodeOnPath.isRoot()) {
+	                nodeOnPath = nodeOnPath.getParent();
+	                if (((QuasiSpeciesNode) nodeOnPath).getContinuingHaploName() != node.getNr())
+	                    break;
+	                haploNodeHeights[nrHaploNodes++] = nodeOnPath.getHeight();
+	            }
+	            // merge the attachment times, sampling times and internal node heights in descending order
+	            //   nrqslineages is the number of qs lineages minus the first one at the current time
+	            int nrqslineages = 0;
 	            // pointers for qs arrays
-	            int qstimep = 1;
 	            int qstiptimep = QSTipTimesTemp.length - 1;
-	            // pointer for internal node times - to associate INT node with QS correctly
-	            int intp = 0;
-	            for (int i = 0; i < allTimes.length; i++) {
-	                // new bifurcations between i-1 and i, add a lineage to qs and total count
-	                while (qstimep < QSTimesTemp.length && QSTimesTemp[qstimep] > allTimes[i]) {
-	                    nrqsattachments[i] += 1;
-	                    qstimep++;
-	                }
-	                nrqslineages[i] += nrqsattachments[i];
-	
-	                if (i+1 < allTimes.length){
-	                    // number of lineages at time i+1 is the same as at i ... + bifurcations (i to i+1) - sampling (i)
-	                    nrqslineages[i + 1] += nrqslineages[i];
-                        // take into account possible birth/death of lineages
-                        // the time in allTimes[i] can be a time for sampling at time i, remove lineages from time i+1
-                        if (qstiptimep >= 0 && QSTipTimesTemp[qstiptimep] == allTimes[i]) {
-                            nrqslineages[i + 1] -= QSTipTimesCountTemp[qstiptimep];
-                            qstiptimep--;
-                        }
-                        // the time in allTimes[i] can be the time for a real internal node
-                        //              - account for all possible QS lineages it can attach to
-                        // check if the internal node with this height belongs to this haplotype
-                        while (intp < indexes.length && tree.getNode(indexes[intp] + nrTips).getHeight() > allTimes[i])
-                            intp++;
-                        if (intp < indexes.length && i > 0 && tree.getNode(indexes[intp] + nrTips).getHeight() == allTimes[i-1])
-                            intp++;
-                        if (intp < indexes.length
-                                && tree.getNode(indexes[intp] + nrTips).getHeight() == allTimes[i]
-                                && ((QuasiSpeciesNode) tree.getNode(indexes[intp] + nrTips)).getContinuingHaploName() == node.getNr()) {
-                            // if it does, add contribution to the gamma factor for possible attachment branches
-                            gamma += log[nrqslineages[i] + 1];
-                        }
+	            int haplonodep = nrHaploNodes - 1;
+	            for (int qstimep = 1; qstimep <= QSTimesTemp.length; qstimep++) {
+	                double time = qstimep < QSTimesTemp.length ? QSTimesTemp[qstimep] : Double.NEGATIVE_INFINITY;
+	                // internal nodes and sampling times not below the next attachment come first,
+	                //   an internal node at a sampling time still sees the lineages sampled there
+	                while (true) {
+	                    if (haplonodep >= 0 && haploNodeHeights[haplonodep] >= time
+                                && (qstiptimep < 0 || haploNodeHeights[haplonodep] >= QSTipTimesTemp[qstiptimep])) {
+                            // the internal node belongs to this haplotype
+                            //              - account for all possible QS lineages it can attach to
+	                        gamma += log[nrqslineages + 1];
+	                        haplonodep--;
+	                    } else if (qstiptimep >= 0 && QSTipTimesTemp[qstiptimep] >= time) {
+	                        // sampling removes lineages below the sampling time
+	                        nrqslineages -= QSTipTimesCountTemp[qstiptimep];
+	                        qstiptimep--;
+	                    } else
+	                        break;
 	                }
-	
-	//                nrtotallineages[i] += nrqslineages[i];
-	//                nrtotalqsattachments[i] += nrqsattachments[i];
-	                // this factor is only needed for trees with tips sampled through time
-                    // if already factored in in previous pass with exactly the same time, do not include it this time
-	                if (uniqueSampTimes.length > 1) {
-	                    // include all the (gammaj) factors for the possible combinations of QS lineages at each merge point
-	                    for (int lineage = nrqslineages[i]; lineage > nrqslineages[i] - nrqsattachments[i]; lineage--) {
+	                if (qstimep < QSTimesTemp.length) {
+	                    // new bifurcation, add a lineage to qs count
+	                    nrqslineages++;
+	                    // this factor is only needed for trees with tips sampled through time
+	                    if (uniqueSampTimes.length > 1) {
+	                        // include the (gammaj) factor for the possible combinations of QS lineages at this merge point
 	                        // for qs lineages we have to have lineage + 1 since we did not count that at first split,
 	                        //  we created 2 lineages instead of just one, as at all later splits
-	                        gamma += log[lineage] + log[lineage + 1];
+	                        gamma += log[nrqslineages] + log[nrqslineages + 1];
 	                    }
 	                }
 	            }
-	            // check if we checked everything in QS attachment array
-	            if (qstimep < qsTree.getHaplotypeCounts(node)){// && QSTimesTemp.length > 0){
-	                throw new RuntimeException("There is somethings wrong with accounting for attachments times of node " +
-	                        node.getNr() + ". Please check line 242 in QuasiSpeciesBirthDeathSkylineModel class.");
-	            }
 	            logNumberOfQSTrees[node.getNr()] = gamma;
        		}
         }
@@ -415,26 +357,192 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
 //        }
 	}
 
+    // caching logNumberOfIncidenceTrees() method
+    private double logNumberOfIncidenceTrees;
+    private double storedLogNumberOfIncidenceTrees;
+    // edit ids of the incidences and version of the lineage times the cached value was computed for
+    private long[] incidenceTreesEditIds;
+    private long[] storedIncidenceTreesEditIds;
+    private int incidenceTreesLineageTimesVersion = -1;
+    private int storedIncidenceTreesLineageTimesVersion = -1;
+    // number of moved attachment times accounted for since the value was last computed from scratch
+    private int incidenceTreesUpdates;
+    private int storedIncidenceTreesUpdates;
+    private static final int INCIDENCE_TREES_REFRESH_INTERVAL = 10000;
+
+    // sorted incidence times for the sweep in logNumberOfIncidenceTrees: all attachment times,
+    //      and the attachment times above their sampling time together with these sampling times
+    private double[] incidenceAttachmentTimes;
+    private double[] incidenceUpperTimes;
+    private double[] incidenceLowerTimes;
+    private int incidenceUpperTimeCount;
+    private long[] incidenceTimesEditIds;
+
     /**
      * Compute the (log) number of possible trees resulting from the merging of tree lineages and incidences.
+     * If the tree did not change and only one incidence attachment time moved, only the terms of the
+     * attachment times between its old and new position are updated.
      */
 	public double logNumberOfIncidenceTrees(TreeInterface tree) {
         QuasiSpeciesIncidence[] incidences = ((QuasiSpeciesTree) tree).getIncidences();
-        List<Double> allAttachmentTimes = new ArrayList<>();
-        for (QuasiSpeciesIncidence incidence : incidences)
-            allAttachmentTimes.addAll(incidence.getAttachmentTimes());
+        if (!lineageTimesKnown || lineageTimesTree != tree)
+            updateLineageTimes(tree);
+
+        if (incidenceTreesEditIds != null && incidenceTreesEditIds.length == incidences.length
+                && incidenceTreesLineageTimesVersion == lineageTimesVersion
+                && incidenceTreesUpdates < INCIDENCE_TREES_REFRESH_INTERVAL) {
+            int moved = -1;
+            boolean updatable = true;
+            for (int i = 0; i < incidences.length && updatable; i++) {
+                if (incidences[i].getEditId() != incidenceTreesEditIds[i]) {
+                    updatable = moved == -1 && incidences[i].isSingleMoveSince(incidenceTreesEditIds[i]);
+                    moved = i;
+                }
+            }
+            if (updatable && moved == -1)
+                return logNumberOfIncidenceTrees;
+            if (updatable && updateLogNumberOfIncidenceTrees(tree, incidences, incidences[moved])) {
+                incidenceTreesEditIds[moved] = incidences[moved].getEditId();
+                incidenceTreesUpdates++;
+                return logNumberOfIncidenceTrees;
+            }
+        }
+
+        logNumberOfIncidenceTrees = calculateLogNumberOfIncidenceTrees(incidences);
+        if (incidenceTreesEditIds == null || incidenceTreesEditIds.length != incidences.length) {
+            incidenceTreesEditIds = new long[incidences.length];
+            storedIncidenceTreesEditIds = new long[incidences.length];
+        }
+        for (int i = 0; i < incidences.length; i++)
+            incidenceTreesEditIds[i] = incidences[i].getEditId();
+        incidenceTreesLineageTimesVersion = lineageTimesVersion;
+        incidenceTreesUpdates = 0;
+        return logNumberOfIncidenceTrees;
+    }
+
+    /**
+     * @return log of the number of ways the incidence lineage attaching at some time can merge
+     *          with the tree and incidence lineages existing at that time
+     */
+    private double logNumberOfIncidenceMerges(int treeLineages, int incidenceLineages) {
+        // divide count of incidence merges by 2 to remove rotated identical pairs
+        double n = treeLineages * incidenceLineages + (double) (incidenceLineages * (incidenceLineages - 1)) / 2;
+        return n == 0 ? 0 : FastMathLog(n);
+    }
+
+    /**
+     * Sweep once through all incidence attachment times in ascending order,
+     * counting the tree and incidence lineages with pointers into the sorted lineage times.
+     */
+    private double calculateLogNumberOfIncidenceTrees(QuasiSpeciesIncidence[] incidences) {
+        updateIncidenceTimes(incidences);
 
         double gamma = 0;
+        final int attachmentTimeCount = incidenceAttachmentTimes.length;
+        int treeUpper = 0, treeLower = 0, incidenceUpper = 0, incidenceLower = 0;
+        for (int t = 0; t < attachmentTimeCount; t++) {
+            final double time = incidenceAttachmentTimes[t];
+            while (treeUpper < lineageUpperTimeCount && lineageUpperTimes[treeUpper] <= time)
+                treeUpper++;
+            while (treeLower < lineageLowerTimeCount && lineageLowerTimes[treeLower] < time)
+                treeLower++;
+            while (incidenceUpper < incidenceUpperTimeCount && incidenceUpperTimes[incidenceUpper] <= time)
+                incidenceUpper++;
+            while (incidenceLower < incidenceUpperTimeCount && incidenceLowerTimes[incidenceLower] < time)
+                incidenceLower++;
+            int treeLineages = 1 + (lineageUpperTimeCount - treeUpper) - (lineageLowerTimeCount - treeLower);
+            int incidenceLineages = (incidenceUpperTimeCount - incidenceUpper) - (incidenceUpperTimeCount - incidenceLower);
+            gamma += logNumberOfIncidenceMerges(treeLineages, incidenceLineages);
+        }
+        return gamma;
+    }
+
+    /**
+     * Collect and sort the incidence times, unless the incidences did not change since they were last sorted.
+     * An incidence lineage exists strictly between its sampling time and its attachment time.
+     */
+    private void updateIncidenceTimes(QuasiSpeciesIncidence[] incidences) {
+        boolean known = incidenceTimesEditIds != null && incidenceTimesEditIds.length == incidences.length;
+        for (int i = 0; i < incidences.length && known; i++)
+            known = incidences[i].getEditId() == incidenceTimesEditIds[i];
+        if (known)
+            return;
+
+        int attachmentTimeCount = 0;
+        for (QuasiSpeciesIncidence incidence : incidences)
+            attachmentTimeCount += incidence.getAttachmentTimeCount();
+        if (incidenceAttachmentTimes == null || incidenceAttachmentTimes.length != attachmentTimeCount) {
+            incidenceAttachmentTimes = new double[attachmentTimeCount];
+            incidenceUpperTimes = new double[attachmentTimeCount];
+            incidenceLowerTimes = new double[attachmentTimeCount];
+        }
+        if (incidenceTimesEditIds == null || incidenceTimesEditIds.length != incidences.length)
+            incidenceTimesEditIds = new long[incidences.length];
 
-        for (double time : allAttachmentTimes) {
-            int treeLineages = lineageCountAtTime(time, tree);
-            int incidenceLineages = incidenceLineageCountAtTime(incidences, time);
-            // divide count of incidence merges by 2 to remove rotated identical pairs
-            double n = treeLineages * incidenceLineages + (double) (incidenceLineages * (incidenceLineages - 1)) / 2;
-            gamma += n == 0 ? 0 : FastMathLog(n);
+        int position = 0;
+        int upperCount = 0;
+        for (int i = 0; i < incidences.length; i++) {
+            QuasiSpeciesIncidence incidence = incidences[i];
+            for (int j = 0; j < incidence.getAttachmentTimeCount(); j++) {
+                final double attachmentTime = incidence.getAttachmentTime(j);
+                incidenceAttachmentTimes[position++] = attachmentTime;
+                // a lineage attaching below its sampling time never exists
+                if (attachmentTime > incidence.getSamplingTime()) {
+                    incidenceUpperTimes[upperCount] = attachmentTime;
+                    incidenceLowerTimes[upperCount++] = incidence.getSamplingTime();
+                }
+            }
+            incidenceTimesEditIds[i] = incidence.getEditId();
         }
+        Arrays.sort(incidenceAttachmentTimes);
+        Arrays.sort(incidenceUpperTimes, 0, upperCount);
+        Arrays.sort(incidenceLowerTimes, 0, upperCount);
+        incidenceUpperTimeCount = upperCount;
+    }
 
-        return gamma;
+    /**
+     * Update the cached logNumberOfIncidenceTrees after a single attachment time of an incidence moved.
+     * The incidence lineage count changes by one at the attachment times between the old and the new time,
+     * and the term of the moved time itself is replaced.
+     *
+     * @return false if the value has to be computed from scratch instead
+     */
+    private boolean updateLogNumberOfIncidenceTrees(TreeInterface tree, QuasiSpeciesIncidence[] incidences,
+                                                    QuasiSpeciesIncidence movedIncidence) {
+        final double samplingTime = movedIncidence.getSamplingTime();
+        final double oldTime = movedIncidence.getMoveOldTime();
+        final double newTime = movedIncidence.getMoveNewTime();
+        if (oldTime <= samplingTime || newTime <= samplingTime)
+            return false;
+        final double lower = Math.min(oldTime, newTime);
+        final double upper = Math.max(oldTime, newTime);
+
+        double delta = 0;
+        // the moved time: old term with the old incidence lineage count, new term
+        int incidenceLineages = incidenceLineageCountAtTime(incidences, oldTime);
+        delta -= logNumberOfIncidenceMerges(lineageCountAtTime(oldTime, tree),
+                incidenceLineages - (oldTime < newTime ? 1 : 0));
+        delta += logNumberOfIncidenceMerges(lineageCountAtTime(newTime, tree),
+                incidenceLineageCountAtTime(incidences, newTime));
+
+        // the other attachment times in [lower, upper) counted the moved lineage either before or after the move
+        final int change = newTime > oldTime ? 1 : -1;
+        for (QuasiSpeciesIncidence incidence : incidences) {
+            int j = incidence.indexOf(lower);
+            if (j < 0)
+                j = -j - 1;
+            for (; j < incidence.getAttachmentTimeCount() && incidence.getAttachmentTime(j) < upper; j++) {
+                final double time = incidence.getAttachmentTime(j);
+                if ((incidence == movedIncidence && time == newTime) || time <= samplingTime)
+                    continue;
+                final int treeLineages = lineageCountAtTime(time, tree);
+                incidenceLineages = incidenceLineageCountAtTime(incidences, time);
+                delta += logNumberOfIncidenceMerges(treeLineages, incidenceLineages)
+                        - logNumberOfIncidenceMerges(treeLineages, incidenceLineages - change);
+            }
+        }
+        logNumberOfIncidenceTrees += delta;
+        return true;
     }
 
 	/**
@@ -530,6 +638,20 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
     }
 
 
+    // sorted times for lineageCountAtTime: each lineage exists strictly below its upper time
+    //      (internal node or attachment time) and strictly above its lower time (tip or tip time of a copy)
+    private double[] lineageUpperTimes;
+    private double[] lineageLowerTimes;
+    private int lineageUpperTimeCount;
+    private int lineageLowerTimeCount;
+    private TreeInterface lineageTimesTree;
+    // false if the tree changed since the lineage times were sorted
+    private boolean lineageTimesKnown;
+    // incremented whenever the lineage times are sorted again
+    private int lineageTimesVersion;
+    // true if the lineage times were sorted again since the last store
+    private boolean lineageTimesUpdated;
+
     /**
      * @param time the time
      * @param tree the tree
@@ -537,47 +659,112 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
      */
     @Override
     public int lineageCountAtTime(double time, TreeInterface tree) {
+        if (!lineageTimesKnown || lineageTimesTree != tree)
+            updateLineageTimes(tree);
 
-        int count = 1;
-        int tipCount = tree.getLeafNodeCount();
-        for (int i = tipCount; i < tipCount + tree.getInternalNodeCount(); i++) {
-            if (tree.getNode(i).getHeight() > time) count += 1;
-        }
+        // lineages started above the time minus lineages ended at or above the time
+        return 1 + (lineageUpperTimeCount - countTimesAtMost(lineageUpperTimes, lineageUpperTimeCount, time))
+                - (lineageLowerTimeCount - countTimesBelow(lineageLowerTimes, lineageLowerTimeCount, time));
+    }
 
+    /**
+     * Collect and sort the start and end times of all lineages of the tree, including the lineages of
+     * the haplotype copies, such that lineageCountAtTime is two binary searches.
+     * Copies sampled at tipTimes[j] are the tipTimesCount[j] (for j = 0 one less) smallest attachment times
+     * not yet taken by the copies sampled at more recent times.
+     *
+     * @param tree the tree
+     */
+    protected void updateLineageTimes(TreeInterface tree) {
+        int tipCount = tree.getLeafNodeCount();
+        int maxUpperCount = tree.getInternalNodeCount();
+        for (int i = 0; i < tipCount; i++)
+            maxUpperCount += ((QuasiSpeciesNode) tree.getNode(i)).getAttachmentTimesList().length - 1;
+        if (lineageUpperTimes == null || lineageUpperTimes.length < maxUpperCount)
+            lineageUpperTimes = new double[maxUpperCount];
+        if (lineageLowerTimes == null || lineageLowerTimes.length < maxUpperCount + 1)
+            lineageLowerTimes = new double[maxUpperCount + 1];
+
+        int upperCount = 0;
+        int lowerCount = 0;
+        for (int i = tipCount; i < tipCount + tree.getInternalNodeCount(); i++)
+            lineageUpperTimes[upperCount++] = tree.getNode(i).getHeight();
         for (int i = 0; i < tipCount; i++) {
             QuasiSpeciesNode node = (QuasiSpeciesNode) tree.getNode(i);
+            lineageLowerTimes[lowerCount++] = node.getHeight();
 
-            if (node.getHeight() >= time) count -= 1;
-            // node.getHeight() should be the same as the tipTimes[0]
-            else {
-                double[] attachTimes = node.getAttachmentTimesList();
-                double[] tipTimes = node.getTipTimesList();
-                int[] tipTimeCounts = node.getTipTimesCountList();
-                // start at position attachTimes.length-1 and stop at 1, since position 0 is the "fake" start of the haplo
-                int position = attachTimes.length-1;
-                if (tipTimes[0] < time){
-                    // first - 1 since if we have e.g. last three tips, we only have 2 internal nodes (3-1)=2
-                    //          ... but this is still not enough, thus need a second -1
-                    // second - 1 for the correct stopping point. If there are e.g. two internal nodes out of 10,
-                    //          corresponding to the last 3 tips go from l = 9 to 10
-                    for (int l = position - (tipTimeCounts[0] - 1 - 1); l <= position  ; l++){
-                        if (attachTimes[l] > time) count += 1;
-                        else break;
+            double[] attachTimes = node.getAttachmentTimesList();
+            double[] tipTimes = node.getTipTimesList();
+            int[] tipTimeCounts = node.getTipTimesCountList();
+            // start at position attachTimes.length-1 and stop at 1, since position 0 is the "fake" start of the haplo
+            int position = attachTimes.length - 1;
+            for (int j = 0; j < tipTimes.length; j++) {
+                // the first sampled copy is the haplotype lineage itself
+                int copies = j == 0 ? tipTimeCounts[0] - 1 : tipTimeCounts[j];
+                for (int l = position - copies + 1; l <= position; l++) {
+                    // a copy attaching below its sampling time never exists
+                    if (attachTimes[l] > tipTimes[j]) {
+                        lineageUpperTimes[upperCount++] = attachTimes[l];
+                        lineageLowerTimes[lowerCount++] = tipTimes[j];
                     }
                 }
-                position -= (tipTimeCounts[0] - 1);
-                for (int j = 1; j < tipTimes.length; j++) {
-                    if (tipTimes[j] < time){
-                        for (int l = position - (tipTimeCounts[j] - 1); l <= position; l++){
-                            if (attachTimes[l] > time) count += 1;
-                            else break;
-                        }
-                    } else break;
-                    position -= tipTimeCounts[j];
-                }
+                position -= copies;
             }
         }
-        return count;
+        Arrays.sort(lineageUpperTimes, 0, upperCount);
+        Arrays.sort(lineageLowerTimes, 0, lowerCount);
+        lineageUpperTimeCount = upperCount;
+        lineageLowerTimeCount = lowerCount;
+        lineageTimesTree = tree;
+        lineageTimesKnown = true;
+        lineageTimesUpdated = true;
+        lineageTimesVersion++;
+    }
+
+    /**
+     * @param tree the tree
+     * @return true if a node or the attachment times of a haplotype changed since the last step,
+     *          edits of the incidences only do not change the lineage times
+     */
+    protected boolean lineageTimesChanged(TreeInterface tree) {
+        for (Node node : tree.getNodesAsArray()) {
+            if (node.isDirty() != Tree.IS_CLEAN
+                    || (node.isLeaf() && ((QuasiSpeciesNode) node).attachmentTimesListChanged()))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return the number of the first count entries of the ascending array that are smaller or equal to time
+     */
+    protected static int countTimesAtMost(double[] sortedTimes, int count, double time) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sortedTimes[mid] <= time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * @return the number of the first count entries of the ascending array that are smaller than time
+     */
+    protected static int countTimesBelow(double[] sortedTimes, int count, double time) {
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (sortedTimes[mid] < time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
     }
 
     /**
@@ -648,12 +835,8 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
     public int incidenceLineageCountAtTime(QuasiSpeciesIncidence[] incidences, double time) {
         int count = 0;
         for (QuasiSpeciesIncidence incidence : incidences) {
-            if (incidence.getSamplingTime() < time) {
-                for (double attachmentTime : incidence.getAttachmentTimes()) {
-                    if (attachmentTime > time)
-                        count++;
-                }
-            }
+            if (incidence.getSamplingTime() < time)
+                count += incidence.countAttachmentTimesAbove(time);
         }
 
         return count;
@@ -667,6 +850,10 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
 
         logP = 0.;
 
+        // the lineage times only need to be sorted again if the tree changed
+        if (tree.somethingIsDirty() && lineageTimesChanged(tree))
+            lineageTimesKnown = false;
+
 
         int nTips = tree.getLeafNodeCount();
 
@@ -804,6 +991,8 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
 	double [] currentFirstTerms;
 	double [] storedFirstTerms;
 	double [] storedBirth, storedAi, storedBi;
+	// skyline interval of the oldest attachment time of each haplotype, only a starting point for the interval search
+	int [] firstTermIntervals;
 	
 	private void processFirstProductTerm(final TreeInterface tree, final QuasiSpeciesTree qsTree) {
 		
@@ -815,6 +1004,7 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
 			storedBirth = new double[birth.length];
 			storedAi = new double[Ai.length];
 			storedBi = new double[Bi.length];
+			firstTermIntervals = new int[tree.getExternalNodes().size()];
 		}
 		
 		boolean bdskyIsDirty = bsdkyIsDirty();
@@ -849,13 +1039,9 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
                     currentFirstTerms[node.getNr()] += temp;
                     logP += currentFirstTerms[node.getNr()];
                 } else {
-                    for (int j = nQSTemp - 1; j > 0; j--) {
-                        double x = times[totalIntervals - 1] - QSTimesTemp[j];
-                        final int index = index(x);
-                        temp += FastMathLog(birth[index]) + log_q(index, times[index], x);
-                        if (printTempResults)
-                            System.out.println("1st pwd" + " = " + temp + "; QSinterval & QS attachment branches = " + node.getID() + " " + j);
-                    }
+                    temp = logFirstProductTerm(QSTimesTemp, nQSTemp, node.getNr());
+                    if (printTempResults)
+                        System.out.println("1st pwd" + " = " + temp + "; QSinterval & QS attachment branches = " + node.getID());
                     logP += temp;
                     currentFirstTerms[node.getNr()] = temp;
                 }
@@ -868,6 +1054,61 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
         }
 	}
 
+	/**
+	 * Sum of log(birth) + log_q over the attachment times of a haplotype (the first entry is not an attachment).
+	 * The attachment times are sorted in descending order, so the skyline interval only moves forward
+	 * and the terms of each interval are added up together, without searching the interval of each time.
+	 *
+	 * @param QSTimes attachment times of the haplotype
+	 * @param nQS     number of copies of the haplotype
+	 * @param haploNr node number of the haplotype, to look up the interval of its oldest attachment time
+	 * @return the first product term of the haplotype
+	 */
+	protected double logFirstProductTerm(final double[] QSTimes, final int nQS, final int haploNr) {
+		if (nQS < 2)
+			return 0;
+
+		final double origin = times[totalIntervals - 1];
+		// the interval of the oldest attachment time only changes if the time moves past an interval boundary
+		int index = firstTermIntervals[haploNr];
+		double x = origin - QSTimes[1];
+		if (index > totalIntervalsMinus1 || (index > 0 && times[index - 1] >= x)
+				|| (index < totalIntervalsMinus1 && times[index] < x)) {
+			index = index(x);
+			firstTermIntervals[haploNr] = index;
+		}
+
+		double temp = 0;
+		// number of attachment times, sum of (x - times[index]) and sum of log_qDenominator in this interval
+		int intervalCount = 0;
+		double intervalTimes = 0;
+		double intervalLogs = 0;
+		for (int j = 1; j < nQS; j++) {
+			x = origin - QSTimes[j];
+			if (index < totalIntervalsMinus1 && times[index] < x) {
+				temp += logFirstProductTermOfInterval(index, intervalCount, intervalTimes, intervalLogs);
+				intervalCount = 0;
+				intervalTimes = 0;
+				intervalLogs = 0;
+				while (index < totalIntervalsMinus1 && times[index] < x)
+					index++;
+			}
+			intervalCount++;
+			intervalTimes += x - times[index];
+			intervalLogs += log_qDenominator(index, times[index], x);
+		}
+		return temp + logFirstProductTermOfInterval(index, intervalCount, intervalTimes, intervalLogs);
+	}
+
+	/**
+	 * @return the sum of log(birth) + log_q of count times in the interval index, log_q being
+	 * log(4) + Ai * (x - times[index]) - 2 * log_qDenominator for each time x
+	 */
+	private double logFirstProductTermOfInterval(final int index, final int count, final double intervalTimes,
+												 final double intervalLogs) {
+		return count * (FastMathLog(birth[index]) + FastMathLog(4)) + Ai[index] * intervalTimes - 2 * intervalLogs;
+	}
+
     double[] currentIncidenceFirstTerms;
     double[] storedIncidenceFirstTerms;
 
@@ -899,8 +1140,8 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
                     incidence.setNewTimeOfChangedCopy(-1);
                 } else {
                     // recalculate for all attachment times
-                    for (double time : incidence.getAttachmentTimes()) {
-                        double x = times[totalIntervals - 1] - time;
+                    for (int j = 0; j < incidence.getAttachmentTimeCount(); j++) {
+                        double x = times[totalIntervals - 1] - incidence.getAttachmentTime(j);
                         final int index = index(x);
                         temp += FastMathLog(birth[index]) + log_q(index, times[index], x);
                     }
@@ -947,6 +1188,15 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
             System.arraycopy(currentIncidenceFirstTerms, 0, storedIncidenceFirstTerms, 0, currentIncidenceFirstTerms.length);
         }
 
+        lineageTimesUpdated = false;
+
+        if (incidenceTreesEditIds != null) {
+            storedLogNumberOfIncidenceTrees = logNumberOfIncidenceTrees;
+            System.arraycopy(incidenceTreesEditIds, 0, storedIncidenceTreesEditIds, 0, incidenceTreesEditIds.length);
+            storedIncidenceTreesLineageTimesVersion = incidenceTreesLineageTimesVersion;
+            storedIncidenceTreesUpdates = incidenceTreesUpdates;
+        }
+
 		super.store();
 	}
 
@@ -967,7 +1217,20 @@ public class QuasiSpeciesBirthDeathSkylineModel extends BirthDeathSkylineModel {
 		double[] incidenceTmp = currentIncidenceFirstTerms;
 		currentIncidenceFirstTerms = storedIncidenceFirstTerms;
 		storedIncidenceFirstTerms = incidenceTmp;
-				
+
+        // lineage times sorted for a rejected tree
+        if (lineageTimesUpdated)
+            lineageTimesKnown = false;
+
+        if (incidenceTreesEditIds != null) {
+            logNumberOfIncidenceTrees = storedLogNumberOfIncidenceTrees;
+            long[] editIdsTmp = incidenceTreesEditIds;
+            incidenceTreesEditIds = storedIncidenceTreesEditIds;
+            storedIncidenceTreesEditIds = editIdsTmp;
+            incidenceTreesLineageTimesVersion = storedIncidenceTreesLineageTimesVersion;
+            incidenceTreesUpdates = storedIncidenceTreesUpdates;
+        }
+
 		super.restore();
 	}
 	
@@ -0,0 +1,383 @@
+package piqmee.likelihood;
+
+import beast.core.BEASTInterface;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.State;
+import beast.core.util.Log;
+import beast.evolution.likelihood.GenericTreeLikelihood;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import piqmee.tree.QuasiSpeciesNode;
+import piqmee.tree.QuasiSpeciesTree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Sets up all likelihood engines applicable to the data, times a few full evaluations and
+ * partial evaluations after moves of single node heights and attachment times of each of them
+ * at startup and delegates to the fastest one.
+ * Engines whose likelihood disagrees with the reference engine (QuasiSpeciesTreeLikelihood
+ * with the java core) are not considered.
+ */
+@Description("Calculates the probability of sequence data on a beast.piqmee.tree " +
+        "given a site and substitution model, using the quasi-species tree likelihood engine " +
+        "found to be the fastest on the data at hand by a short benchmark at startup.")
+public class QuasiSpeciesAutoTreeLikelihood extends GenericTreeLikelihood {
+
+    final public Input<Boolean> useAmbiguities = new Input<>("useAmbiguities", "flag to indicate that sites containing ambiguous states should be handled instead of ignored (the default)", false);
+    final public Input<Boolean> useTipLikelihoods = new Input<>("useTipLikelihoods", "flag to indicate that partial likelihoods are provided at the tips", false);
+    final public Input<QuasiSpeciesTreeLikelihood.Scaling> scaling = new Input<>("scaling", "type of scaling to use, one of "
+            + Arrays.toString(QuasiSpeciesTreeLikelihood.Scaling.values()) + ". If not specified, the -beagle_scaling flag is used.",
+            QuasiSpeciesTreeLikelihood.Scaling._default, QuasiSpeciesTreeLikelihood.Scaling.values());
+    final public Input<Integer> evaluationsInput = new Input<>("evaluations", "number of timed full and of timed " +
+            "partial evaluations of each engine at startup, of which the median time is used (default 20)", 20);
+    final public Input<Double> agreementToleranceInput = new Input<>("agreementTolerance", "relative difference in the " +
+            "log likelihood up to which an engine is deemed to agree with the reference engine (default 1e-6)", 1e-6);
+
+    /** private list of likelihoods, to notify framework of the likelihood being used **/
+    final private Input<List<GenericTreeLikelihood>> likelihoodsInput = new Input<>("*", "", new ArrayList<>());
+
+    /**
+     * in an MCMC run most proposals change a small part of the tree only,
+     * so the partial evaluations dominate the cost of an engine
+     */
+    protected static final double FULL_EVALUATION_WEIGHT = 0.1;
+    protected static final int WARMUP_EVALUATIONS = 2;
+
+    protected GenericTreeLikelihood likelihood;
+
+    @Override
+    public void initAndValidate() {
+        if (evaluationsInput.get() < 1)
+            throw new IllegalArgumentException("QuasiSpeciesAutoTreeLikelihood: evaluations should be at least 1");
+
+        List<GenericTreeLikelihood> candidates = createCandidates();
+        if (candidates.isEmpty())
+            throw new IllegalStateException("QuasiSpeciesAutoTreeLikelihood(" + getID() + "): none of the likelihood engines could be set up");
+
+        GenericTreeLikelihood fastest = candidates.get(0);
+        if (candidates.size() > 1) {
+            final QuasiSpeciesTree tree = (QuasiSpeciesTree) treeInput.get();
+            final List<int[]> moves = getMoves(tree);
+            final double agreementTolerance = agreementToleranceInput.get();
+            double referenceLogP = Double.NaN;
+            double fastestCost = Double.POSITIVE_INFINITY;
+            StringBuilder report = new StringBuilder();
+            for (GenericTreeLikelihood candidate : candidates) {
+                final double[] timing = benchmark(candidate, tree, moves);
+                final double logP = timing[0];
+                if (candidate == candidates.get(0))
+                    referenceLogP = logP;
+                // an engine that failed or disagrees with itself was reported by the benchmark
+                if (Double.isNaN(logP))
+                    continue;
+                String name = candidate.getClass().getSimpleName();
+                if (Double.isInfinite(logP) || Double.isNaN(referenceLogP)
+                        || Math.abs(logP - referenceLogP) > agreementTolerance * Math.max(1.0, Math.abs(referenceLogP))) {
+                    Log.warning.println(getClass().getSimpleName() + "(" + getID() + "): " + name + " gives log likelihood "
+                            + logP + " instead of " + referenceLogP + " of the reference engine and is not used.");
+                    continue;
+                }
+                final double cost = FULL_EVALUATION_WEIGHT * timing[1] + (1.0 - FULL_EVALUATION_WEIGHT) * timing[2];
+                report.append(String.format("\n  %s: %.3f ms per full, %.3f ms per partial evaluation",
+                        name, timing[1] * 1e-6, timing[2] * 1e-6));
+                if (cost < fastestCost) {
+                    fastestCost = cost;
+                    fastest = candidate;
+                }
+            }
+            tree.setEverythingDirty(true);
+            Log.info.println(getClass().getSimpleName() + "(" + getID() + ") benchmarked" + report);
+        }
+
+        // only the engine used remains connected to the model
+        for (GenericTreeLikelihood candidate : candidates) {
+            if (candidate != fastest)
+                disconnect(candidate);
+        }
+        likelihood = fastest;
+        likelihood.getOutputs().add(this);
+        likelihoodsInput.get().add(likelihood);
+        Log.info.println(getClass().getSimpleName() + "(" + getID() + ") uses " + likelihood.getClass().getSimpleName());
+    }
+
+    /**
+     * @return the engines applicable to the data, the reference engine first
+     */
+    protected List<GenericTreeLikelihood> createCandidates() {
+        List<GenericTreeLikelihood> candidates = new ArrayList<>();
+
+        QuasiSpeciesTreeLikelihood reference = new QuasiSpeciesTreeLikelihood();
+        reference.tryBeagle = false;
+        addCandidate(candidates, reference, "useAmbiguities", useAmbiguities.get());
+
+        QuasiSpeciesTreeLikelihood2 likelihood2 = new QuasiSpeciesTreeLikelihood2();
+        likelihood2.tryBeagle = false;
+        addCandidate(candidates, likelihood2, "useAmbiguities", useAmbiguities.get());
+
+        // QuasiSpeciesTreeLikelihood3 neither handles ambiguities nor single haplotype trees
+        if (!useAmbiguities.get() && treeInput.get().getLeafNodeCount() > 1)
+            addCandidate(candidates, new QuasiSpeciesTreeLikelihood3());
+        else
+            Log.info.println(getClass().getSimpleName() + "(" + getID() + "): QuasiSpeciesTreeLikelihood3 is not used, "
+                    + "since it handles neither ambiguities nor trees with a single haplotype.");
+
+        QuasiSpeciesBeagleTreeLikelihood beagleLikelihood = new QuasiSpeciesBeagleTreeLikelihood();
+        addCandidate(candidates, beagleLikelihood, "useAmbiguities", useAmbiguities.get());
+        if (candidates.contains(beagleLikelihood) && beagleLikelihood.beagle == null) {
+            // no BEAGLE instance available
+            candidates.remove(beagleLikelihood);
+            disconnect(beagleLikelihood);
+        }
+        return candidates;
+    }
+
+    protected void addCandidate(List<GenericTreeLikelihood> candidates, GenericTreeLikelihood candidate, Object... extraInputs) {
+        candidate.setID(getID() + "_" + candidate.getClass().getSimpleName());
+        List<Object> inputs = new ArrayList<>(Arrays.asList("data", dataInput.get(), "tree", treeInput.get(),
+                "siteModel", siteModelInput.get(), "branchRateModel", branchRateModelInput.get(),
+                "useTipLikelihoods", useTipLikelihoods.get(), "scaling", scaling.get().toString()));
+        inputs.addAll(Arrays.asList(extraInputs));
+        try {
+            candidate.initByName(inputs.toArray());
+            candidates.add(candidate);
+        } catch (Exception e) {
+            Log.warning.println(getClass().getSimpleName() + "(" + getID() + "): "
+                    + candidate.getClass().getSimpleName() + " cannot be used: " + e.getMessage());
+            disconnect(candidate);
+        }
+    }
+
+    /**
+     * Times full evaluations and partial evaluations after moves of an attachment time or a node height.
+     * Each move is undone and evaluated again, so the tree is left as it was.
+     *
+     * @param candidate engine to be timed
+     * @param tree      tree of the likelihood
+     * @param moves     moves applied in turn, see getMoves
+     * @return log likelihood of a full evaluation, or NaN if the engine does not return to it after the moves,
+     *         and median time in ns of a full and of a partial evaluation
+     */
+    protected double[] benchmark(GenericTreeLikelihood candidate, QuasiSpeciesTree tree, List<int[]> moves) {
+        final int evaluations = evaluationsInput.get();
+        final double tolerance = agreementToleranceInput.get();
+        final String name = candidate.getClass().getSimpleName();
+        double logP = Double.NaN;
+        try {
+            for (int i = 0; i < WARMUP_EVALUATIONS; i++)
+                logP = evaluate(candidate, tree, true);
+
+            double[] fullTimes = new double[evaluations];
+            for (int i = 0; i < evaluations; i++) {
+                final long start = System.nanoTime();
+                logP = evaluate(candidate, tree, true);
+                fullTimes[i] = System.nanoTime() - start;
+            }
+
+            double[] partialTimes = new double[evaluations];
+            for (int i = 0; i < evaluations; i++) {
+                final long start = System.nanoTime();
+                double undoneLogP;
+                if (moves.isEmpty()) {
+                    evaluate(candidate, tree, true);
+                    undoneLogP = evaluate(candidate, tree, true);
+                } else {
+                    final int[] move = moves.get(i % moves.size());
+                    final double oldValue = move(tree, move, Double.NaN);
+                    evaluate(candidate, tree, false);
+                    move(tree, move, oldValue);
+                    undoneLogP = evaluate(candidate, tree, false);
+                }
+                partialTimes[i] = (System.nanoTime() - start) / 2.0;
+
+                if (Math.abs(undoneLogP - logP) > tolerance * Math.max(1.0, Math.abs(logP))) {
+                    Log.warning.println(getClass().getSimpleName() + "(" + getID() + "): " + name + " gives log likelihood "
+                            + undoneLogP + " instead of " + logP + " after a move was undone and is not used.");
+                    return new double[]{Double.NaN, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+                }
+            }
+            return new double[]{logP, median(fullTimes), median(partialTimes)};
+        } catch (Exception e) {
+            Log.warning.println(getClass().getSimpleName() + "(" + getID() + "): " + name + " failed: " + e.getMessage());
+            return new double[]{Double.NaN, Double.POSITIVE_INFINITY, Double.POSITIVE_INFINITY};
+        }
+    }
+
+    protected static double median(double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        final int middle = sorted.length / 2;
+        return sorted.length % 2 == 1 ? sorted[middle] : (sorted[middle - 1] + sorted[middle]) / 2.0;
+    }
+
+    /**
+     * Moves that keep the tree valid and can be undone, taken in turn from the internal nodes
+     * and from the attachment times of duplicates other than the haplotype starts
+     *
+     * @return pairs of node number and index of the attachment time, -1 for the height of an internal node
+     */
+    protected List<int[]> getMoves(QuasiSpeciesTree tree) {
+        List<int[]> heightMoves = new ArrayList<>();
+        for (Node node : tree.getInternalNodes())
+            heightMoves.add(new int[]{node.getNr(), -1});
+        List<int[]> attachmentTimeMoves = new ArrayList<>();
+        for (Node tip : tree.getExternalNodes()) {
+            final int attachmentTimeCount = ((QuasiSpeciesNode) tip).getAttachmentTimesList().length;
+            for (int index = 2; index < attachmentTimeCount; index++)
+                attachmentTimeMoves.add(new int[]{tip.getNr(), index});
+        }
+
+        List<int[]> moves = new ArrayList<>();
+        for (int i = 0; i < Math.max(heightMoves.size(), attachmentTimeMoves.size()); i++) {
+            if (i < heightMoves.size())
+                moves.add(heightMoves.get(i));
+            if (i < attachmentTimeMoves.size())
+                moves.add(attachmentTimeMoves.get(i));
+        }
+        return moves;
+    }
+
+    /**
+     * Moves an attachment time halfway up to the next older one of its haplotype, or an internal node
+     * halfway down to the highest of its children and of the attachment times just below it,
+     * such that the tree stays valid. Moves back if an old value is given.
+     *
+     * @param move     node number and index of the attachment time, -1 for the node height
+     * @param oldValue value to move back to, NaN to make the move
+     * @return the value before the move
+     */
+    protected double move(QuasiSpeciesTree tree, int[] move, double oldValue) {
+        QuasiSpeciesNode node = (QuasiSpeciesNode) tree.getNode(move[0]);
+        final int index = move[1];
+        if (index < 0) {
+            final double height = node.getHeight();
+            node.setHeight(Double.isNaN(oldValue) ? (getLowerBound(tree, node) + height) / 2.0 : oldValue);
+            return height;
+        }
+
+        final double[] attachmentTimes = node.getAttachmentTimesList();
+        final double time = attachmentTimes[index];
+        final double newTime = Double.isNaN(oldValue) ? (attachmentTimes[index - 1] + time) / 2.0 : oldValue;
+        node.moveAttachmentTime(index, newTime);
+        return time;
+    }
+
+    /**
+     * @return the lowest height an internal node can move down to without passing one of its children,
+     *         an attachment time of the haplotype continuing through it or the start of a haplotype below it
+     */
+    protected double getLowerBound(QuasiSpeciesTree tree, QuasiSpeciesNode node) {
+        double lower = Math.max(node.getLeft().getHeight(), node.getRight().getHeight());
+        final int haplo = node.getContinuingHaploName();
+        if (haplo != -1) {
+            final double[] attachmentTimes = ((QuasiSpeciesNode) tree.getNode(haplo)).getAttachmentTimesList();
+            for (int i = 1; i < attachmentTimes.length; i++) {
+                if (attachmentTimes[i] < node.getHeight()) {
+                    lower = Math.max(lower, attachmentTimes[i]);
+                    break;
+                }
+            }
+        }
+        for (Node child : node.getChildren()) {
+            final int haploAbove = ((QuasiSpeciesNode) child).getHaploAboveName();
+            if (haploAbove != -1) {
+                final double[] attachmentTimes = ((QuasiSpeciesNode) tree.getNode(haploAbove)).getAttachmentTimesList();
+                if (attachmentTimes.length > 1)
+                    lower = Math.max(lower, attachmentTimes[1]);
+            }
+        }
+        return lower;
+    }
+
+    /**
+     * One step of the framework's calculation cycle for the candidate, with either the whole tree
+     * or the nodes changed since the last step marked as changed
+     */
+    protected double evaluate(GenericTreeLikelihood candidate, Tree tree, boolean everythingDirty) {
+        if (everythingDirty)
+            tree.setEverythingDirty(true);
+        else
+            tree.setSomethingIsDirty(true);
+        candidate.store();
+        candidate.checkDirtiness();
+        final double logP = candidate.calculateLogP();
+        tree.setEverythingDirty(false);
+        return logP;
+    }
+
+    /**
+     * Remove an engine that is not used from the outputs of its inputs,
+     * so that the framework does not store, restore and check it at every step
+     */
+    protected void disconnect(BEASTInterface candidate) {
+        if (candidate instanceof QuasiSpeciesTreeLikelihood) {
+            QuasiSpeciesTreeLikelihood qsLikelihood = (QuasiSpeciesTreeLikelihood) candidate;
+            if (qsLikelihood.ownsTraversalPlan && qsLikelihood.traversalPlan != null)
+                disconnect(qsLikelihood.traversalPlan);
+        }
+        for (Input<?> input : candidate.listInputs()) {
+            if (input.get() instanceof List) {
+                for (Object o : (List<?>) input.get()) {
+                    if (o instanceof BEASTInterface)
+                        ((BEASTInterface) o).getOutputs().remove(candidate);
+                }
+            } else if (input.get() instanceof BEASTInterface) {
+                ((BEASTInterface) input.get()).getOutputs().remove(candidate);
+            }
+        }
+    }
+
+    @Override
+    public double calculateLogP() {
+        logP = likelihood.calculateLogP();
+        return logP;
+    }
+
+    /**
+     * @return the engine used
+     */
+    public GenericTreeLikelihood getLikelihood() {
+        return likelihood;
+    }
+
+    /**
+     * This method samples the sequences based on the tree and site model.
+     */
+    @Override
+    public void sample(State state, Random random) {
+        throw new UnsupportedOperationException("Can't sample a fixed alignment!");
+    }
+
+    /** CalculationNode methods **/
+
+    /**
+     * The engine used is a calculation node on its own, so it is
+     * stored and restored by the framework; recalculate if it is dirty.
+     */
+    @Override
+    protected boolean requiresRecalculation() {
+        return likelihood.isDirtyCalculation();
+    }
+
+    /**
+     * @return a list of unique ids for the state nodes that form the argument
+     */
+    @Override
+    public List<String> getArguments() {
+        return Collections.singletonList(dataInput.get().getID());
+    }
+
+    /**
+     * @return a list of unique ids for the state nodes that make up the conditions
+     */
+    @Override
+    public List<String> getConditions() {
+        return likelihood.getConditions();
+    }
+
+}
@@ -3,12 +3,33 @@ package piqmee.likelihood;
 import beast.core.Description;
 import beast.evolution.likelihood.BeerLikelihoodCore;
 
+import java.util.Arrays;
+
 /**
  *  @author Veronika Boskova created on 03/03/17
  */
 @Description("quasispecies likelihood core")
 public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
 
+    /**
+     * number of entries per node in the flat operations list of calculateQSPartials
+     */
+    public static final int OPERATION_SIZE = 6;
+
+    /**
+     * Dynamic scaling: scaling is on from the start, but the partials of a node are only rescaled
+     * for the patterns where they fall below the threshold. The log scale factors are kept per
+     * partials buffer, so they are stored and restored together with the partials, and their sum
+     * over all nodes is maintained per pattern whenever a node is recalculated.
+     */
+    protected boolean useDynamicScaling = false;
+    protected double dynamicScalingThreshold = 1.0E-100;
+    protected double[] logScalingFactorSums;
+    protected double[] storedLogScalingFactorSums;
+    protected int scaledNodeCount = 0;
+    // after this many node updates the sums are recalculated from the scale factors, to remove drift
+    protected static final int SCALING_RESYNC_INTERVAL = 10000;
+
     public QuasiSpeciesBeerLikelihoodCore(int nrOfStates) {
         super (nrOfStates);
     } // c'tor
@@ -2271,6 +2292,144 @@ public class QuasiSpeciesBeerLikelihoodCore extends BeerLikelihoodCore {
         }
     }
     
+    /**
+     * Calculates the partials of a list of nodes in the given order, children have to come before their parents.
+     * Each operation takes OPERATION_SIZE entries: the node, its two children, the QS continuing
+     * into child 1, the QS continuing into child 2 and the QS continuing into the node.
+     *
+     * @param operations     flat list of operations
+     * @param operationCount number of operations in the list
+     * @param nodeCount      number of nodes in the tree
+     */
+    public void calculateQSPartials(int[] operations, int operationCount, int nodeCount) {
+        final int end = operationCount * OPERATION_SIZE;
+        for (int v = 0; v < end; v += OPERATION_SIZE) {
+            calculateQSPartials(operations[v + 1], operations[v + 2], operations[v],
+                    operations[v + 3], operations[v + 4], operations[v + 5], nodeCount);
+        }
+    }
+
+    /**
+     * Switches on dynamic scaling, has to be called after initialize()
+     *
+     * @param threshold partials of a pattern whose maximum is below this value are rescaled
+     */
+    public void setUseDynamicScaling(double threshold) {
+        useScaling = true;
+        useDynamicScaling = true;
+        dynamicScalingThreshold = threshold;
+        scalingFactors = new double[2][nrOfNodes][nrOfPatterns];
+        logScalingFactorSums = new double[nrOfPatterns];
+        storedLogScalingFactorSums = new double[nrOfPatterns];
+        scaledNodeCount = 0;
+    }
+
+    /**
+     * With dynamic scaling, rescales the partials of the patterns whose largest partial is below the
+     * threshold and replaces the previous log scale factors of the node in the per pattern sums.
+     * The previous factors are in the other buffer, as the buffer was switched by setNodePartialsForUpdate.
+     *
+     * @param nodeIndex the node
+     */
+    @Override
+    protected void scalePartials(int nodeIndex) {
+        if (!useDynamicScaling) {
+            super.scalePartials(nodeIndex);
+            return;
+        }
+        final int current = currentPartialsIndex[nodeIndex];
+        final double[] nodePartials = partials[current][nodeIndex];
+        final double[] nodeScalingFactors = scalingFactors[current][nodeIndex];
+        final double[] previousScalingFactors = scalingFactors[1 - current][nodeIndex];
+        int u = 0;
+        for (int i = 0; i < nrOfPatterns; i++) {
+            double scaleFactor = 0.0;
+            int v = u;
+            for (int k = 0; k < nrOfMatrices; k++) {
+                for (int j = 0; j < nrOfStates; j++) {
+                    if (nodePartials[v] > scaleFactor) {
+                        scaleFactor = nodePartials[v];
+                    }
+                    v++;
+                }
+                v += (nrOfPatterns - 1) * nrOfStates;
+            }
+
+            // all zero partials cannot be rescaled, the pattern likelihood is 0 then
+            if (scaleFactor < dynamicScalingThreshold && scaleFactor > 0.0) {
+                v = u;
+                for (int k = 0; k < nrOfMatrices; k++) {
+                    for (int j = 0; j < nrOfStates; j++) {
+                        nodePartials[v] /= scaleFactor;
+                        v++;
+                    }
+                    v += (nrOfPatterns - 1) * nrOfStates;
+                }
+                nodeScalingFactors[i] = Math.log(scaleFactor);
+            } else {
+                nodeScalingFactors[i] = 0.0;
+            }
+            logScalingFactorSums[i] += nodeScalingFactors[i] - previousScalingFactors[i];
+            u += nrOfStates;
+        }
+        scaledNodeCount++;
+    }
+
+    /**
+     * @return the log scaling factor of the pattern, summed over all nodes
+     */
+    @Override
+    public double getLogScalingFactor(int patternIndex_) {
+        if (useDynamicScaling) {
+            return logScalingFactorSums[patternIndex_];
+        }
+        return super.getLogScalingFactor(patternIndex_);
+    }
+
+    /**
+     * Recalculates the per pattern sums of the log scale factors from the current buffers
+     */
+    protected void resyncLogScalingFactorSums() {
+        Arrays.fill(logScalingFactorSums, 0.0);
+        for (int n = 0; n < nrOfNodes; n++) {
+            final double[] nodeScalingFactors = scalingFactors[currentPartialsIndex[n]][n];
+            for (int i = 0; i < nrOfPatterns; i++) {
+                logScalingFactorSums[i] += nodeScalingFactors[i];
+            }
+        }
+        scaledNodeCount = 0;
+    }
+
+    @Override
+    public void store() {
+        super.store();
+        if (useDynamicScaling) {
+            // the buffers hold the accepted state here, so this is a safe point to remove drift
+            if (scaledNodeCount > SCALING_RESYNC_INTERVAL) {
+                resyncLogScalingFactorSums();
+            }
+            System.arraycopy(logScalingFactorSums, 0, storedLogScalingFactorSums, 0, nrOfPatterns);
+        }
+    }
+
+    @Override
+    public void restore() {
+        super.restore();
+        if (useDynamicScaling) {
+            double[] tmp = logScalingFactorSums;
+            logScalingFactorSums = storedLogScalingFactorSums;
+            storedLogScalingFactorSums = tmp;
+        }
+    }
+
+    @Override
+    public void unstore() {
+        super.unstore();
+        if (useDynamicScaling) {
+            System.arraycopy(storedLogScalingFactorSums, 0, logScalingFactorSums, 0, nrOfPatterns);
+        }
+    }
+
     @Override
     public boolean getUseScaling() {
     	return useScaling;
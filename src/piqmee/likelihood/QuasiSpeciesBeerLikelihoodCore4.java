@@ -1,5 +1,8 @@
 package piqmee.likelihood;
 
+import beast.core.Description;
+
+@Description("quasispecies likelihood core with the pruning unrolled for 4 states (nucleotides)")
 public class QuasiSpeciesBeerLikelihoodCore4 extends QuasiSpeciesBeerLikelihoodCore {
 
 	public QuasiSpeciesBeerLikelihoodCore4(int nrOfStates) {
@@ -1353,7 +1356,181 @@ public class QuasiSpeciesBeerLikelihoodCore4 extends QuasiSpeciesBeerLikelihoodC
         }
     }
 
-	
-	
-	
+    /**
+     * Calculates partial likelihood at origin if tree has only one tip with states.
+     *
+     * @param stateIndex            alignment at the tip (child 1)
+     * @param matricesQS1           transition probability matrix from parent to the tip (child 1) - if the node is a tip, it holds the probability that the sequence does not change from the tip to the start of the haplo
+     * @param matrices1aboveQSstart transition probability matrix from node above QS start to QS start for QS passing through the tip (child 1)
+     * @param originPartials        probability vector at origin (of length nrOfStates * nrOfPatterns)
+     * @param child1QS              QS passing through parent tip (child 1)
+     */
+    @Override
+    protected void calculateOriginTipPruning(int[] stateIndex, double[] matricesQS1, double[] matrices1aboveQSstart,
+                                             double[] originPartials, int child1QS){
+
+        double tmp, sum;
+
+        // v keeps track of the pattern we are about to calculate
+        int v = 0;
+
+        for (int l = 0; l < nrOfMatrices; l++) {
+
+            // w keeps track of the state the internal node evolves from
+            int w = l * matrixSize;
+
+            for (int k = 0; k < nrOfPatterns; k++) {
+                // note down the state at the tip
+                int state = stateIndex[k];
+
+                // the child has a state
+                if (state < 4) {
+                    // note down the transition probabilities (of no change) on the sum of the QS branch lengths
+                    // P(QS start -> QS tip)
+                    tmp = matricesQS1[w + 4 * state + state];
+                    // for each state at the parent node calculate prob. of going to the state of the tip * P(QS start -> QS tip)
+                    final int s = w + state;
+//                    for (int i = 0; i < nrOfStates; i++) {
+                        originPartials[v    ] = tmp * matrices1aboveQSstart[s];
+                        originPartials[v + 1] = tmp * matrices1aboveQSstart[s + 4];
+                        originPartials[v + 2] = tmp * matrices1aboveQSstart[s + 4 * 2];
+                        originPartials[v + 3] = tmp * matrices1aboveQSstart[s + 4 * 3];
+//                    }
+
+                } else {
+                    // the alignment at node has a gap or unknown state so treat it as unknown
+                    // for each state at the parent node calculate prob. of going to the state of the tip * P(QS start -> QS tip)
+                    final double tmp0 = matricesQS1[w];
+                    final double tmp1 = matricesQS1[w + 4 + 1];
+                    final double tmp2 = matricesQS1[w + 4 * 2 + 2];
+                    final double tmp3 = matricesQS1[w + 4 * 3 + 3];
+                    for (int i = 0; i < 4; i++) {
+                        final int s = w + 4 * i;
+//                        for (int j = 0; j < nrOfStates; j++){
+                            sum  = tmp0 * matrices1aboveQSstart[s];
+                            sum += tmp1 * matrices1aboveQSstart[s + 1];
+                            sum += tmp2 * matrices1aboveQSstart[s + 2];
+                            sum += tmp3 * matrices1aboveQSstart[s + 3];
+//                        }
+                        originPartials[v + i] = sum;
+                    }
+                }
+
+                v += 4;
+
+            }
+        }
+    }
+
+    /**
+     * Calculates partial likelihood at origin if tree has only one tip with partials.
+     *
+     * @param partials1             partials at the tip (child 1)
+     * @param matricesQS1           transition probability matrix from parent to the tip (child 1) - if the node is a tip, it holds the probability that the sequence does not change from the tip to the start of the haplo
+     * @param matrices1aboveQSstart transition probability matrix from node above QS start to QS start for QS passing through the tip (child 1)
+     * @param originPartials        probability vector at origin (of length nrOfStates * nrOfPatterns)
+     * @param child1QS              QS passing through parent tip (child 1)
+     */
+    @Override
+    protected void calculateOriginTipPruning(double[] partials1, double[] matricesQS1, double[] matrices1aboveQSstart,
+                                             double[] originPartials, int child1QS){
+
+        double sum;
+
+        // v keeps track of the pattern we are about to calculate
+        int v = 0;
+
+        for (int l = 0; l < nrOfMatrices; l++) {
+
+            // w keeps track of the state the internal node evolves from
+            int w = l * matrixSize;
+
+            for (int k = 0; k < nrOfPatterns; k++) {
+                // since state at QS tip is unknown, take into account all the possibilities
+                // note down the partial at the child 1 times P(QS start -> QS tip)
+                final double tmp0 = partials1[v    ] * matricesQS1[w];
+                final double tmp1 = partials1[v + 1] * matricesQS1[w + 4 + 1];
+                final double tmp2 = partials1[v + 2] * matricesQS1[w + 4 * 2 + 2];
+                final double tmp3 = partials1[v + 3] * matricesQS1[w + 4 * 3 + 3];
+
+                for (int i = 0; i < 4; i++) {
+                    // for each state at the origin calculate prob. of going to the state of the tip * P(QS start -> QS tip)
+                    final int s = w + 4 * i;
+//                    for (int j = 0; j < nrOfStates; j++) {
+                        sum  = tmp0 * matrices1aboveQSstart[s];
+                        sum += tmp1 * matrices1aboveQSstart[s + 1];
+                        sum += tmp2 * matrices1aboveQSstart[s + 2];
+                        sum += tmp3 * matrices1aboveQSstart[s + 3];
+//                    }
+                    originPartials[v + i] = sum;
+                }
+
+                v += 4;
+
+            }
+        }
+    }
+
+    /**
+     * Integrates partials across categories.
+     *
+     * @param inPartials  the array of partials to be integrated
+     * @param proportions the proportions of sites in each category
+     * @param outPartials an array into which the partials will go
+     */
+    @Override
+    protected void calculateIntegratePartials(double[] inPartials, double[] proportions, double[] outPartials) {
+
+        int u = 0;
+        int v = 0;
+        final double proportion0 = proportions[0];
+        for (int k = 0; k < nrOfPatterns; k++) {
+            outPartials[u    ] = inPartials[v    ] * proportion0;
+            outPartials[u + 1] = inPartials[v + 1] * proportion0;
+            outPartials[u + 2] = inPartials[v + 2] * proportion0;
+            outPartials[u + 3] = inPartials[v + 3] * proportion0;
+            u += 4;
+            v += 4;
+        }
+
+        for (int l = 1; l < nrOfMatrices; l++) {
+            u = 0;
+            final double proportion = proportions[l];
+
+            for (int k = 0; k < nrOfPatterns; k++) {
+                outPartials[u    ] += inPartials[v    ] * proportion;
+                outPartials[u + 1] += inPartials[v + 1] * proportion;
+                outPartials[u + 2] += inPartials[v + 2] * proportion;
+                outPartials[u + 3] += inPartials[v + 3] * proportion;
+                u += 4;
+                v += 4;
+            }
+        }
+    }
+
+    /**
+     * Calculates pattern log likelihoods at a node.
+     *
+     * @param partials          the partials used to calculate the likelihoods
+     * @param frequencies       an array of state frequencies
+     * @param outLogLikelihoods an array into which the likelihoods will go
+     */
+    @Override
+    public void calculateLogLikelihoods(double[] partials, double[] frequencies, double[] outLogLikelihoods) {
+        final double freq0 = frequencies[0];
+        final double freq1 = frequencies[1];
+        final double freq2 = frequencies[2];
+        final double freq3 = frequencies[3];
+        int v = 0;
+        for (int k = 0; k < nrOfPatterns; k++) {
+
+            final double sum = freq0 * partials[v    ]
+                             + freq1 * partials[v + 1]
+                             + freq2 * partials[v + 2]
+                             + freq3 * partials[v + 3];
+            v += 4;
+            outLogLikelihoods[k] = Math.log(sum) + getLogScalingFactor(k);
+        }
+    }
+
 }
@@ -0,0 +1,241 @@
+package piqmee.likelihood;
+
+import beast.core.CalculationNode;
+import beast.core.Description;
+import beast.core.Input;
+import beast.evolution.branchratemodel.BranchRateModel;
+import beast.evolution.tree.Node;
+import piqmee.tree.QuasiSpeciesNode;
+import piqmee.tree.QuasiSpeciesTree;
+
+import java.util.Arrays;
+
+/**
+ * Holds everything the QS tree likelihoods need from the tree (QS branch lengths, haplotype
+ * split points, branch rates and dirty flags) so that several partition likelihoods on the same
+ * tree do not each recompute it. The plan is brought up to date by the first likelihood asking
+ * for it after a state change, all other likelihoods of the same step reuse the result.
+ */
+@Description("Tree dependent quantities needed by the quasi-species tree likelihoods, " +
+        "computed once per step and shared by all partitions on the same quasi-species tree.")
+public class QuasiSpeciesTraversalPlan extends CalculationNode {
+
+    final public Input<QuasiSpeciesTree> treeInput = new Input<>("tree",
+            "quasi-species tree the plan is computed for", Input.Validate.REQUIRED);
+    final public Input<BranchRateModel.Base> branchRateModelInput = new Input<>("branchRateModel",
+            "branch rate model shared by the partitions; branch rates are only shared with likelihoods using this model");
+
+    protected QuasiSpeciesTree tree;
+    protected BranchRateModel.Base branchRateModel;
+    int nodeCount;
+    int leafNodeCount;
+
+    /**
+     * branchTimes: for tips the sum of the QS branch lengths of the haplotype,
+     *              for internal nodes the branch length, 0 for the root
+     * branchRates: rate of the branch above the node, the entries nodeCount + haplotype
+     *              hold the rate of the partial branch above the QS start of the haplotype
+     * qsStartTimes: first attachment time (QS start) of each haplotype
+     */
+    protected double[] branchTimes;
+    protected double[] storedBranchTimes;
+    protected double[] branchRates;
+    protected double[] storedBranchRates;
+    protected double[] qsStartTimes;
+    protected double[] storedQSStartTimes;
+    // attachment times the tip branch times were computed from, to detect changed haplotypes
+    protected double[][] tipAttachmentTimes;
+    protected double[][] storedTipAttachmentTimes;
+
+    // dirty flags of the current step
+    protected int[] dirtyFlags;
+    protected int dirtyNodeCount;
+    protected int singleDirtyTip;
+
+    protected volatile boolean needsUpdate;
+    protected boolean storedNeedsUpdate;
+    Node toyNode = new Node();
+
+    @Override
+    public void initAndValidate() {
+        tree = treeInput.get();
+        branchRateModel = branchRateModelInput.get();
+        nodeCount = tree.getNodeCount();
+        leafNodeCount = tree.getLeafNodeCount();
+
+        branchTimes = new double[nodeCount];
+        storedBranchTimes = new double[nodeCount];
+        branchRates = new double[nodeCount + leafNodeCount];
+        storedBranchRates = new double[nodeCount + leafNodeCount];
+        qsStartTimes = new double[leafNodeCount];
+        storedQSStartTimes = new double[leafNodeCount];
+        tipAttachmentTimes = new double[leafNodeCount][];
+        storedTipAttachmentTimes = new double[leafNodeCount][];
+        dirtyFlags = new int[nodeCount];
+        Arrays.fill(dirtyFlags, QuasiSpeciesTree.IS_FILTHY);
+        dirtyNodeCount = nodeCount;
+        singleDirtyTip = -1;
+        needsUpdate = true;
+    }
+
+    /**
+     * Brings the plan up to date with the current tree, unless this was already done in this step.
+     * Safe to be called by partition likelihoods evaluated in parallel threads.
+     */
+    public void prepare() {
+        if (!needsUpdate)
+            return;
+        synchronized (this) {
+            if (needsUpdate) {
+                update();
+                needsUpdate = false;
+            }
+        }
+    }
+
+    /**
+     * Forces a full recalculation at the next call of prepare()
+     */
+    public void setNeedsUpdate() {
+        needsUpdate = true;
+    }
+
+    protected void update() {
+        final Node[] nodes = tree.getNodesAsArray();
+        dirtyNodeCount = 0;
+        singleDirtyTip = -1;
+        for (int i = 0; i < nodeCount; i++) {
+            final QuasiSpeciesNode node = (QuasiSpeciesNode) nodes[i];
+            final int nr = node.getNr();
+            dirtyFlags[nr] = node.isDirty();
+            if (dirtyFlags[nr] != QuasiSpeciesTree.IS_CLEAN) {
+                dirtyNodeCount++;
+                singleDirtyTip = node.isLeaf() ? nr : -1;
+            }
+            if (node.isLeaf()) {
+                // summing up the QS branches is the expensive part, so only redo it for changed haplotypes
+                final double[] attachmentTimes = node.getAttachmentTimesList();
+                if (dirtyFlags[nr] != QuasiSpeciesTree.IS_CLEAN || attachmentTimes != tipAttachmentTimes[nr]) {
+                    branchTimes[nr] = node.getTotalBranchLengths();
+                    tipAttachmentTimes[nr] = attachmentTimes;
+                }
+                qsStartTimes[nr] = attachmentTimes[0];
+            } else if (node.isRoot()) {
+                branchTimes[nr] = 0.0;
+            } else {
+                branchTimes[nr] = node.getLength();
+            }
+        }
+        if (dirtyNodeCount != 1)
+            singleDirtyTip = -1;
+
+        // with a relaxed clock all rates can change with a single branch length, so always redo these
+        if (branchRateModel != null) {
+            for (int i = 0; i < nodeCount; i++) {
+                final QuasiSpeciesNode node = (QuasiSpeciesNode) nodes[i];
+                branchRates[node.getNr()] = branchRateModel.getRateForBranch(node);
+                final int haploNr = node.getHaploAboveName();
+                if (haploNr != -1) {
+                    if (node.isRoot()) {
+                        branchRates[nodeCount + haploNr] = 1.0;
+                    } else {
+                        toyNode.setNr(nodeCount + haploNr);
+                        branchRates[nodeCount + haploNr] = branchRateModel.getRateForBranch(toyNode);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param branchRateModel branch rate model of the likelihood asking
+     * @return true if the branch rates of the plan are computed with this branch rate model
+     */
+    public boolean sharesBranchRates(BranchRateModel.Base branchRateModel) {
+        return this.branchRateModel != null && this.branchRateModel == branchRateModel;
+    }
+
+    /**
+     * @param nodeNr node number
+     * @return total QS branch length for tips, branch length for internal nodes, 0 for the root
+     */
+    public double getBranchTime(int nodeNr) {
+        return branchTimes[nodeNr];
+    }
+
+    /**
+     * @param nodeNr node number, or node count + haplotype number for the partial branch above a QS start
+     * @return rate of the branch
+     */
+    public double getBranchRate(int nodeNr) {
+        return branchRates[nodeNr];
+    }
+
+    /**
+     * @param haploNr haplotype number
+     * @return the time the haplotype starts, i.e. its first attachment time
+     */
+    public double getQSStartTime(int haploNr) {
+        return qsStartTimes[haploNr];
+    }
+
+    /**
+     * @param nodeNr node number
+     * @return the dirty flag the node had when the plan was updated
+     */
+    public int getDirtyFlag(int nodeNr) {
+        return dirtyFlags[nodeNr];
+    }
+
+    /**
+     * @return the number of the tip if it is the only changed node in this step, -1 otherwise
+     */
+    public int getSingleDirtyTip() {
+        return singleDirtyTip;
+    }
+
+    /** CalculationNode methods **/
+
+    @Override
+    protected boolean requiresRecalculation() {
+        if (tree.somethingIsDirty() || (branchRateModel != null && branchRateModel.isDirtyCalculation())) {
+            needsUpdate = true;
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void store() {
+        // the framework stores after the proposal, so the arrays still hold the values of the accepted state
+        storedNeedsUpdate = needsUpdate;
+        System.arraycopy(branchTimes, 0, storedBranchTimes, 0, branchTimes.length);
+        System.arraycopy(branchRates, 0, storedBranchRates, 0, branchRates.length);
+        System.arraycopy(qsStartTimes, 0, storedQSStartTimes, 0, qsStartTimes.length);
+        System.arraycopy(tipAttachmentTimes, 0, storedTipAttachmentTimes, 0, tipAttachmentTimes.length);
+        super.store();
+    }
+
+    @Override
+    public void restore() {
+        double[] tmp = branchTimes;
+        branchTimes = storedBranchTimes;
+        storedBranchTimes = tmp;
+        tmp = branchRates;
+        branchRates = storedBranchRates;
+        storedBranchRates = tmp;
+        tmp = qsStartTimes;
+        qsStartTimes = storedQSStartTimes;
+        storedQSStartTimes = tmp;
+        double[][] tmpAttachmentTimes = tipAttachmentTimes;
+        tipAttachmentTimes = storedTipAttachmentTimes;
+        storedTipAttachmentTimes = tmpAttachmentTimes;
+        // the restored tree is clean
+        Arrays.fill(dirtyFlags, QuasiSpeciesTree.IS_CLEAN);
+        dirtyNodeCount = 0;
+        singleDirtyTip = -1;
+        needsUpdate = storedNeedsUpdate;
+        super.restore();
+    }
+
+}
@@ -0,0 +1,144 @@
+package piqmee.likelihood;
+
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import beast.evolution.tree.TreeInterface;
+
+import java.util.Arrays;
+
+/**
+ * Non-recursive traversal order for the QS tree likelihoods.
+ * Holds the post-order of the node numbers, rebuilt only when the topology changes,
+ * and per step the schedule of nodes to visit: either all nodes, or only the nodes on
+ * the paths from the dirty nodes to the root, both in post-order so that children are
+ * always visited before their parents.
+ */
+public class QuasiSpeciesTraversalSchedule {
+
+    protected final int nodeCount;
+    // node numbers in post-order and the position of each node in it
+    protected final int[] postOrder;
+    protected final int[] postOrderPosition;
+    // parent numbers the post-order was built for, -1 for the root
+    protected final int[] parentNrs;
+    protected boolean postOrderValid = false;
+
+    protected final int[] schedule;
+    protected int scheduleLength;
+
+    protected final int[] dirtyNodes;
+    protected final boolean[] forcedDirty;
+    protected final boolean[] onDirtyPath;
+    protected final int[] positions;
+    protected final Node[] stack;
+
+    public QuasiSpeciesTraversalSchedule(int nodeCount) {
+        this.nodeCount = nodeCount;
+        postOrder = new int[nodeCount];
+        postOrderPosition = new int[nodeCount];
+        parentNrs = new int[nodeCount];
+        schedule = new int[nodeCount];
+        dirtyNodes = new int[nodeCount];
+        forcedDirty = new boolean[nodeCount];
+        onDirtyPath = new boolean[nodeCount];
+        positions = new int[nodeCount];
+        stack = new Node[nodeCount];
+    }
+
+    /**
+     * Have the node and its ancestors visited at the next update,
+     * even if the node is clean in the tree
+     *
+     * @param nodeNr number of the node
+     */
+    public void markDirty(int nodeNr) {
+        forcedDirty[nodeNr] = true;
+    }
+
+    /**
+     * Determines the nodes to visit in this step
+     *
+     * @param tree          the tree
+     * @param fullTraversal if true all nodes are visited, otherwise only the
+     *                      dirty nodes (and the ones marked dirty) and their ancestors
+     */
+    public void update(TreeInterface tree, boolean fullTraversal) {
+        final Node[] nodes = tree.getNodesAsArray();
+        boolean topologyChanged = !postOrderValid;
+        int dirtyCount = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            final Node node = nodes[i];
+            final int parentNr = node.isRoot() ? -1 : node.getParent().getNr();
+            if (parentNr != parentNrs[i]) {
+                parentNrs[i] = parentNr;
+                topologyChanged = true;
+            }
+            if (node.isDirty() != Tree.IS_CLEAN || forcedDirty[i])
+                dirtyNodes[dirtyCount++] = i;
+            forcedDirty[i] = false;
+        }
+        if (topologyChanged)
+            rebuildPostOrder(tree.getRoot());
+
+        if (fullTraversal) {
+            System.arraycopy(postOrder, 0, schedule, 0, nodeCount);
+            scheduleLength = nodeCount;
+            return;
+        }
+
+        // collect the nodes on the paths to the root, stopping where an earlier path was joined
+        int k = 0;
+        for (int d = 0; d < dirtyCount; d++) {
+            Node node = nodes[dirtyNodes[d]];
+            while (node != null && !onDirtyPath[node.getNr()]) {
+                onDirtyPath[node.getNr()] = true;
+                positions[k++] = postOrderPosition[node.getNr()];
+                node = node.getParent();
+            }
+        }
+        Arrays.sort(positions, 0, k);
+        for (int j = 0; j < k; j++) {
+            schedule[j] = postOrder[positions[j]];
+            onDirtyPath[schedule[j]] = false;
+        }
+        scheduleLength = k;
+    }
+
+    /**
+     * Builds the post-order with an explicit stack, so deep (ladder-like) trees cannot overflow the call stack.
+     * The reversed pre-order visiting the right child first is a post-order visiting the left child first.
+     */
+    protected void rebuildPostOrder(Node root) {
+        int top = 0;
+        int k = nodeCount;
+        stack[top++] = root;
+        while (top > 0) {
+            final Node node = stack[--top];
+            postOrder[--k] = node.getNr();
+            if (!node.isLeaf()) {
+                stack[top++] = node.getLeft();
+                stack[top++] = node.getRight();
+            }
+        }
+        if (k != 0)
+            throw new IllegalStateException("QuasiSpeciesTraversalSchedule: the tree has "
+                    + (nodeCount - k) + " nodes below the root, expected " + nodeCount);
+        for (int i = 0; i < nodeCount; i++) {
+            postOrderPosition[postOrder[i]] = i;
+        }
+        Arrays.fill(stack, null);
+        postOrderValid = true;
+    }
+
+    /**
+     * @return node numbers to visit in this step, children before parents; only the first getScheduleLength() entries are valid
+     */
+    public int[] getSchedule() {
+        return schedule;
+    }
+
+    public int getScheduleLength() {
+        return scheduleLength;
+    }
+
+}
@@ -32,6 +32,8 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
     final public Input<Boolean> useTipLikelihoods = new Input<>("useTipLikelihoods", "flag to indicate that partial likelihoods are provided at the tips", false);
     public static enum Scaling {none, always, _default};
     final public Input<Scaling> scaling = new Input<>("scaling", "type of scaling to use, one of " + Arrays.toString(Scaling.values()) + ". If not specified, the -beagle_scaling flag is used.", Scaling._default, Scaling.values());
+    final public Input<QuasiSpeciesTraversalPlan> traversalPlanInput = new Input<>("traversalPlan", "tree dependent quantities shared " +
+            "by all partitions on the same tree, so these are computed only once per step (optional, a private one is created if not specified)");
 
 //    public Input<RealParameter> origin =
 //            new Input<RealParameter>("origin", "The time from origin to last sample (must be larger than tree height)", (RealParameter) null, Input.Validate.REQUIRED);
@@ -47,6 +49,8 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
 
     protected LikelihoodCore likelihoodCore;
     QuasiSpeciesBeagleTreeLikelihood beagle;
+    // false forces the java likelihood core, used when the engines are benchmarked against each other
+    boolean tryBeagle = true;
     protected SubstitutionModel substitutionModel;
     protected SiteModel.Base siteModel;
     protected BranchRateModel.Base branchRateModel;
@@ -54,6 +58,7 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
     protected double[] storedBranchLengths;
     protected double[] patternLogLikelihoods;
     protected double[] rootPartials;
+    protected double[] storedRootPartials;
     protected double[] originPartials;
     int nodeCount;
     int leafNodeCount;
@@ -83,6 +88,43 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
 
     Node toyNode = new Node();
 
+    /**
+     * QS branch lengths, haplotype starts and (if the branch rate model is shared) branch rates of the tree
+     */
+    protected QuasiSpeciesTraversalPlan traversalPlan;
+    protected boolean ownsTraversalPlan;
+    protected boolean sharesBranchRates;
+
+    /**
+     * post-order schedule of the nodes to visit, the update flags of the visited nodes
+     * and the flat list of partials operations handed to the likelihood core
+     */
+    protected QuasiSpeciesTraversalSchedule traversalSchedule;
+    protected int[] nodeUpdates;
+    protected int[] operations;
+    protected int operationCount;
+
+    /**
+     * Attachment time only fast path: if the only change since the last evaluation is in the
+     * attachment times of a single haplotype (its QS start excluded), only the probability of
+     * no change at its tip changes. For a tip with known states this is a per pattern/category
+     * multiplicative factor on the root partials, so these are updated in place without a traversal.
+     * The partials on the path from the tip to the root are then stale and are recomputed
+     * by the next full traversal (fastPathPending).
+     */
+    int[][] tipStates;
+    boolean[] tipHasOnlyKnownStates;
+    boolean[] fastPathPending;
+    boolean[] storedFastPathPending;
+    double[] qsStartTimes;
+    double[] storedQSStartTimes;
+    double[] noChangeFactors;
+    int fastPathUpdateCount = 0;
+    // after this many consecutive fast path updates, a full traversal refreshes the root partials exactly
+    static final int FAST_PATH_RESYNC_INTERVAL = 1000;
+    // partials of a pattern at a node are rescaled when all of them are below this value
+    static final double SCALING_THRESHOLD = 1.0E-100;
+
 
     @Override
     public void initAndValidate(){
@@ -96,17 +138,19 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
             alignment = dataInput.get();
         beagle = null;
         beagle = new QuasiSpeciesBeagleTreeLikelihood();
-        try {
-            beagle.initByName(
-                    "data", dataInput.get(), "tree", treeInput.get(), "siteModel", siteModelInput.get(),
-                    "branchRateModel", branchRateModelInput.get(), "useAmbiguities", useAmbiguities.get(),
-                    "useTipLikelihoods", useTipLikelihoods.get(),"scaling", scaling.get().toString());
-            if (beagle.beagle != null) {
-                //a Beagle instance was found, so we use it
-                return;
+        if (tryBeagle) {
+            try {
+                beagle.initByName(
+                        "data", dataInput.get(), "tree", treeInput.get(), "siteModel", siteModelInput.get(),
+                        "branchRateModel", branchRateModelInput.get(), "useAmbiguities", useAmbiguities.get(),
+                        "useTipLikelihoods", useTipLikelihoods.get(),"scaling", scaling.get().toString());
+                if (beagle.beagle != null) {
+                    //a Beagle instance was found, so we use it
+                    return;
+                }
+            } catch (Exception e) {
+                // ignore
             }
-        } catch (Exception e) {
-            // ignore
         }
         // No Beagle instance was found, so we use the good old java likelihood core
         beagle = null;
@@ -131,12 +175,25 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
         } else {
             branchRateModel = new StrictClockModel();
         }
+        if (traversalPlanInput.get() != null) {
+            traversalPlan = traversalPlanInput.get();
+            if (traversalPlan.treeInput.get() != treeInput.get())
+                throw new IllegalArgumentException("The traversal plan of " + getID() + " should be computed for the same tree as the likelihood");
+            ownsTraversalPlan = false;
+        } else {
+            traversalPlan = new QuasiSpeciesTraversalPlan();
+            traversalPlan.initByName("tree", treeInput.get(), "branchRateModel", branchRateModel);
+            traversalPlan.getOutputs().add(this);
+            ownsTraversalPlan = true;
+        }
+        sharesBranchRates = traversalPlan.sharesBranchRates(branchRateModel);
         // the entries corresponding to node number, store the branch length above the node
         // the entries corresponding to the node number + node count store the branch lengths above the QS origin, wherever this may be
         branchLengths = new double[nodeCount+leafNodeCount];
         storedBranchLengths = new double[nodeCount+leafNodeCount];
 
         int patterns = alignment.getPatternCount();
+        // for nucleotides use the core with the QS pruning unrolled over the 4 states
         if (nStates == 4) {
             likelihoodCore = new QuasiSpeciesBeerLikelihoodCore4(nStates);
         } else {
@@ -159,6 +216,7 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
 
         patternLogLikelihoods = new double[patterns];
         rootPartials = new double[patterns * nStates * siteModel.getCategoryCount()];
+        storedRootPartials = new double[patterns * nStates * siteModel.getCategoryCount()];
         originPartials = new double[patterns * nStates];
         matrixSize = (nStates + 1) * (nStates + 1);
         probabilities = new double[(nStates + 1) * (nStates + 1)];
@@ -169,6 +227,17 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
         tmpevectimesevals = new double[nStates * nStates];
         getNoChangeRates(rates);
 
+        traversalSchedule = new QuasiSpeciesTraversalSchedule(nodeCount);
+        nodeUpdates = new int[nodeCount];
+        operations = new int[nodeCount * QuasiSpeciesBeerLikelihoodCore.OPERATION_SIZE];
+
+        fastPathPending = new boolean[leafNodeCount];
+        storedFastPathPending = new boolean[leafNodeCount];
+        qsStartTimes = new double[leafNodeCount];
+        storedQSStartTimes = new double[leafNodeCount];
+        Arrays.fill(qsStartTimes, Double.NaN);
+        noChangeFactors = new double[nStates];
+
         if (alignment.isAscertained) {
             useAscertainedSitePatterns = true;
         }
@@ -239,10 +308,16 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
                 true, useAmbiguities.get()
         );
 
+        if (!scaling.get().equals(Scaling.none)) {
+            ((QuasiSpeciesBeerLikelihoodCore) likelihoodCore).setUseDynamicScaling(SCALING_THRESHOLD);
+        }
+
         final int extNodeCount = nodeCount / 2 + 1;
         // the intNodeCount includes the true internal nodes and the QS start "nodes"
         final int intNodeCount = nodeCount / 2 + extNodeCount;
 
+        tipStates = new int[extNodeCount][];
+        tipHasOnlyKnownStates = new boolean[extNodeCount];
         if (useAmbiguities.get() || useTipLikelihoods.get()) {
             setPartials(treeInput.get().getRoot(), alignment.getPatternCount());
         } else {
@@ -271,6 +346,7 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
             int i;
             int[] states = new int[patternCount];
             int taxonIndex = getTaxonIndex(node.getID(), data);
+            boolean onlyKnownStates = true;
             for (i = 0; i < patternCount; i++) {
                 int code = data.getPattern(taxonIndex, i);
                 int[] statesForCode = data.getDataType().getStatesForCode(code);
@@ -278,8 +354,12 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
                     states[i] = statesForCode[0];
                 else
                     states[i] = code; // Causes ambiguous states to be ignored.
+                if (states[i] >= nStates)
+                    onlyKnownStates = false;
             }
             likelihoodCore.setNodeStates(node.getNr(), states);
+            tipStates[node.getNr()] = states;
+            tipHasOnlyKnownStates[node.getNr()] = onlyKnownStates;
 
         } else {
             setStates(node.getLeft(), patternCount);
@@ -342,13 +422,11 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
 
     /**
      * Calculate the log likelihood of the current state.
+     * Unless scaling is 'none', the likelihood core rescales the partials of a node dynamically
+     * wherever they underflow, so scaling never has to be switched on or off with a full traversal.
      *
      * @return the log likelihood.
      */
-    double m_fScale = 1.01;
-    int m_nScale = 0;
-    int X = 100;
-
     @Override
     public double calculateLogP() {
         if (beagle != null) {
@@ -359,35 +437,25 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
 
         if (siteModel.isDirtyCalculation())
             getNoChangeRates(rates);
+        // a private plan is not updated by other likelihoods, so make sure it is complete after a full reset
+        if (ownsTraversalPlan && hasDirt == QuasiSpeciesTree.IS_FILTHY)
+            traversalPlan.setNeedsUpdate();
+        traversalPlan.prepare();
 
         try {
-            if (traverse((QuasiSpeciesNode) tree.getRoot()) != QuasiSpeciesTree.IS_CLEAN)
-                calcLogP();
+            final int fastPathTip = getAttachmentTimesOnlyTip();
+            if (fastPathTip != -1) {
+                if (updateTipNoChangeFactor((QuasiSpeciesNode) tree.getNode(fastPathTip)))
+                    calcLogP();
+            } else {
+                if (traverse((QuasiSpeciesNode) tree.getRoot()) != QuasiSpeciesTree.IS_CLEAN)
+                    calcLogP();
+                fastPathUpdateCount = 0;
+            }
         }
         catch (ArithmeticException e) {
             return Double.NEGATIVE_INFINITY;
         }
-        m_nScale++;
-        if (scaling.get().equals(Scaling._default) && m_nScale > X && likelihoodCore.getUseScaling()) {
-            System.err.println("Switch off scaling");
-            likelihoodCore.setUseScaling(1.0);
-            likelihoodCore.unstore();
-            hasDirt = QuasiSpeciesTree.IS_FILTHY;
-            X *= 2;
-            traverse((QuasiSpeciesNode) tree.getRoot());
-            calcLogP();
-            return logP;
-        } else if (logP == Double.NEGATIVE_INFINITY && m_fScale < 10 && !scaling.get().equals(Scaling.none)) { // && !m_likelihoodCore.getUseScaling()) {
-            m_nScale = 0;
-            m_fScale *= 1.01;
-            Log.warning.println("Turning on scaling to prevent numeric instability " + m_fScale);
-            likelihoodCore.setUseScaling(m_fScale);
-            likelihoodCore.unstore();
-            hasDirt = QuasiSpeciesTree.IS_FILTHY;
-            traverse((QuasiSpeciesNode) tree.getRoot());
-            calcLogP();
-            return logP;
-        }
         return logP;
     }
 
@@ -416,6 +484,9 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
         if (beagle != null) {
             return beagle.requiresRecalculation();
         }
+        // a private plan is not part of the model graph, so the framework does not check, store or restore it
+        if (ownsTraversalPlan)
+            traversalPlan.checkDirtiness();
         hasDirt = QuasiSpeciesTree.IS_CLEAN;
 
         if (alignment.isDirtyCalculation()) {
@@ -443,9 +514,14 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
         if (likelihoodCore != null) {
             likelihoodCore.store();
         }
+        if (ownsTraversalPlan)
+            traversalPlan.store();
         super.store();
         System.arraycopy(branchLengths, 0, storedBranchLengths, 0, branchLengths.length);
         System.arraycopy(rates, 0, storedRates, 0, rates.length);
+        System.arraycopy(rootPartials, 0, storedRootPartials, 0, rootPartials.length);
+        System.arraycopy(fastPathPending, 0, storedFastPathPending, 0, fastPathPending.length);
+        System.arraycopy(qsStartTimes, 0, storedQSStartTimes, 0, qsStartTimes.length);
     }
 
     @Override
@@ -458,6 +534,8 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
         if (likelihoodCore != null) {
             likelihoodCore.restore();
         }
+        if (ownsTraversalPlan)
+            traversalPlan.restore();
         super.restore();
         double[] tmp = branchLengths;
         branchLengths = storedBranchLengths;
@@ -465,6 +543,15 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
         tmp = rates;
         rates = storedRates;
         storedRates = tmp;
+        tmp = rootPartials;
+        rootPartials = storedRootPartials;
+        storedRootPartials = tmp;
+        tmp = qsStartTimes;
+        qsStartTimes = storedQSStartTimes;
+        storedQSStartTimes = tmp;
+        boolean[] tmpPending = fastPathPending;
+        fastPathPending = storedFastPathPending;
+        storedFastPathPending = tmpPending;
     }
 
     /**
@@ -489,8 +576,64 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
      * QS OWN FUNCTIONS
      */
 
-    /* Assumes there IS a branch rate model as opposed to traverse() */
-    int traverse(final QuasiSpeciesNode node){
+    /**
+     * Visits the nodes in post-order without recursion. If only the tree changed and the branch rates
+     * cannot have changed with it (strict clock), only the nodes on the paths from the changed nodes
+     * to the root are visited, otherwise all nodes are. The partials of the visited internal nodes are
+     * then calculated by the likelihood core in one go.
+     *
+     * @param root root of the tree
+     * @return the update flag of the root
+     */
+    int traverse(final QuasiSpeciesNode root) {
+        final TreeInterface tree = treeInput.get();
+        final boolean fullTraversal = hasDirt != QuasiSpeciesTree.IS_CLEAN
+                || !(branchRateModel instanceof StrictClockModel) || branchRateModel.isDirtyCalculation();
+        // tips changed by the fast path need the partials above them recomputed
+        for (int i = 0; i < leafNodeCount; i++) {
+            if (fastPathPending[i])
+                traversalSchedule.markDirty(i);
+        }
+        traversalSchedule.update(tree, fullTraversal);
+
+        final Node[] nodes = tree.getNodesAsArray();
+        final int[] schedule = traversalSchedule.getSchedule();
+        final int scheduleLength = traversalSchedule.getScheduleLength();
+        operationCount = 0;
+        try {
+            for (int k = 0; k < scheduleLength; k++) {
+                final int nodeNr = schedule[k];
+                nodeUpdates[nodeNr] = traverseNode((QuasiSpeciesNode) nodes[nodeNr]);
+            }
+
+            if (operationCount > 0) {
+                ((QuasiSpeciesBeerLikelihoodCore) likelihoodCore).calculateQSPartials(operations, operationCount, nodeCount);
+            }
+            // the root comes last in post-order, if its partials were recalculated include the root-orig branch!!!
+            if (operationCount > 0
+                    && operations[(operationCount - 1) * QuasiSpeciesBeerLikelihoodCore.OPERATION_SIZE] == root.getNr()) {
+                ((QuasiSpeciesBeerLikelihoodCore) likelihoodCore).calculateOriginRootPartials(root.getNr(), root.getContinuingHaploName(), nodeCount, rootPartials);
+                // integrate over all possible site categories and starting states
+                calculateOriginPatternLogLikelihoods(root);
+            }
+            return nodeUpdates[root.getNr()];
+        } finally {
+            // nodes not visited in the next step have to read as clean
+            for (int k = 0; k < scheduleLength; k++) {
+                nodeUpdates[schedule[k]] = QuasiSpeciesTree.IS_CLEAN;
+            }
+        }
+    }
+
+    /**
+     * Updates the transition probabilities of the branch above the node and, for internal nodes,
+     * queues the calculation of its partials if any of its children were updated.
+     * The children have to be visited before.
+     *
+     * @param node the node
+     * @return the update flag of the node
+     */
+    int traverseNode(final QuasiSpeciesNode node){
 
         QuasiSpeciesTree Tree = (QuasiSpeciesTree) treeInput.get();
 //        Double originHeight = origin.get().getValue();
@@ -499,19 +642,12 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
 
         final int nodeIndex = node.getNr();
 
-        final double branchRate = branchRateModel.getRateForBranch(node);
+        final double branchRate = getBranchRate(node);
 
 
         // get the branch length, if the node is a tip, the total branch length above is the sum of the
-        // branch lengths from the origin/attachment time to tip
-        final double totalBranchTime;
-        if (node.isLeaf())
-            totalBranchTime = node.getTotalBranchLengths();
-        else if (node.isRoot())
-//            totalBranchTime = originHeight - node.getHeight();
-            totalBranchTime = 0.0;
-        else
-            totalBranchTime = node.getLength();
+        // branch lengths from the origin/attachment time to tip, for the root this is 0
+        final double totalBranchTime = traversalPlan.getBranchTime(nodeIndex);
 
         final double branchTime =  totalBranchTime * branchRate;
 
@@ -525,7 +661,7 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
         // Update the transition probability for the partial branches (internal node to QS start)
         if (node.getHaploAboveName() != -1){
             int haploNr = node.getHaploAboveName();
-            double firstBranchingTime = ((QuasiSpeciesNode) Tree.getNode(haploNr)).getAttachmentTimesList()[0];
+            double firstBranchingTime = traversalPlan.getQSStartTime(haploNr);
             toyNode.setNr(nodeCount+haploNr);
             double partBranchRate = 0.0;
             double partBranchTime = 0.0;
@@ -533,7 +669,7 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
                 partBranchRate = 1;
                 partBranchTime = (node.getLength() - (firstBranchingTime - node.getHeight())) * partBranchRate;
             } else {
-                partBranchRate = branchRateModel.getRateForBranch(toyNode);
+                partBranchRate = getBranchRate(toyNode);
                 partBranchTime = (node.getLength() - (firstBranchingTime - node.getHeight())) * partBranchRate;
             }
             if (update != Tree.IS_CLEAN || partBranchTime != branchLengths[nodeCount + haploNr]) {
@@ -555,18 +691,17 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
         // First update the transition probability matrix(ices) for this branch
         // Update the transition probability for the branches that do not evolve
         // if the node is at tip, it holds the probability that the sequence does not change from the tip to the start of the haplo
+        if (node.isLeaf()) {
+            qsStartTimes[nodeIndex] = traversalPlan.getQSStartTime(nodeIndex);
+            // the tip factor was changed by the fast path, so the partials above it have to be recomputed
+            if (fastPathPending[nodeIndex]) {
+                fastPathPending[nodeIndex] = false;
+                update |= Tree.IS_DIRTY;
+            }
+        }
         if (node.isLeaf() && (update != Tree.IS_CLEAN  || branchTime != branchLengths[nodeIndex])){
             branchLengths[nodeIndex] = branchTime;
-            likelihoodCore.setNodeMatrixForUpdate(nodeIndex);
-            for (int i = 0; i < siteModel.getCategoryCount(); i++) {
-                final double jointBranchRate = siteModel.getRateForCategory(i, node) * branchRate;
-                // fill the transition probability matrix with move probabilities
-                Arrays.fill(probabilities, 0);
-                for (int j = 0; j < nStates; j++) {
-                    probabilities[j * (nStates + 1)] = Math.exp(totalBranchTime * jointBranchRate * rates[j]);
-                }
-                likelihoodCore.setNodeMatrix(nodeIndex, i, probabilities);
-            }
+            setTipNoChangeMatrix(node, totalBranchTime, branchRate);
             update |= Tree.IS_DIRTY;
         }
         //Update the transition probability matrix(ices) for all other branches
@@ -599,12 +734,12 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
         // If the node is internal, update the partial likelihoods.
         if (!node.isLeaf()) {
 
-            // Traverse down the two child nodes
+            // The two child nodes were visited before
             final Node child1 = node.getLeft(); //Two children
-            final int update1 = traverse((QuasiSpeciesNode) child1);
+            final int update1 = nodeUpdates[child1.getNr()];
 
             final Node child2 = node.getRight();
-            final int update2 = traverse((QuasiSpeciesNode) child2);
+            final int update2 = nodeUpdates[child2.getNr()];
 
             // If either child node was updated then update this node too
             if (update1 != Tree.IS_CLEAN || update2 != Tree.IS_CLEAN) {
@@ -624,70 +759,19 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
                     likelihoodCore.setNodeStatesForUpdate(nodeIndex);
 
                 if (siteModel.integrateAcrossCategories()) {
-                    //if (nStates == 4)
-                    //    ((QuasiSpeciesBeerLikelihoodCore4) likelihoodCore).calculateQSPartials(childNum1, childNum2, nodeIndex, child1QS, child2QS, child1parentQS, nodeCount);
-                    //else
-                        ((QuasiSpeciesBeerLikelihoodCore) likelihoodCore).calculateQSPartials(childNum1, childNum2, nodeIndex, child1QS, child2QS, child1parentQS, nodeCount);
+                    // calculated by the likelihood core together with the other visited nodes, see traverse()
+                    int v = operationCount * QuasiSpeciesBeerLikelihoodCore.OPERATION_SIZE;
+                    operations[v++] = nodeIndex;
+                    operations[v++] = childNum1;
+                    operations[v++] = childNum2;
+                    operations[v++] = child1QS;
+                    operations[v++] = child2QS;
+                    operations[v] = child1parentQS;
+                    operationCount++;
                 } else {
                     throw new RuntimeException("Error TreeLikelihood 632: Site categories not supported");
                     //m_pLikelihoodCore->calculatePartials(childNum1, childNum2, nodeNum, siteCategories);
                 }
-
-                if (node.isRoot()) {
-                    // This is the root of the beast.tree - there can be a root-origin branch
-
-//                    // if NO root-origin branch do the old likelihood calculation
-//                    if (Tree.originInput.get().getValue()==null){
-//                        // integrate over all possible site categories the sites can be in
-//                        final double[] proportions = siteModel.getCategoryProportions(node);
-//                        likelihoodCore.integratePartials(node.getNr(), proportions, rootPartials);
-//
-//                        if (constantPattern != null) { // && !SiteModel.g_bUseOriginal) {
-//                            double proportionInvariant = siteModel.getProportionInvariant();
-//                            // some portion of sites is invariant, so adjust root partials for this
-//                            for (final int i : constantPattern) {
-//                                rootPartials[i] += proportionInvariant;
-//                            }
-//                        }
-//
-//                        // calculate the pattern likelihoods
-//                        // integrate over all possible starting state
-//                        final double[] frequencies = //m_pFreqs.get().
-//                                substitutionModel.getFrequencies();
-//                        likelihoodCore.calculateLogLikelihoods(rootPartials, frequencies, patternLogLikelihoods);
-//                    }
-//                    // else continue the likelihood calculation up to the origin
-//                    else {
-                        // include the root-orig branch!!!
-
-                        //if (nStates == 4)
-                        //    ((QuasiSpeciesBeerLikelihoodCore4)likelihoodCore).calculateOriginRootPartials(nodeIndex, child1parentQS, nodeCount, rootPartials);
-                        //else
-                            ((QuasiSpeciesBeerLikelihoodCore)likelihoodCore).calculateOriginRootPartials(nodeIndex, child1parentQS, nodeCount, rootPartials);
-
-                        // integrate over all possible site categories the sites can be in
-                        final double[] proportions = siteModel.getCategoryProportions(node);
-                        //if (nStates == 4)
-                        //    ((QuasiSpeciesBeerLikelihoodCore4)likelihoodCore).integratePartials(rootPartials, proportions, originPartials);
-                        //else
-                            ((QuasiSpeciesBeerLikelihoodCore)likelihoodCore).integratePartials(rootPartials, proportions, originPartials);
-
-                        if (constantPattern != null) { // && !SiteModel.g_bUseOriginal) {
-                            proportionInvariant = siteModel.getProportionInvariant();
-                            // some portion of sites is invariant, so adjust root partials for this
-                            for (final int i : constantPattern) {
-                                originPartials[i] += proportionInvariant;
-                            }
-                        }
-
-                        // calculate the pattern likelihoods
-                        // integrate over all possible starting state
-                        final double[] frequencies = //m_pFreqs.get().
-                                substitutionModel.getFrequencies();
-                        likelihoodCore.calculateLogLikelihoods(originPartials, frequencies, patternLogLikelihoods);
-//                    }
-                }
-
             }
         }
         // if the tree has only one child
@@ -696,36 +780,139 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
 
                 final int child1parentQS = ((QuasiSpeciesNode) node).getContinuingHaploName();
 
-                //if (nStates == 4)
-                //    ((QuasiSpeciesBeerLikelihoodCore4)likelihoodCore).calculateOriginTipPartials(nodeIndex, child1parentQS, nodeCount, rootPartials);
-                //else
-                    ((QuasiSpeciesBeerLikelihoodCore)likelihoodCore).calculateOriginTipPartials(nodeIndex, child1parentQS, nodeCount, rootPartials);
-
-                // integrate over all possible site categories the sites can be in
-                final double[] proportions = siteModel.getCategoryProportions(node);
-                //if (nStates == 4)
-                //    ((QuasiSpeciesBeerLikelihoodCore4)likelihoodCore).integratePartials(rootPartials, proportions, originPartials);
-                //else
-                    ((QuasiSpeciesBeerLikelihoodCore)likelihoodCore).integratePartials(rootPartials, proportions, originPartials);
-
-                if (constantPattern != null) { // && !SiteModel.g_bUseOriginal) {
-                    proportionInvariant = siteModel.getProportionInvariant();
-                    // some portion of sites is invariant, so adjust root partials for this
-                    for (final int i : constantPattern) {
-                        originPartials[i] += proportionInvariant;
-                    }
-                }
+                ((QuasiSpeciesBeerLikelihoodCore)likelihoodCore).calculateOriginTipPartials(nodeIndex, child1parentQS, nodeCount, rootPartials);
 
-                // calculate the pattern likelihoods
-                // integrate over all possible starting state
-                final double[] frequencies = //m_pFreqs.get().
-                        substitutionModel.getFrequencies();
-                likelihoodCore.calculateLogLikelihoods(originPartials, frequencies, patternLogLikelihoods);
+                // integrate over all possible site categories and starting states
+                calculateOriginPatternLogLikelihoods(node);
             }
         }
         return update;
     }
 
+    /**
+     * @param node node, or the toy node numbered node count + haplotype number for the partial branch above a QS start
+     * @return the rate of the branch, taken from the traversal plan if it uses the same branch rate model
+     */
+    protected double getBranchRate(Node node) {
+        if (sharesBranchRates)
+            return traversalPlan.getBranchRate(node.getNr());
+        return branchRateModel.getRateForBranch(node);
+    }
+
+    /**
+     * Integrates the per-category partials at the origin (rootPartials) over the site categories
+     * and the starting states and stores the result in patternLogLikelihoods.
+     *
+     * @param root the root of the tree
+     */
+    protected void calculateOriginPatternLogLikelihoods(Node root) {
+        // integrate over all possible site categories the sites can be in
+        final double[] proportions = siteModel.getCategoryProportions(root);
+        ((QuasiSpeciesBeerLikelihoodCore)likelihoodCore).integratePartials(rootPartials, proportions, originPartials);
+
+        if (constantPattern != null) { // && !SiteModel.g_bUseOriginal) {
+            proportionInvariant = siteModel.getProportionInvariant();
+            // some portion of sites is invariant, so adjust root partials for this
+            for (final int i : constantPattern) {
+                originPartials[i] += proportionInvariant;
+            }
+        }
+
+        // calculate the pattern likelihoods
+        // integrate over all possible starting state
+        final double[] frequencies = //m_pFreqs.get().
+                substitutionModel.getFrequencies();
+        likelihoodCore.calculateLogLikelihoods(originPartials, frequencies, patternLogLikelihoods);
+    }
+
+    /**
+     * Sets the matrix holding the probability of no change on the QS branches of a tip
+     *
+     * @param node              the tip
+     * @param totalBranchTime   sum of the QS branch lengths of the haplotype at this tip
+     * @param branchRate        rate of the branch above the tip
+     */
+    protected void setTipNoChangeMatrix(QuasiSpeciesNode node, double totalBranchTime, double branchRate) {
+        final int nodeIndex = node.getNr();
+        likelihoodCore.setNodeMatrixForUpdate(nodeIndex);
+        for (int i = 0; i < siteModel.getCategoryCount(); i++) {
+            final double jointBranchRate = siteModel.getRateForCategory(i, node) * branchRate;
+            // fill the transition probability matrix with move probabilities
+            Arrays.fill(probabilities, 0);
+            for (int j = 0; j < nStates; j++) {
+                probabilities[j * (nStates + 1)] = Math.exp(totalBranchTime * jointBranchRate * rates[j]);
+            }
+            likelihoodCore.setNodeMatrix(nodeIndex, i, probabilities);
+        }
+    }
+
+    /**
+     * Checks whether the only change since the last evaluation are the attachment times of
+     * a single haplotype, not including its QS start, so that the attachment time fast path applies.
+     *
+     * @return the number of the tip carrying the changed haplotype, -1 if a full traversal is needed
+     */
+    protected int getAttachmentTimesOnlyTip() {
+        if (hasDirt != QuasiSpeciesTree.IS_CLEAN || tipStates == null || leafNodeCount < 2
+                || fastPathUpdateCount >= FAST_PATH_RESYNC_INTERVAL)
+            return -1;
+        // other rate models may renormalise all branch rates when a branch length changes
+        if (!(branchRateModel instanceof StrictClockModel) || branchRateModel.isDirtyCalculation())
+            return -1;
+
+        final int dirtyTip = traversalPlan.getSingleDirtyTip();
+        if (dirtyTip == -1 || !tipHasOnlyKnownStates[dirtyTip])
+            return -1;
+        // a move of the QS start changes the partial branch above it
+        if (traversalPlan.getQSStartTime(dirtyTip) != qsStartTimes[dirtyTip])
+            return -1;
+        return dirtyTip;
+    }
+
+    /**
+     * Attachment time fast path: updates the probability of no change at the tip and
+     * rescales the partials at the origin by the ratio of the new and old probability
+     * for each pattern and category, then recomputes the pattern likelihoods.
+     *
+     * @param node the tip whose haplotype attachment times changed
+     * @return true if the pattern likelihoods changed
+     */
+    protected boolean updateTipNoChangeFactor(QuasiSpeciesNode node) {
+        final int nodeIndex = node.getNr();
+        final double branchRate = getBranchRate(node);
+        final double totalBranchTime = traversalPlan.getBranchTime(nodeIndex);
+        final double branchTime = totalBranchTime * branchRate;
+        final double deltaBranchTime = branchTime - branchLengths[nodeIndex];
+        if (deltaBranchTime == 0.0)
+            return false;
+
+        // keep the tip matrix in the core up to date for the next full traversal
+        branchLengths[nodeIndex] = branchTime;
+        setTipNoChangeMatrix(node, totalBranchTime, branchRate);
+        fastPathPending[nodeIndex] = true;
+        fastPathUpdateCount++;
+
+        final int[] states = tipStates[nodeIndex];
+        final int patternCount = states.length;
+        int v = 0;
+        for (int i = 0; i < siteModel.getCategoryCount(); i++) {
+            final double jointDelta = deltaBranchTime * siteModel.getRateForCategory(i, node);
+            for (int j = 0; j < nStates; j++) {
+                noChangeFactors[j] = Math.exp(jointDelta * rates[j]);
+            }
+            for (int k = 0; k < patternCount; k++) {
+                final double factor = noChangeFactors[states[k]];
+                for (int j = 0; j < nStates; j++) {
+                    rootPartials[v + j] *= factor;
+                }
+                v += nStates;
+            }
+        }
+
+        calculateOriginPatternLogLikelihoods(treeInput.get().getRoot());
+        return true;
+    }
+
     /**
      * Function to subset full alignment to only sequences carried at tips in the
      * unique sequence tree
@@ -734,7 +921,7 @@ public class QuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
      * @param leafs leaf nodes of the unique-sequence tree
      * @return subsetted alignment
      */
-    public Alignment subset(Input<Alignment> data, List<Node> leafs){
+    public static Alignment subset(Input<Alignment> data, List<Node> leafs){
         Alignment fullData = data.get();
         int tipCount = leafs.size();
         ArrayList sequences = new ArrayList(tipCount);
@@ -51,6 +51,8 @@ public class QuasiSpeciesTreeLikelihood2 extends GenericTreeLikelihood {
 
     protected LikelihoodCore likelihoodCore;
     QuasiSpeciesBeagleTreeLikelihood beagle;
+    // false forces the java likelihood core, used when the engines are benchmarked against each other
+    boolean tryBeagle = true;
     protected SubstitutionModel substitutionModel;
     protected SiteModel.Base siteModel;
     protected BranchRateModel.Base branchRateModel;
@@ -87,6 +89,12 @@ public class QuasiSpeciesTreeLikelihood2 extends GenericTreeLikelihood {
 
     Node toyNode = new Node();
 
+    /**
+     * post-order schedule of the nodes to visit and the update flags of the visited nodes
+     */
+    protected QuasiSpeciesTraversalSchedule traversalSchedule;
+    protected int[] nodeUpdates;
+
 
     @Override
     public void initAndValidate(){
@@ -100,17 +108,19 @@ public class QuasiSpeciesTreeLikelihood2 extends GenericTreeLikelihood {
             alignment = dataInput.get();
         beagle = null;
         beagle = new QuasiSpeciesBeagleTreeLikelihood();
-        try {
-            beagle.initByName(
-                    "data", dataInput.get(), "tree", treeInput.get(), "siteModel", siteModelInput.get(),
-                    "branchRateModel", branchRateModelInput.get(), "useAmbiguities", useAmbiguities.get(),
-                    "useTipLikelihoods", useTipLikelihoods.get(),"scaling", scaling.get().toString());
-            if (beagle.beagle != null) {
-                //a Beagle instance was found, so we use it
-                return;
+        if (tryBeagle) {
+            try {
+                beagle.initByName(
+                        "data", dataInput.get(), "tree", treeInput.get(), "siteModel", siteModelInput.get(),
+                        "branchRateModel", branchRateModelInput.get(), "useAmbiguities", useAmbiguities.get(),
+                        "useTipLikelihoods", useTipLikelihoods.get(),"scaling", scaling.get().toString());
+                if (beagle.beagle != null) {
+                    //a Beagle instance was found, so we use it
+                    return;
+                }
+            } catch (Exception e) {
+                // ignore
             }
-        } catch (Exception e) {
-            // ignore
         }
         // No Beagle instance was found, so we use the good old java likelihood core
         beagle = null;
@@ -139,6 +149,8 @@ public class QuasiSpeciesTreeLikelihood2 extends GenericTreeLikelihood {
         // the entries corresponding to the node number + node count store the branch lengths above the QS origin, wherever this may be
         branchLengths = new double[nodeCount+leafNodeCount];
         storedBranchLengths = new double[nodeCount+leafNodeCount];
+        traversalSchedule = new QuasiSpeciesTraversalSchedule(nodeCount);
+        nodeUpdates = new int[nodeCount];
 
         int patterns = alignment.getPatternCount();
         if (nStates == 4) {
@@ -504,8 +516,45 @@ public class QuasiSpeciesTreeLikelihood2 extends GenericTreeLikelihood {
      * QS OWN FUNCTIONS
      */
 
-    /* Assumes there IS a branch rate model as opposed to traverse() */
-    int traverse(final QuasiSpeciesNode node){
+    /**
+     * Visits the nodes in post-order without recursion. If only the tree changed and the branch rates
+     * cannot have changed with it (strict clock), only the nodes on the paths from the changed nodes
+     * to the root are visited, otherwise all nodes are.
+     *
+     * @param root root of the tree
+     * @return the update flag of the root
+     */
+    int traverse(final QuasiSpeciesNode root) {
+        final TreeInterface tree = treeInput.get();
+        final boolean fullTraversal = hasDirt != Tree.IS_CLEAN
+                || !(branchRateModel instanceof StrictClockModel) || branchRateModel.isDirtyCalculation();
+        traversalSchedule.update(tree, fullTraversal);
+
+        final Node[] nodes = tree.getNodesAsArray();
+        final int[] schedule = traversalSchedule.getSchedule();
+        final int scheduleLength = traversalSchedule.getScheduleLength();
+        try {
+            for (int k = 0; k < scheduleLength; k++) {
+                final int nodeNr = schedule[k];
+                nodeUpdates[nodeNr] = traverseNode((QuasiSpeciesNode) nodes[nodeNr]);
+            }
+            return nodeUpdates[root.getNr()];
+        } finally {
+            // nodes not visited in the next step have to read as clean
+            for (int k = 0; k < scheduleLength; k++) {
+                nodeUpdates[schedule[k]] = Tree.IS_CLEAN;
+            }
+        }
+    }
+
+    /**
+     * Updates the transition probabilities of the branch above the node and, for internal nodes,
+     * its partials if the node or any of its children were updated. The children have to be visited before.
+     *
+     * @param node the node
+     * @return the update flag of the node
+     */
+    int traverseNode(final QuasiSpeciesNode node){
 
         QuasiSpeciesTree tree = (QuasiSpeciesTree) treeInput.get();
 
@@ -620,12 +669,12 @@ public class QuasiSpeciesTreeLikelihood2 extends GenericTreeLikelihood {
         // If the node is internal, update the partial likelihoods.
         if (!node.isLeaf()) {
 
-            // Traverse down the two child nodes
+            // The two child nodes were visited before
             final Node child1 = node.getLeft(); //Two children
-            final int update1 = traverse((QuasiSpeciesNode) child1);
+            final int update1 = nodeUpdates[child1.getNr()];
 
             final Node child2 = node.getRight();
-            final int update2 = traverse((QuasiSpeciesNode) child2);
+            final int update2 = nodeUpdates[child2.getNr()];
 
             // If either child node was updated then update this node too
             if (update1 != Tree.IS_CLEAN || update2 != Tree.IS_CLEAN || update != Tree.IS_CLEAN) {
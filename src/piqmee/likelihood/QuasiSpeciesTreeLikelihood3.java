@@ -44,7 +44,8 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
 
     final public Input<Frequencies> rootFrequenciesInput =
             new Input<>("rootFrequencies", "prior state frequencies at root, optional", Input.Validate.OPTIONAL);
-    final public Input<Double> toleranceInput = new Input<>("tolerance", "tolerance on branch length times branch rate. If non-zero, this quantity will be deemed the same as less than tolerance, and speed things up", 0.0);
+    final public Input<Double> toleranceInput = new Input<>("tolerance", "tolerance on branch length times branch rate. If non-zero, this quantity will be deemed the same as less than tolerance, and speed things up. " +
+            "The differences ignored are tracked and an exact evaluation is forced regularly", 0.0);
 
 
     /**
@@ -95,6 +96,8 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
      * memory allocation for the root partials *
      */
     protected double[] m_fRootPartials, rawRootPartials;
+    /** per pattern maximum over the categories of the accumulated log leaf scale factors, see integratePartials **/
+    protected double[] logLeafScaleShifts;
     
     /** **/
     protected double[] accumulatedLogLeafScaleFactors;
@@ -103,6 +106,13 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
     protected int[] storedLeafIndex;
     protected double[][][] leafLogScaleFactors;
     private double [] logProbabilities;
+
+    /**
+     * accumulatedLogLeafScaleFactors is maintained incrementally as leaves are updated;
+     * after this many leaf updates it is re-summed from scratch to bound round-off drift
+     */
+    protected static final int LEAF_SCALE_RESYNC_INTERVAL = 10000;
+    protected int leafScaleUpdateCount;
     
     /**
      * memory allocation for probability tables obtained from the SiteModel *
@@ -133,8 +143,26 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
     public void setConstantPattern(List<Integer> constantPattern) {this.constantPattern = constantPattern;}
 
     protected double tolerance = 0;
+    /**
+     * Approximate updates: a branch whose branch time changed by less than the tolerance keeps its
+     * cached transition probabilities (or leaf scale factors). skippedError sums the differences
+     * ignored since the last exact evaluation, which is forced once it exceeds the tolerance per node
+     * or after TOLERANCE_REFRESH_INTERVAL evaluations.
+     */
+    protected static final int TOLERANCE_REFRESH_INTERVAL = 1000;
+    protected double skippedError = 0;
+    protected double storedSkippedError = 0;
+    protected int toleranceEvaluationCount = 0;
+    protected int storedToleranceEvaluationCount = 0;
+    protected boolean exactRefresh = false;
     Node toyNode = new Node();
 
+    /**
+     * post-order schedule of the nodes to visit and the update flags of the visited nodes
+     */
+    protected QuasiSpeciesTraversalSchedule traversalSchedule;
+    protected int[] nodeUpdates;
+
     @Override
     public void initAndValidate() {
         // sanity check: alignment should have same #taxa as tree
@@ -179,6 +207,8 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
         }
         m_branchLengths = new double[nodeCount + leafNodeCount];
         storedBranchLengths = new double[nodeCount + leafNodeCount];
+        traversalSchedule = new QuasiSpeciesTraversalSchedule(nodeCount);
+        nodeUpdates = new int[nodeCount];
 
         stateCount = alignment.getMaxStateCount();
         int patterns = alignment.getPatternCount();
@@ -201,6 +231,7 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
         patternLogLikelihoods = new double[patterns];
         m_fRootPartials = new double[patterns * stateCount];
         rawRootPartials = new double[patterns * stateCount * m_siteModel.getCategoryCount()];
+        logLeafScaleShifts = new double[patterns];
         matrixSize = (stateCount + 1) * (stateCount + 1);
         probabilities = new double[(stateCount + 1) * (stateCount + 1)];
         Arrays.fill(probabilities, 1.0);
@@ -303,11 +334,12 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
             Arrays.fill(isInvariant, true);
             for (final int state : pattern) {
                 final boolean[] isStateSet = alignment.getStateSet(state);
-//                if (m_useAmbiguities.get() || !alignment.getDataType().isAmbiguousCode(state)) {
-//                    for (int k = 0; k < stateCount; k++) {
-//                        isInvariant[k] &= isStateSet[k];
-//                    }
-//                }
+                // ambiguities are not handled, so ambiguous states do not break the invariance
+                if (!alignment.getDataType().isAmbiguousState(state)) {
+                    for (int k = 0; k < stateCount; k++) {
+                        isInvariant[k] &= isStateSet[k];
+                    }
+                }
             }
             for (int k = 0; k < stateCount; k++) {
                 if (isInvariant[k]) {
@@ -451,6 +483,8 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
         
         final TreeInterface tree = treeInput.get();
 
+        exactRefresh = tolerance > 0 && (skippedError > tolerance * nodeCount
+                || toleranceEvaluationCount >= TOLERANCE_REFRESH_INTERVAL);
         try {
         	if (traverse((QuasiSpeciesNode)tree.getRoot()) != Tree.IS_CLEAN)
         		calcLogP();
@@ -458,6 +492,13 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
         catch (ArithmeticException e) {
         	return Double.NEGATIVE_INFINITY;
         }
+        if (exactRefresh) {
+            skippedError = 0;
+            toleranceEvaluationCount = 0;
+            exactRefresh = false;
+        } else if (tolerance > 0) {
+            toleranceEvaluationCount++;
+        }
         m_nScale++;
         if (logP > 0 || (likelihoodCore.getUseScaling() && m_nScale > X)) {
 //            System.err.println("Switch off scaling");
@@ -483,20 +524,32 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
     }
 
     void calcLogP() {
-    	
-    	accumulateLogLeafScale();
+
+        if (leafScaleUpdateCount > LEAF_SCALE_RESYNC_INTERVAL) {
+            accumulateLogLeafScale();
+        }
     	
     	Node root = treeInput.get().getRoot();
         final double[] proportions = m_siteModel.getCategoryProportions(root);
         
         likelihoodCore.getNodePartials(root.getNr(), rawRootPartials);
+        calculateLogLeafScaleShifts(patternLogLikelihoods.length, proportions.length);
+        if (constantPattern != null) {
+            proportionInvariant = m_siteModel.getProportionInvariant();
+            if (proportionInvariant > 0) {
+                // the invariant category of a constant pattern has a leaf factor of 1, so its partials are
+                // not shifted below it; the variable patterns keep their shift against underflow
+                for (final int i : constantPattern) {
+                    logLeafScaleShifts[i / stateCount] = Math.max(logLeafScaleShifts[i / stateCount], 0.0);
+                }
+            }
+        }
         integratePartials(rawRootPartials, proportions, m_fRootPartials, patternLogLikelihoods.length, proportions.length);
 
         if (constantPattern != null) { // && !SiteModel.g_bUseOriginal) {
-            proportionInvariant = m_siteModel.getProportionInvariant();
             // some portion of sites is invariant, so adjust root partials for this
             for (final int i : constantPattern) {
-                m_fRootPartials[i] += proportionInvariant;
+                m_fRootPartials[i] += proportionInvariant * Math.exp(-logLeafScaleShifts[i / stateCount]);
             }
         }
 
@@ -522,7 +575,25 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
 
     
     /**
-     * Integrates partials across categories.
+     * Sets logLeafScaleShifts to the maximum of the accumulated log leaf scale factors over the categories of each pattern.
+     */
+    protected void calculateLogLeafScaleShifts(final int nrOfPatterns, final int nrOfMatrices) {
+        System.arraycopy(accumulatedLogLeafScaleFactors, 0, logLeafScaleShifts, 0, nrOfPatterns);
+        for (int l = 1; l < nrOfMatrices; l++) {
+            final int w = l * nrOfPatterns;
+            for (int k = 0; k < nrOfPatterns; k++) {
+                if (accumulatedLogLeafScaleFactors[w + k] > logLeafScaleShifts[k]) {
+                    logLeafScaleShifts[k] = accumulatedLogLeafScaleFactors[w + k];
+                }
+            }
+        }
+    }
+
+    /**
+     * Integrates partials across categories, including the probability of no change at the leaves.
+     * The leaf factors are applied in log space shifted by logLeafScaleShifts (log-sum-exp), so the
+     * largest factor of a pattern is 1 and the sum cannot underflow; the shift is added back to the
+     * pattern log likelihood in calculateLogLikelihoods.
      *
      * @param inPartials  the array of partials to be integrated
      * @param proportions the proportions of sites in each category
@@ -531,27 +602,18 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
 	protected void integratePartials(double[] inPartials, double[] proportions, double[] outPartials, 
 			final int nrOfPatterns, final int nrOfMatrices) {
 
-        int u = 0;
+        Arrays.fill(outPartials, 0, nrOfPatterns * stateCount, 0.0);
         int v = 0;
-        for (int k = 0; k < nrOfPatterns; k++) {
-
-            for (int i = 0; i < stateCount; i++) {
-
-                outPartials[u] = inPartials[v] * proportions[0];
-                u++;
-                v++;
-            }
-        }
-
-
-        for (int l = 1; l < nrOfMatrices; l++) {
-            u = 0;
+        for (int l = 0; l < nrOfMatrices; l++) {
+            int u = 0;
+            final int w = l * nrOfPatterns;
 
             for (int k = 0; k < nrOfPatterns; k++) {
+                final double weight = proportions[l] * Math.exp(accumulatedLogLeafScaleFactors[w + k] - logLeafScaleShifts[k]);
 
                 for (int i = 0; i < stateCount; i++) {
-                	// TODO: deal with underflows of Math.exp
-                    outPartials[u] += inPartials[v] * proportions[l] * Math.exp(accumulatedLogLeafScaleFactors[u]);
+
+                    outPartials[u] += inPartials[v] * weight;
                     u++;
                     v++;
                 }
@@ -570,7 +632,7 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
                 sum += frequencies[i] * partials[v];
                 v++;
             }
-            outLogLikelihoods[k] = Math.log(sum) + likelihoodCore.getLogScalingFactor(k);
+            outLogLikelihoods[k] = Math.log(sum) + logLeafScaleShifts[k] + likelihoodCore.getLogScalingFactor(k);
         }
     }
 
@@ -601,8 +663,46 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
         }
     }
     
-    /* Assumes there IS a branch rate model as opposed to traverse() */
-    int traverse(final QuasiSpeciesNode node){
+    /**
+     * Visits the nodes in post-order without recursion. If only the tree changed and the branch rates
+     * cannot have changed with it (strict clock), only the nodes on the paths from the changed nodes
+     * to the root are visited, otherwise all nodes are.
+     *
+     * @param root root of the tree
+     * @return the update flag of the root
+     */
+    int traverse(final QuasiSpeciesNode root) {
+        final TreeInterface tree = treeInput.get();
+        // an exact refresh has to visit the branches skipped in earlier steps as well
+        final boolean fullTraversal = hasDirt != Tree.IS_CLEAN || exactRefresh
+                || !(branchRateModel instanceof StrictClockModel) || branchRateModel.isDirtyCalculation();
+        traversalSchedule.update(tree, fullTraversal);
+
+        final Node[] nodes = tree.getNodesAsArray();
+        final int[] schedule = traversalSchedule.getSchedule();
+        final int scheduleLength = traversalSchedule.getScheduleLength();
+        try {
+            for (int k = 0; k < scheduleLength; k++) {
+                final int nodeNr = schedule[k];
+                nodeUpdates[nodeNr] = traverseNode((QuasiSpeciesNode) nodes[nodeNr]);
+            }
+            return nodeUpdates[root.getNr()];
+        } finally {
+            // nodes not visited in the next step have to read as clean
+            for (int k = 0; k < scheduleLength; k++) {
+                nodeUpdates[schedule[k]] = Tree.IS_CLEAN;
+            }
+        }
+    }
+
+    /**
+     * Updates the transition probabilities of the branch above the node and, for internal nodes,
+     * its partials if the node or any of its children were updated. The children have to be visited before.
+     *
+     * @param node the node
+     * @return the update flag of the node
+     */
+    int traverseNode(final QuasiSpeciesNode node){
 
         QuasiSpeciesTree tree = (QuasiSpeciesTree) treeInput.get();
 
@@ -624,7 +724,20 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
         else
             totalBranchTime = node.getLengthWithoutHaplo();
 
-        final double branchTime =  totalBranchTime * branchRate;
+        double branchTime =  totalBranchTime * branchRate;
+
+        // approximate update: if the only change is a branch time difference below the tolerance, keep the
+        // cached values and treat the node as clean. Topology or site model changes are always exact, and so
+        // are nodes with a QS start above them, as the partial branch would need the same treatment.
+        if (update == Tree.IS_DIRTY && hasDirt == Tree.IS_CLEAN && tolerance > 0 && !exactRefresh
+                && node.getHaploAboveName() == -1) {
+            final double error = Math.abs(branchTime - m_branchLengths[nodeIndex]);
+            if (error < tolerance) {
+                skippedError += error;
+                branchTime = m_branchLengths[nodeIndex];
+                update = Tree.IS_CLEAN;
+            }
+        }
 
         // also check if the haplotype starts just above the node
         //  if YES, then have to split the branch into part that evolves normally and a part that does not evolve
@@ -718,12 +831,12 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
         // If the node is internal, update the partial likelihoods.
         if (!node.isLeaf()) {
 
-            // Traverse down the two child nodes
+            // The two child nodes were visited before
             final Node child1 = node.getLeft(); //Two children
-            final int update1 = traverse((QuasiSpeciesNode) child1);
+            final int update1 = nodeUpdates[child1.getNr()];
 
             final Node child2 = node.getRight();
-            final int update2 = traverse((QuasiSpeciesNode) child2);
+            final int update2 = nodeUpdates[child2.getNr()];
 
             // If either child node was updated then update this node too
             if (update1 != Tree.IS_CLEAN || update2 != Tree.IS_CLEAN || update != Tree.IS_CLEAN) {
@@ -782,8 +895,14 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
 
 
 
+    /**
+     * Computes the log scale factors of the leaf into the buffer selected by setLeafScaleForUpdate
+     * and replaces the leaf's previous contribution to accumulatedLogLeafScaleFactors by the new one,
+     * so that a single leaf update costs O(patterns x categories).
+     */
     private void calculateLogLeafScale(int nodeIndex, double[] logProbabilities) {
     	double [] current = leafLogScaleFactors[leafIndex[nodeIndex]][nodeIndex];
+    	double [] previous = leafLogScaleFactors[1 - leafIndex[nodeIndex]][nodeIndex];
     	int [] states = this.states[nodeIndex];
     	int patternCount = states.length;
     	int v = 0;
@@ -793,14 +912,20 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
     	for (int i = 0; i < categoryCount; i++) {
     		for (int j = 0; j < patternCount; j++) {
     			int state = states[j];
-    			current[w++] = logProbabilities[v+state];
+    			current[w] = logProbabilities[v+state];
+    			accumulatedLogLeafScaleFactors[w] += current[w] - previous[w];
+    			w++;
     		}
     		v = v + stateCount;
     	}
-		
+    	leafScaleUpdateCount++;
 	}
     
     
+    /**
+     * Re-sums accumulatedLogLeafScaleFactors exactly over all leaves,
+     * removing any drift from the incremental updates in calculateLogLeafScale.
+     */
     private void accumulateLogLeafScale() {
 		Arrays.fill(accumulatedLogLeafScaleFactors, 0.0);
 		final int n = accumulatedLogLeafScaleFactors.length;
@@ -811,6 +936,7 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
 				accumulatedLogLeafScaleFactors[i] += x[i];
 			}
 		}
+		leafScaleUpdateCount = 0;
     }
     
 	private void setLeafScaleForUpdate(int nodeIndex) {
@@ -867,6 +993,8 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
         System.arraycopy(accumulatedLogLeafScaleFactors, 0, storedAccumulatedLogLeafScaleFactors, 0, accumulatedLogLeafScaleFactors.length);
         System.arraycopy(leafIndex, 0, storedLeafIndex, 0, leafIndex.length);
         System.arraycopy(rates, 0, storedRates, 0, rates.length);
+        storedSkippedError = skippedError;
+        storedToleranceEvaluationCount = toleranceEvaluationCount;
 
     }
 
@@ -889,6 +1017,9 @@ public class QuasiSpeciesTreeLikelihood3 extends GenericTreeLikelihood {
         tmp = rates; rates = storedRates; storedRates = tmp;
 
         int[] tmp2 = leafIndex; leafIndex = storedLeafIndex; storedLeafIndex = tmp2; 
+
+        skippedError = storedSkippedError;
+        toleranceEvaluationCount = storedToleranceEvaluationCount;
     }
 
     /**
@@ -0,0 +1,272 @@
+package piqmee.likelihood;
+
+import beast.core.BEASTInterface;
+import beast.core.Description;
+import beast.core.Input;
+import beast.core.State;
+import beast.core.util.Log;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.alignment.FilteredAlignment;
+import beast.evolution.branchratemodel.BranchRateModel;
+import beast.evolution.branchratemodel.StrictClockModel;
+import beast.evolution.likelihood.GenericTreeLikelihood;
+import beast.evolution.substitutionmodel.SubstitutionModel;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Splits the site patterns of the (haplotype-subsetted) alignment into chunks,
+ * each evaluated by its own QuasiSpeciesTreeLikelihood on a thread pool shared by all instances.
+ */
+@Description("Calculates the probability of sequence data on a beast.piqmee.tree " +
+        "given a site and substitution model by splitting the site patterns into chunks " +
+        "that are evaluated by a QuasiSpeciesTreeLikelihood each, in parallel threads.")
+public class ThreadedQuasiSpeciesTreeLikelihood extends GenericTreeLikelihood {
+
+    final public Input<Integer> threadsInput = new Input<>("threads", "maximum number of threads to use, " +
+            "if less than 1 the number of available processors is used (default -1)", -1);
+    final public Input<Boolean> useAmbiguities = new Input<>("useAmbiguities", "flag to indicate that sites containing ambiguous states should be handled instead of ignored (the default)", false);
+    final public Input<Boolean> useTipLikelihoods = new Input<>("useTipLikelihoods", "flag to indicate that partial likelihoods are provided at the tips", false);
+    final public Input<QuasiSpeciesTreeLikelihood.Scaling> scaling = new Input<>("scaling", "type of scaling to use, one of "
+            + Arrays.toString(QuasiSpeciesTreeLikelihood.Scaling.values()) + ". If not specified, the -beagle_scaling flag is used.",
+            QuasiSpeciesTreeLikelihood.Scaling._default, QuasiSpeciesTreeLikelihood.Scaling.values());
+
+    /** private list of likelihoods, to notify framework of the likelihoods being created in initAndValidate() **/
+    final private Input<List<QuasiSpeciesTreeLikelihood>> likelihoodsInput = new Input<>("*", "", new ArrayList<>());
+
+    protected QuasiSpeciesTreeLikelihood[] chunkLikelihoods;
+    protected QuasiSpeciesTraversalPlan traversalPlan;
+    protected double[] chunkLogP;
+    protected ExecutorService pool = null;
+    /** shared by all instances; idle threads end by themselves, so nothing is left behind by discarded instances **/
+    private static ExecutorService sharedPool = null;
+    protected List<Future<?>> futures;
+    Alignment alignment;
+
+    @Override
+    public void initAndValidate() {
+        // subset the alignment to the haplotypes in the tree before splitting it up
+        if (dataInput.get().getTaxonCount() != treeInput.get().getLeafNodeCount())
+            alignment = QuasiSpeciesTreeLikelihood.subset(dataInput, treeInput.get().getExternalNodes());
+        else
+            alignment = dataInput.get();
+
+        int threadCount = threadsInput.get();
+        if (threadCount < 1)
+            threadCount = Runtime.getRuntime().availableProcessors();
+        threadCount = Math.max(1, Math.min(threadCount, alignment.getPatternCount()));
+        if (threadCount > 1 && (alignment.isAscertained
+                || (alignment instanceof FilteredAlignment && ((FilteredAlignment) alignment).constantSiteWeightsInput.get() != null))) {
+            Log.warning.println(getClass().getSimpleName() + "(" + getID() + "): ascertained alignments and " +
+                    "constant site weights are not split up, using a single thread.");
+            threadCount = 1;
+        }
+
+        // all chunks share the tree, so the tree dependent part is computed once for all of them
+        BranchRateModel.Base branchRateModel = branchRateModelInput.get();
+        if (branchRateModel == null)
+            branchRateModel = new StrictClockModel();
+        traversalPlan = new QuasiSpeciesTraversalPlan();
+        traversalPlan.setID(getID() + "_traversalPlan");
+        traversalPlan.initByName("tree", treeInput.get(), "branchRateModel", branchRateModel);
+
+        chunkLikelihoods = new QuasiSpeciesTreeLikelihood[threadCount];
+        chunkLogP = new double[threadCount];
+        final int patternCount = alignment.getPatternCount();
+        for (int i = 0; i < threadCount; i++) {
+            Alignment chunk = alignment;
+            if (threadCount > 1) {
+                chunk = new FilteredAlignment();
+                chunk.setID(getID() + "_data_" + i);
+                chunk.initByName("data", alignment,
+                        "filter", getFilterSpec(patternCount * i / threadCount, patternCount * (i + 1) / threadCount));
+            }
+            QuasiSpeciesTreeLikelihood likelihood = new QuasiSpeciesTreeLikelihood();
+            // a BEAGLE instance per chunk would neither use the shared plan nor fill the pattern log likelihoods
+            likelihood.tryBeagle = false;
+            likelihood.setID(getID() + "_" + i);
+            likelihood.getOutputs().add(this);
+            likelihoodsInput.get().add(likelihood);
+            // substitution models cache intermediate results, so each thread needs its own copy
+            likelihood.initByName("data", chunk, "tree", treeInput.get(),
+                    "siteModel", i == 0 ? siteModelInput.get() : duplicate((BEASTInterface) siteModelInput.get(), i),
+                    "branchRateModel", branchRateModel, "traversalPlan", traversalPlan,
+                    "useAmbiguities", useAmbiguities.get(), "useTipLikelihoods", useTipLikelihoods.get(),
+                    "scaling", scaling.get());
+            chunkLikelihoods[i] = likelihood;
+        }
+
+        if (threadCount > 1) {
+            pool = getSharedPool();
+            futures = new ArrayList<>(threadCount - 1);
+        }
+        Log.info.println(getClass().getSimpleName() + "(" + getID() + ") uses " + threadCount + " thread(s) for "
+                + patternCount + " patterns");
+    }
+
+    /**
+     * @return the thread pool shared by all instances, which grows to the number of chunks evaluated
+     * in parallel and lets threads idle for a minute end
+     */
+    protected static synchronized ExecutorService getSharedPool() {
+        if (sharedPool == null) {
+            sharedPool = Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "ThreadedQuasiSpeciesTreeLikelihood");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+        return sharedPool;
+    }
+
+    /**
+     * Build a FilteredAlignment filter selecting all sites belonging to the patterns [fromPattern, toPattern)
+     *
+     * @param fromPattern first pattern of the chunk
+     * @param toPattern   first pattern after the chunk
+     * @return filter specification of 1-based site ranges
+     */
+    protected String getFilterSpec(int fromPattern, int toPattern) {
+        StringBuilder filter = new StringBuilder();
+        int rangeStart = -1;
+        final int siteCount = alignment.getSiteCount();
+        for (int site = 0; site <= siteCount; site++) {
+            final boolean inChunk;
+            if (site < siteCount) {
+                final int pattern = alignment.getPatternIndex(site);
+                inChunk = pattern >= fromPattern && pattern < toPattern;
+            } else
+                inChunk = false;
+            if (inChunk && rangeStart == -1) {
+                rangeStart = site;
+            } else if (!inChunk && rangeStart != -1) {
+                if (filter.length() > 0)
+                    filter.append(',');
+                filter.append(rangeStart + 1).append('-').append(site);
+                rangeStart = -1;
+            }
+        }
+        return filter.toString();
+    }
+
+    /**
+     * Create a new instance of the src object, connecting all inputs of the src object
+     * Substitution models are duplicated as well, state nodes and everything else are shared.
+     *
+     * @param src object to be copied
+     * @param i   index used to extend the ID with
+     * @return copy of src object
+     */
+    protected BEASTInterface duplicate(BEASTInterface src, int i) {
+        if (src == null)
+            return null;
+        BEASTInterface copy;
+        try {
+            copy = src.getClass().getDeclaredConstructor().newInstance();
+        } catch (ReflectiveOperationException e) {
+            throw new RuntimeException("Every object in the model should have a public default constructor: " + src.getClass().getName(), e);
+        }
+        copy.setID(src.getID() + "_" + i);
+        for (Input<?> input : src.listInputs()) {
+            if (input.get() == null)
+                continue;
+            if (input.get() instanceof List) {
+                for (Object o : (List<?>) input.get())
+                    copy.setInputValue(input.getName(), o);
+            } else if (input.get() instanceof SubstitutionModel) {
+                copy.setInputValue(input.getName(), duplicate((BEASTInterface) input.get(), i));
+            } else {
+                copy.setInputValue(input.getName(), input.get());
+            }
+        }
+        copy.initAndValidate();
+        return copy;
+    }
+
+    @Override
+    public double calculateLogP() {
+        if (pool == null) {
+            logP = chunkLikelihoods[0].calculateLogP();
+            return logP;
+        }
+        // bring the shared plan up to date before the threads start, instead of having them wait for it
+        traversalPlan.prepare();
+        // the calling thread evaluates the first chunk itself
+        futures.clear();
+        for (int i = 1; i < chunkLikelihoods.length; i++) {
+            final int chunk = i;
+            futures.add(pool.submit(() -> {
+                chunkLogP[chunk] = chunkLikelihoods[chunk].calculateLogP();
+            }));
+        }
+        chunkLogP[0] = chunkLikelihoods[0].calculateLogP();
+        try {
+            for (Future<?> future : futures)
+                future.get();
+        } catch (Exception e) {
+            throw new RuntimeException("ThreadedQuasiSpeciesTreeLikelihood: failed to evaluate a pattern chunk", e);
+        }
+
+        logP = 0.0;
+        for (double chunkValue : chunkLogP)
+            logP += chunkValue;
+        return logP;
+    }
+
+    /* return copy of pattern log likelihoods for each of the patterns in the chunks, in chunk order */
+    public double[] getPatternLogLikelihoods() {
+        double[] patternLogLikelihoods = new double[alignment.getPatternCount()];
+        int k = 0;
+        for (QuasiSpeciesTreeLikelihood likelihood : chunkLikelihoods) {
+            System.arraycopy(likelihood.patternLogLikelihoods, 0, patternLogLikelihoods, k, likelihood.patternLogLikelihoods.length);
+            k += likelihood.patternLogLikelihoods.length;
+        }
+        return patternLogLikelihoods;
+    }
+
+    /**
+     * This method samples the sequences based on the tree and site model.
+     */
+    @Override
+    public void sample(State state, Random random) {
+        throw new UnsupportedOperationException("Can't sample a fixed alignment!");
+    }
+
+    /** CalculationNode methods **/
+
+    /**
+     * The chunk likelihoods are calculation nodes on their own, so they are
+     * stored and restored by the framework; recalculate if any of them is dirty.
+     */
+    @Override
+    protected boolean requiresRecalculation() {
+        boolean requiresRecalculation = false;
+        for (QuasiSpeciesTreeLikelihood likelihood : chunkLikelihoods)
+            requiresRecalculation |= likelihood.isDirtyCalculation();
+        return requiresRecalculation;
+    }
+
+    /**
+     * @return a list of unique ids for the state nodes that form the argument
+     */
+    @Override
+    public List<String> getArguments() {
+        return Collections.singletonList(dataInput.get().getID());
+    }
+
+    /**
+     * @return a list of unique ids for the state nodes that make up the conditions
+     */
+    @Override
+    public List<String> getConditions() {
+        return chunkLikelihoods[0].getConditions();
+    }
+
+}
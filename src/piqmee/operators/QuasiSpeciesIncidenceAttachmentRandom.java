@@ -4,7 +4,6 @@ import beast.core.Description;
 import beast.util.Randomizer;
 import piqmee.tree.QuasiSpeciesIncidence;
 
-import java.util.ArrayList;
 import java.util.concurrent.ThreadLocalRandom;
 
 /**
@@ -45,38 +44,36 @@ public class QuasiSpeciesIncidenceAttachmentRandom extends QuasiSpeciesTreeOpera
         QuasiSpeciesIncidence randIncidence = incidences[randIncIdx];
 
         // choose random attachment time from incidence
-        ArrayList<Double> attachmentTimes = randIncidence.getAttachmentTimes();
-        int randAttIdx = Randomizer.nextInt(attachmentTimes.size());
+        int attachmentTimeCount = randIncidence.getAttachmentTimeCount();
+        int randAttIdx = Randomizer.nextInt(attachmentTimeCount);
 
         // choose random interval: lower bound = random, upper bound = next time above lower bound
         int minIdx = -1;
         // randomly choose lower bound != selected attachment time
         while (minIdx == -1 || minIdx == randAttIdx)
-            minIdx = Randomizer.nextInt(attachmentTimes.size() - 1);
+            minIdx = Randomizer.nextInt(attachmentTimeCount - 1);
         int maxIdx = minIdx + 1;
-        double tMin = attachmentTimes.get(minIdx);
-        double tMax = attachmentTimes.get(maxIdx);
+        double tMin = randIncidence.getAttachmentTime(minIdx);
+        double tMax = randIncidence.getAttachmentTime(maxIdx);
 
         // randomly choose new time in interval
         double newTime = ThreadLocalRandom.current().nextDouble(tMin, tMax);
 
         // if attachment time already exists, put between bounds
-        if (attachmentTimes.contains(newTime))
+        if (randIncidence.indexOf(newTime) >= 0)
             newTime = (tMax + tMin) / 2;
 
         // pick interval around selected incidence
         int oldMinIdx = randAttIdx == 0 ? 0 : randAttIdx - 1;
-        int oldMaxIdx = randAttIdx == attachmentTimes.size() - 1 ? attachmentTimes.size() - 1 : randAttIdx + 1;
-        double oldTmin = attachmentTimes.get(oldMinIdx);
-        double oldTmax = attachmentTimes.get(oldMaxIdx);
+        int oldMaxIdx = randAttIdx == attachmentTimeCount - 1 ? attachmentTimeCount - 1 : randAttIdx + 1;
+        double oldTmin = randIncidence.getAttachmentTime(oldMinIdx);
+        double oldTmax = randIncidence.getAttachmentTime(oldMaxIdx);
 
         // set new attachment time
-        randIncidence.setOldTimeOfChangedCopy(attachmentTimes.get(randAttIdx));
-        attachmentTimes.set(randAttIdx, newTime);
+        randIncidence.setOldTimeOfChangedCopy(randIncidence.getAttachmentTime(randAttIdx));
+        randIncidence.moveAttachmentTime(randAttIdx, newTime);
         randIncidence.setNewTimeOfChangedCopy(newTime);
 
-        randIncidence.setAttachmentTimes(attachmentTimes);
-
         // return log Hastings ratio
         return -Math.log(oldTmax - oldTmin) + Math.log(tMax - tMin);
     }
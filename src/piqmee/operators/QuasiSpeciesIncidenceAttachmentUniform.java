@@ -4,7 +4,6 @@ import beast.core.Description;
 import beast.util.Randomizer;
 import piqmee.tree.QuasiSpeciesIncidence;
 
-import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.ThreadLocalRandom;
 
@@ -45,28 +44,26 @@ public class QuasiSpeciesIncidenceAttachmentUniform extends QuasiSpeciesTreeOper
         QuasiSpeciesIncidence randIncidence = incidences[randIncIdx];
 
         // choose random attachment time from incidence
-        ArrayList<Double> attachmentTimes = randIncidence.getAttachmentTimes();
-        int randAttIdx = Randomizer.nextInt(attachmentTimes.size());
+        int attachmentTimeCount = randIncidence.getAttachmentTimeCount();
+        int randAttIdx = Randomizer.nextInt(attachmentTimeCount);
 
         // select interval around random attachment time to change
         int minIdx = randAttIdx == 0 ? 0 : randAttIdx - 1;
-        int maxIdx = randAttIdx == attachmentTimes.size() - 1 ? attachmentTimes.size() - 1 : randAttIdx + 1;
-        double tMin = attachmentTimes.get(minIdx);
-        double tMax = attachmentTimes.get(maxIdx);
+        int maxIdx = randAttIdx == attachmentTimeCount - 1 ? attachmentTimeCount - 1 : randAttIdx + 1;
+        double tMin = randIncidence.getAttachmentTime(minIdx);
+        double tMax = randIncidence.getAttachmentTime(maxIdx);
 
         // randomly choose new time in selected interval
-        double newTime = ThreadLocalRandom.current().nextDouble(attachmentTimes.get(minIdx));
+        double newTime = ThreadLocalRandom.current().nextDouble(tMin);
 
         // if attachment time already exists, put between bounds
-        if (attachmentTimes.contains(newTime))
+        if (randIncidence.indexOf(newTime) >= 0)
             newTime = (tMax + tMin) / 2;
 
-        randIncidence.setOldTimeOfChangedCopy(attachmentTimes.get(randAttIdx));
-        attachmentTimes.set(randAttIdx, newTime);
+        randIncidence.setOldTimeOfChangedCopy(randIncidence.getAttachmentTime(randAttIdx));
+        randIncidence.moveAttachmentTime(randAttIdx, newTime);
         randIncidence.setNewTimeOfChangedCopy(newTime);
 
-        randIncidence.setAttachmentTimes(attachmentTimes);
-
         return 0.0;
     }
 }
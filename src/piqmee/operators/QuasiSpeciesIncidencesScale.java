@@ -8,7 +8,6 @@ import piqmee.util.BeastRandomGenerator;
 import piqmee.util.RandomGenerator;
 
 import java.lang.reflect.Array;
-import java.util.ArrayList;
 import java.util.List;
 
 /**
@@ -56,7 +55,7 @@ public class QuasiSpeciesIncidencesScale extends QuasiSpeciesTreeOperator {
         // choose random incidence
         int randIncIdx = Randomizer.nextInt(incidences.length);
         QuasiSpeciesIncidence randIncidence = incidences[randIncIdx];
-        ArrayList<Double> attachmentTimes = randIncidence.getAttachmentTimes();
+        int attachmentTimeCount = randIncidence.getAttachmentTimeCount();
 
         // choose scale factor
         double u = random.getNext();
@@ -67,16 +66,14 @@ public class QuasiSpeciesIncidencesScale extends QuasiSpeciesTreeOperator {
         double logHastingsRatio = 0.0;
 
         // abort if attachment times would be < sampling time or >= origin
-        if (attachmentTimes.get(0) * f < randIncidence.getSamplingTime() ||
-                attachmentTimes.get(attachmentTimes.size() - 1) >= origin.getValue()) {
+        if (randIncidence.getAttachmentTime(0) * f < randIncidence.getSamplingTime() ||
+                randIncidence.getAttachmentTime(attachmentTimeCount - 1) >= origin.getValue()) {
             return Double.NEGATIVE_INFINITY;
         }
 
         // scale all attachment times
-        for (int i = 0; i < attachmentTimes.size(); i++) {
-            attachmentTimes.set(i, attachmentTimes.get(i) * f);
-            logHastingsRatio += logf;
-        }
+        randIncidence.scaleAttachmentTimes(f);
+        logHastingsRatio += attachmentTimeCount * logf;
 
         return logHastingsRatio;
     }
@@ -197,19 +197,13 @@ public class QuasiSpeciesSequenceAttachmentRandom extends QuasiSpeciesTreeOperat
 
         node.setNewtimeofchangedcopy(tnew);
         node.setOldtimeofchangedcopy(tempqstimes[changeIdx]);
-        tempqstimes[changeIdx]=tnew;
+        // shift the times in between by one in a single block and put the new time in its place
         if (changeIdx > tmaxIdx){
-            for (int i=changeIdx; i>tmaxIdx+1; i--){
-                double swaptime = tempqstimes[i];
-                tempqstimes[i] = tempqstimes[i-1];
-                tempqstimes[i-1] = swaptime;
-            }
+            System.arraycopy(tempqstimes, tmaxIdx + 1, tempqstimes, tmaxIdx + 2, changeIdx - tmaxIdx - 1);
+            tempqstimes[tmaxIdx + 1] = tnew;
         } else {
-            for (int i=changeIdx; i<tmaxIdx; i++){
-                double swaptime = tempqstimes[i];
-                tempqstimes[i] = tempqstimes[i+1];
-                tempqstimes[i+1] = swaptime;
-            }
+            System.arraycopy(tempqstimes, changeIdx + 1, tempqstimes, changeIdx, tmaxIdx - changeIdx);
+            tempqstimes[tmaxIdx] = tnew;
         }
         node.setAttachmentTimesList(tempqstimes);
 
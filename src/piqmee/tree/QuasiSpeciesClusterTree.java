@@ -3,6 +3,8 @@ package piqmee.tree;
 import beast.core.*;
 import beast.evolution.alignment.Alignment;
 import beast.evolution.alignment.FilteredAlignment;
+import beast.evolution.alignment.Sequence;
+import beast.evolution.alignment.TaxonSet;
 import beast.util.ClusterTree;
 import beast.util.ClusterTree.*;
 
@@ -44,20 +46,40 @@ public class QuasiSpeciesClusterTree extends QuasiSpeciesTree implements StateNo
         if (data == null)
             throw new RuntimeException("The data input needs to be specified");
 
-        ClusterTree inputTree = new ClusterTree();
-        inputTree.setDateTrait(timeTraitSet);
-        inputTree.initByName(
-                "clusterType", clusterTypeInput.get(),
-                "taxa", data);
+        if (!collapseIdenticalSequencesInput.get()) {
+            ClusterTree inputTree = new ClusterTree();
+            inputTree.setDateTrait(timeTraitSet);
+            inputTree.initByName(
+                    "clusterType", clusterTypeInput.get(),
+                    "taxa", data);
+
+            if (haplotypeCountsSet != null && !haplotypeCountIsAll1(haplotypeCountsSet))
+                initFromUniqueHaploTree(inputTree, data,
+                        false, collapseSequencesWithMissingDataInput.get(),
+                        haplotypeCountsSet);
+            else
+                initFromFullTree(inputTree, data,
+                        false, collapseSequencesWithMissingDataInput.get());
+        } else {
+            // cluster only one sequence per haplotype and sampling time, the others are accounted for by the counts
+            Map<String, Integer> representatives = getHaplotypeRepresentatives(data,
+                    true, collapseSequencesWithMissingDataInput.get());
+            List<Sequence> sequences = new ArrayList<>();
+            for (String taxon : representatives.keySet())
+                sequences.add(data.sequenceInput.get().get(data.getTaxonIndex(taxon)));
+            Alignment uniqueData = new Alignment(sequences, data.dataTypeInput.get());
+
+            // ClusterTree has no weights for taxa, so the counts do not enter the clustering
+            ClusterTree inputTree = new ClusterTree();
+            inputTree.setDateTrait(timeTraitSet);
+            inputTree.initByName(
+                    "clusterType", clusterTypeInput.get(),
+                    "taxa", uniqueData);
 
-        // initialize the quasispecies tree - and collapse identical sequences, if necessary
-        if (haplotypeCountsSet != null && !haplotypeCountIsAll1(haplotypeCountsSet))
             initFromUniqueHaploTree(inputTree, data,
-                    collapseIdenticalSequencesInput.get(), collapseSequencesWithMissingDataInput.get(),
-                    haplotypeCountsSet);
-        else
-            initFromFullTree(inputTree, data,
-                    collapseIdenticalSequencesInput.get(),collapseSequencesWithMissingDataInput.get());
+                    true, collapseSequencesWithMissingDataInput.get(),
+                    getHaplotypeCountsTrait(representatives, new TaxonSet(uniqueData)));
+        }
 
         initStateNodes();
     }
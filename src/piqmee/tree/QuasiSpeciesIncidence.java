@@ -2,17 +2,32 @@ package piqmee.tree;
 
 import beast.core.Description;
 
-import java.util.ArrayList;
-import java.util.Collections;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
 
 @Description("An NNN sequence representing an unsequenced incidence case.")
 public class QuasiSpeciesIncidence {
     private final double samplingTime;
-    // list of attachment times associated with this incidence; always keep this sorted in ascending order
-    private ArrayList<Double> attachmentTimes;
-    private ArrayList<Double> storedAttachmentTimes;
+    // attachment times associated with this incidence; the first attachmentTimeCount entries
+    // are always kept sorted in ascending order, the rest of the array is spare capacity
+    private double[] attachmentTimes;
+    private int attachmentTimeCount;
+    private double[] storedAttachmentTimes;
+    private int storedAttachmentTimeCount;
 
     private boolean attachmentTimesListChanged;
+    // true if the attachment times may differ from the stored ones
+    private boolean editedSinceStore = true;
+
+    // identifies the current attachment times: every edit draws a new id, restore brings back the stored one
+    private static final AtomicLong EDIT_IDS = new AtomicLong();
+    private long editId = EDIT_IDS.incrementAndGet();
+    private long storedEditId;
+    // if the last edit moved a single attachment time: the id before and after the move, and the moved time
+    private long movePreviousEditId = -1;
+    private long moveEditId = -1;
+    private double moveOldTime;
+    private double moveNewTime;
     private int count;
 
     private boolean isRhoSampled;
@@ -25,14 +40,18 @@ public class QuasiSpeciesIncidence {
     public QuasiSpeciesIncidence(double samplingTime, int count) {
         this.samplingTime = samplingTime;
         this.count = count;
-        this.attachmentTimes = new ArrayList<>(count);
+        this.attachmentTimes = new double[Math.max(count, 1)];
+        this.attachmentTimeCount = 0;
+        this.storedAttachmentTimes = new double[attachmentTimes.length];
         attachmentTimesListChanged = false;
         this.isRhoSampled = false;
     }
 
     public QuasiSpeciesIncidence(QuasiSpeciesIncidence quasiSpeciesIncidence) {
         this.samplingTime = quasiSpeciesIncidence.samplingTime;
-        this.attachmentTimes = (ArrayList<Double>) quasiSpeciesIncidence.attachmentTimes.clone();
+        this.attachmentTimes = quasiSpeciesIncidence.attachmentTimes.clone();
+        this.attachmentTimeCount = quasiSpeciesIncidence.attachmentTimeCount;
+        this.storedAttachmentTimes = new double[attachmentTimes.length];
         this.attachmentTimesListChanged = quasiSpeciesIncidence.attachmentTimesListChanged;
         this.count = quasiSpeciesIncidence.count;
         this.isRhoSampled = quasiSpeciesIncidence.isRhoSampled;
@@ -42,11 +61,29 @@ public class QuasiSpeciesIncidence {
         return samplingTime;
     }
 
-    public ArrayList<Double> getAttachmentTimes() {
-        return attachmentTimes;
+    /**
+     * @return number of attachment times of this incidence
+     */
+    public int getAttachmentTimeCount() {
+        return attachmentTimeCount;
+    }
+
+    /**
+     * @param index position in the ascending order
+     * @return the index-th smallest attachment time
+     */
+    public double getAttachmentTime(int index) {
+        return attachmentTimes[index];
+    }
+
+    /**
+     * @return a copy of the attachment times in ascending order, use getAttachmentTime(int) in loops
+     */
+    public double[] getAttachmentTimes() {
+        return Arrays.copyOf(attachmentTimes, attachmentTimeCount);
     }
 
-    public ArrayList<Double> getAttachmentTimesAndReset() {
+    public double[] getAttachmentTimesAndReset() {
         attachmentTimesListChanged = false;
         return getAttachmentTimes();
     }
@@ -54,16 +91,142 @@ public class QuasiSpeciesIncidence {
     /**
      * Set attachment times associated with this incidence and sort by ascending order.
      */
-    public void setAttachmentTimes(ArrayList<Double> attachmentTimes) {
-        this.attachmentTimes = attachmentTimes;
-        Collections.sort(this.attachmentTimes);
+    public void setAttachmentTimes(double[] newAttachmentTimes) {
+        ensureCapacity(newAttachmentTimes.length);
+        System.arraycopy(newAttachmentTimes, 0, attachmentTimes, 0, newAttachmentTimes.length);
+        attachmentTimeCount = newAttachmentTimes.length;
+        Arrays.sort(attachmentTimes, 0, attachmentTimeCount);
         attachmentTimesListChanged = true;
+        edited();
     }
 
+    /**
+     * Adds the attachment time unless it is already present, keeping the times sorted
+     */
     public void addAttachmentTime(double attachmentTime) {
-        if (!attachmentTimes.contains(attachmentTime))
-            attachmentTimes.add(attachmentTime);
-        Collections.sort(attachmentTimes);
+        int index = indexOf(attachmentTime);
+        if (index >= 0)
+            return;
+        index = -index - 1;
+        ensureCapacity(attachmentTimeCount + 1);
+        System.arraycopy(attachmentTimes, index, attachmentTimes, index + 1, attachmentTimeCount - index);
+        attachmentTimes[index] = attachmentTime;
+        attachmentTimeCount++;
+        edited();
+    }
+
+    /**
+     * Changes one attachment time and moves it to its new position in the ascending order.
+     * The position is found by binary search; only the times between the old and the new
+     * position are shifted, in one block.
+     *
+     * @param index   position of the time to change
+     * @param newTime new attachment time
+     * @return the new position of the time
+     */
+    public int moveAttachmentTime(int index, double newTime) {
+        // read before the shift below overwrites the position
+        moveOldTime = attachmentTimes[index];
+        int newIndex;
+        if (index > 0 && newTime < attachmentTimes[index - 1]) {
+            newIndex = Arrays.binarySearch(attachmentTimes, 0, index, newTime);
+            if (newIndex < 0)
+                newIndex = -newIndex - 1;
+            System.arraycopy(attachmentTimes, newIndex, attachmentTimes, newIndex + 1, index - newIndex);
+        } else if (index < attachmentTimeCount - 1 && newTime > attachmentTimes[index + 1]) {
+            newIndex = Arrays.binarySearch(attachmentTimes, index + 1, attachmentTimeCount, newTime);
+            if (newIndex < 0)
+                newIndex = -newIndex - 1;
+            // the time is taken out before it is inserted, so everything in between moves down by one
+            newIndex--;
+            System.arraycopy(attachmentTimes, index + 1, attachmentTimes, index, newIndex - index);
+        } else {
+            newIndex = index;
+        }
+        moveNewTime = newTime;
+        attachmentTimes[newIndex] = newTime;
+        attachmentTimesListChanged = true;
+        movePreviousEditId = editId;
+        edited();
+        moveEditId = editId;
+        return newIndex;
+    }
+
+    /**
+     * Multiplies all attachment times by a positive factor, which keeps their order
+     */
+    public void scaleAttachmentTimes(double factor) {
+        for (int i = 0; i < attachmentTimeCount; i++)
+            attachmentTimes[i] *= factor;
+        attachmentTimesListChanged = true;
+        edited();
+    }
+
+    /**
+     * @param attachmentTime time to look for
+     * @return position of the time, or (-(insertion point) - 1) if it is not present
+     */
+    public int indexOf(double attachmentTime) {
+        return Arrays.binarySearch(attachmentTimes, 0, attachmentTimeCount, attachmentTime);
+    }
+
+    /**
+     * @param time the time point
+     * @return number of attachment times strictly greater than the given time
+     */
+    public int countAttachmentTimesAbove(double time) {
+        int low = 0;
+        int high = attachmentTimeCount;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (attachmentTimes[mid] > time)
+                high = mid;
+            else
+                low = mid + 1;
+        }
+        return attachmentTimeCount - low;
+    }
+
+    private void edited() {
+        editId = EDIT_IDS.incrementAndGet();
+        editedSinceStore = true;
+    }
+
+    /**
+     * @return id of the current attachment times, equal ids mean equal attachment times
+     */
+    public long getEditId() {
+        return editId;
+    }
+
+    /**
+     * @param previousEditId an earlier id of this incidence
+     * @return true if the attachment times differ from those with the given id by exactly one moved time
+     */
+    public boolean isSingleMoveSince(long previousEditId) {
+        return moveEditId == editId && movePreviousEditId == previousEditId;
+    }
+
+    /**
+     * @return the time moved by the last edit, before the move, see isSingleMoveSince
+     */
+    public double getMoveOldTime() {
+        return moveOldTime;
+    }
+
+    /**
+     * @return the time moved by the last edit, after the move, see isSingleMoveSince
+     */
+    public double getMoveNewTime() {
+        return moveNewTime;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity > attachmentTimes.length) {
+            final int newCapacity = Math.max(capacity, 2 * attachmentTimes.length);
+            attachmentTimes = Arrays.copyOf(attachmentTimes, newCapacity);
+            storedAttachmentTimes = Arrays.copyOf(storedAttachmentTimes, newCapacity);
+        }
     }
 
     public boolean attachmentTimesListChanged() {
@@ -106,14 +269,31 @@ public class QuasiSpeciesIncidence {
         this.newTimeOfChangedCopy = newTimeOfChangedCopy;
     }
 
+    /**
+     * Copies the attachment times only if they were edited since the last store
+     */
     public void store() {
-        storedAttachmentTimes = new ArrayList<>(attachmentTimes);
+        if (!editedSinceStore)
+            return;
+        if (storedAttachmentTimes.length < attachmentTimes.length)
+            storedAttachmentTimes = new double[attachmentTimes.length];
+        System.arraycopy(attachmentTimes, 0, storedAttachmentTimes, 0, attachmentTimeCount);
+        storedAttachmentTimeCount = attachmentTimeCount;
+        storedEditId = editId;
+        editedSinceStore = false;
     }
 
     public void restore() {
-        ArrayList<Double> tmp = new ArrayList<>(attachmentTimes);
+        // if nothing was edited the stored times are the current ones
+        if (!editedSinceStore)
+            return;
+        double[] tmp = attachmentTimes;
         attachmentTimes = storedAttachmentTimes;
         storedAttachmentTimes = tmp;
+        int tmpCount = attachmentTimeCount;
+        attachmentTimeCount = storedAttachmentTimeCount;
+        storedAttachmentTimeCount = tmpCount;
+        editId = storedEditId;
     }
 
     /**
@@ -121,15 +301,18 @@ public class QuasiSpeciesIncidence {
      * from a specified upper bound (e.g. root) up to this incidence's sampling time.
      */
     public void generateAttachmentTimes(double upperBound) {
-        if (attachmentTimes.size() < count) {
-            double step = (upperBound - samplingTime) / (count - attachmentTimes.size());
-            attachmentTimes.add(step);
+        if (attachmentTimeCount < count) {
+            ensureCapacity(count);
+            double step = (upperBound - samplingTime) / (count - attachmentTimeCount);
+            attachmentTimes[attachmentTimeCount++] = step;
 
-            for (int i = attachmentTimes.size(); i < count; i++) {
-                attachmentTimes.add(attachmentTimes.get(i - 1) + step);
+            for (int i = attachmentTimeCount; i < count; i++) {
+                attachmentTimes[i] = attachmentTimes[i - 1] + step;
             }
+            attachmentTimeCount = count;
         }
 
-        Collections.sort(attachmentTimes);
+        Arrays.sort(attachmentTimes, 0, attachmentTimeCount);
+        edited();
     }
 }
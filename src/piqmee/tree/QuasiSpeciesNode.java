@@ -20,6 +20,16 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
     //  -1 if not changed
     double oldtimeofchangedcopy=-1;
     double newtimeofchangedcopy=-1;
+    // flags telling which of the old and new time of the changed copy were set since the list was last replaced
+    static final int OLD_TIME_SET = 1, NEW_TIME_SET = 2;
+    int changedCopyTimesSet = 0;
+
+    // sum of the branch lengths of the haplotype, kept up to date when a single attachment time changes
+    protected double totalBranchLengths;
+    protected boolean totalBranchLengthsKnown = false;
+    // the sum is recomputed from scratch after this many updates to keep rounding errors from adding up
+    protected static final int TOTAL_BRANCH_LENGTHS_REFRESH_INTERVAL = 10000;
+    protected int totalBranchLengthsUpdates = 0;
 
 
     public QuasiSpeciesNode() {}
@@ -96,12 +106,12 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
                     " is set to start after the haplotype sequence number " + ihaploseq +
                     " of age " + haploseqage + " is set to branch off");
         } else {
-            for (int i = 1; i < attachmentTimesList.length; i++){
-                // We do NOT allow branching from the branch with the starting starting age!!!
-                if ( haploseqage < attachmentTimesList[i] && i != ihaploseq ){
-                    abcount +=1;
-                }
-            }
+            // the attachment times are sorted in descending order, so the ones above haploseqage come first
+            final int aboveEnd = firstIndexAtOrBelow(haploseqage, 1, attachmentTimesList.length);
+            abcount += aboveEnd - 1;
+            // We do NOT allow branching from the branch with the starting starting age!!!
+            if (ihaploseq >= 1 && ihaploseq < aboveEnd)
+                abcount -= 1;
             // deduct the duplicates that stop (sampling through time) before this node attaches
             for (int i = tipTimesList.length - 1; i >= 0  ; i--){
                 if (haploseqage <= tipTimesList[i])
@@ -119,12 +129,133 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
     }
 
     /**
-     * Obtain the sum of branch length for the haplotype associated with this tip
+     * Obtain the number of duplicate attachment times (entries 1, 2, ... of the list) above a given time
+     *
+     * @param time the time point
+     * @return number of attachment times strictly greater than time, found by binary search
+     */
+    public int countAttachmentTimesAbove(double time) {
+        return firstIndexAtOrBelow(time, 1, attachmentTimesList.length) - 1;
+    }
+
+    /**
+     * Obtain the number of duplicate attachment times (entries 1, 2, ... of the list) below a given time
+     *
+     * @param time the time point
+     * @return number of attachment times strictly smaller than time, found by binary search
+     */
+    public int countAttachmentTimesBelow(double time) {
+        return attachmentTimesList.length - firstIndexBelow(time, 1, attachmentTimesList.length);
+    }
+
+    /**
+     * @return the first index in [from, to) of the (descending) attachment times list
+     *          with a time not above the given time, or to if there is none
+     */
+    protected int firstIndexAtOrBelow(double time, int from, int to) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (attachmentTimesList[mid] > time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * @return the first index in [from, to) of the (descending) attachment times list
+     *          with a time below the given time, or to if there is none
+     */
+    protected int firstIndexBelow(double time, int from, int to) {
+        int low = from;
+        int high = to;
+        while (low < high) {
+            final int mid = (low + high) >>> 1;
+            if (attachmentTimesList[mid] >= time)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Changes a single attachment time and moves it to its place in the descending order,
+     * keeping the first (fake) entry equal to the largest attachment time.
+     * The new place is found by binary search and the times passed over are shifted in one block,
+     * instead of sorting the whole list again.
+     * Callers still have to set the old and new time of the changed copy.
+     *
+     * @param index   position of the attachment time to change, at least 1
+     * @param newTime the new attachment time
+     * @return the new position of the changed attachment time
+     */
+    public int moveAttachmentTime(int index, double newTime) {
+        startEditing();
+        this.makeDirty(QuasiSpeciesTree.IS_FILTHY);
+        final int length = attachmentTimesList.length;
+        final double oldFirstEntry = attachmentTimesList[0];
+        final double oldTime = attachmentTimesList[index];
+        int newIndex;
+        if (index > 1 && newTime > attachmentTimesList[index - 1]) {
+            newIndex = firstIndexAtOrBelow(newTime, 1, index);
+            System.arraycopy(attachmentTimesList, newIndex, attachmentTimesList, newIndex + 1, index - newIndex);
+        } else if (index < length - 1 && newTime < attachmentTimesList[index + 1]) {
+            // the time is taken out before it is put back, so everything in between moves up by one
+            newIndex = firstIndexBelow(newTime, index + 1, length) - 1;
+            System.arraycopy(attachmentTimesList, index + 1, attachmentTimesList, index, newIndex - index);
+        } else {
+            newIndex = index;
+        }
+        attachmentTimesList[newIndex] = newTime;
+        attachmentTimesList[0] = attachmentTimesList[1];
+        updateTotalBranchLengths(oldFirstEntry, attachmentTimesList[0], oldTime, newTime);
+        attachmentTimesListChanged = true;
+        return newIndex;
+    }
+
+    /**
+     * Obtain the sum of branch length for the haplotype associated with this tip.
+     * The sum is cached, so this is constant time unless the attachment times were replaced wholesale.
      *
      * @return the sum of branch lengths defined by the attachment times list
      *          and the tip times/counts of haplotype associated with this tip
      */
     public double getTotalBranchLengths() {
+        if (!totalBranchLengthsKnown) {
+            totalBranchLengths = calculateTotalBranchLengths();
+            totalBranchLengthsUpdates = 0;
+            totalBranchLengthsKnown = true;
+        }
+        return totalBranchLengths;
+    }
+
+    /**
+     * Update the cached branch length sum after a single attachment time changed.
+     * Each attachment time ends at the tip time of its position, and the tip times taken
+     * over all positions do not change, so only the changed times enter the sum.
+     *
+     * @param oldFirstEntry haplotype start before the change
+     * @param newFirstEntry haplotype start after the change
+     * @param oldTime       the changed attachment time before the change
+     * @param newTime       the changed attachment time after the change
+     */
+    protected void updateTotalBranchLengths(double oldFirstEntry, double newFirstEntry, double oldTime, double newTime) {
+        if (totalBranchLengthsKnown && totalBranchLengthsUpdates < TOTAL_BRANCH_LENGTHS_REFRESH_INTERVAL) {
+            totalBranchLengths += (newFirstEntry - oldFirstEntry) + (newTime - oldTime);
+            totalBranchLengthsUpdates++;
+        } else {
+            totalBranchLengthsKnown = false;
+        }
+    }
+
+    /**
+     * @return the sum of branch lengths computed from the attachment times list and tip times/counts
+     */
+    protected double calculateTotalBranchLengths() {
         double totalTime=0.0;
         int currentTipTimePosition = 0;
         int currentTipArrayPosition = 0;
@@ -168,6 +299,15 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
      */
     public void setAttachmentTimesList(double[] newAttachmentTimesList) {
         startEditing();
+        // if the operator reported the single copy it changed, update the branch length sum instead of recomputing it
+        if (changedCopyTimesSet == (OLD_TIME_SET | NEW_TIME_SET) && attachmentTimesList != null
+                && newAttachmentTimesList != attachmentTimesList
+                && newAttachmentTimesList.length == attachmentTimesList.length)
+            updateTotalBranchLengths(attachmentTimesList[0], newAttachmentTimesList[0],
+                    oldtimeofchangedcopy, newtimeofchangedcopy);
+        else
+            totalBranchLengthsKnown = false;
+        changedCopyTimesSet = 0;
         this.attachmentTimesList = newAttachmentTimesList;
         attachmentTimesListChanged = true;
     }
@@ -178,6 +318,7 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
      *
      */
     public void setFirstEntryAndSortAttachTimeList() {
+        totalBranchLengthsKnown = false;
         Arrays.sort(attachmentTimesList);
         // copy the largest bifurcation time, to indicate the haplo start time
         attachmentTimesList[0] = attachmentTimesList[attachmentTimesList.length - 1];
@@ -195,6 +336,12 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
      *
      */
     public void sortAttachTimeList() {
+        // lists are mostly sorted already, checking is linear while sorting is not
+        boolean isSorted = true;
+        for (int j = 1; j < attachmentTimesList.length && isSorted; j++)
+            isSorted = attachmentTimesList[j - 1] >= attachmentTimesList[j];
+        if (isSorted)
+            return;
         Arrays.sort(attachmentTimesList);
         // reverse the array to start with the largest value
         int totalLength = attachmentTimesList.length;
@@ -224,6 +371,7 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
         startEditing();
         this.makeDirty(QuasiSpeciesTree.IS_FILTHY);
         this.tipTimesList = newTipTimesList;
+        totalBranchLengthsKnown = false;
     }
 
     /**
@@ -245,6 +393,7 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
         startEditing();
         this.makeDirty(QuasiSpeciesTree.IS_FILTHY);
         this.tipTimesCountList = newTipTimesCountList;
+        totalBranchLengthsKnown = false;
     }
 
     /**
@@ -252,6 +401,9 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
      *
      */
     public void sortTipTimeAndCountList() {
+        // tip times may be shared with copies of this node, so sort private copies of them
+        tipTimesList = tipTimesList.clone();
+        tipTimesCountList = tipTimesCountList.clone();
         //Manually sort tipTimes, since we in the same way need to sort the tip counts
         double tmp;
         int tmpint;
@@ -286,6 +438,10 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
      */
     public void setOldtimeofchangedcopy(double oldtime) {
         this.oldtimeofchangedcopy = oldtime;
+        if (oldtime == -1)
+            changedCopyTimesSet &= ~OLD_TIME_SET;
+        else
+            changedCopyTimesSet |= OLD_TIME_SET;
     }
 
     /**
@@ -304,6 +460,10 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
      */
     public void setNewtimeofchangedcopy(double newtime) {
         this.newtimeofchangedcopy = newtime;
+        if (newtime == -1)
+            changedCopyTimesSet &= ~NEW_TIME_SET;
+        else
+            changedCopyTimesSet |= NEW_TIME_SET;
     }
 
     /**
@@ -331,13 +491,13 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
         if (attachmentTimesList != null) {
             node.attachmentTimesList = new double[attachmentTimesList.length];
             System.arraycopy(attachmentTimesList,0,node.attachmentTimesList,0,attachmentTimesList.length);
+            node.totalBranchLengths = totalBranchLengths;
+            node.totalBranchLengthsKnown = totalBranchLengthsKnown;
+            node.totalBranchLengthsUpdates = totalBranchLengthsUpdates;
         }
-        if (tipTimesList != null) {
-            node.tipTimesList = new double[tipTimesList.length];
-            System.arraycopy(tipTimesList,0,node.tipTimesList,0,tipTimesList.length);
-            node.tipTimesCountList = new int[tipTimesCountList.length];
-            System.arraycopy(tipTimesCountList,0,node.tipTimesCountList,0,tipTimesCountList.length);
-        }
+        // tip times are never edited in place after set up, so the copy shares them
+        node.tipTimesList = tipTimesList;
+        node.tipTimesCountList = tipTimesCountList;
 
         if (getLeft()!=null) {
             node.setLeft(((QuasiSpeciesNode)getLeft()).copy());
@@ -351,12 +511,15 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
     }
 
     /**
-     * assign values from a tree in array representation *
+     * assign values from a tree in array representation,
+     * reusing the attachment times array if it has the right length *
      * @param nodes
      * @param node
      */
     @Override
     public void assignFrom(Node[] nodes, Node node) {
+        // the nodes may be reused, so drop the children this node had before
+        children.clear();
         height = node.getHeight();
         labelNr = node.getNr();
         metaDataString = node.metaDataString;
@@ -364,19 +527,20 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
         ID = node.getID();
 
         QuasiSpeciesNode qsNode = (QuasiSpeciesNode)node;
+        totalBranchLengthsKnown = false;
         haploAboveName = qsNode.haploAboveName;
         continuingHaploName = qsNode.continuingHaploName;
 //        startBranchCounts = qsNode.startBranchCounts;
         if (qsNode.attachmentTimesList != null) {
-            attachmentTimesList = new double[qsNode.attachmentTimesList.length];
+            if (attachmentTimesList == null || attachmentTimesList.length != qsNode.attachmentTimesList.length)
+                attachmentTimesList = new double[qsNode.attachmentTimesList.length];
             System.arraycopy(qsNode.attachmentTimesList,0,attachmentTimesList,0,qsNode.attachmentTimesList.length);
+        } else {
+            attachmentTimesList = null;
         }
-        if (qsNode.tipTimesList != null) {
-            tipTimesList = new double[qsNode.tipTimesList.length];
-            System.arraycopy(qsNode.tipTimesList,0,tipTimesList,0,qsNode.tipTimesList.length);
-            tipTimesCountList = new int[qsNode.tipTimesCountList.length];
-            System.arraycopy(qsNode.tipTimesCountList,0,tipTimesCountList,0,qsNode.tipTimesCountList.length);
-        }
+        // tip times are never edited in place after set up, so they are shared
+        tipTimesList = qsNode.tipTimesList;
+        tipTimesCountList = qsNode.tipTimesCountList;
         parentHaplo = qsNode.parentHaplo;
 
         if (node.getLeft()!=null) {
@@ -391,6 +555,58 @@ public class QuasiSpeciesNode extends QuasiSpeciesNodeBaseClass {
         }
     }
 
+    /**
+     * Reset height, links and haplotype names to their stored values, used by QuasiSpeciesTree.restore().
+     * The fields are written directly, so the node is neither marked dirty nor does it trigger a store.
+     *
+     * @param height              stored height
+     * @param parent              stored parent, null for the root
+     * @param left                stored left child, null for tips
+     * @param right               stored right child, null if none
+     * @param haploAboveName      stored haplotype starting above the node
+     * @param continuingHaploName stored haplotype passing through the node
+     */
+    void restoreNode(double height, Node parent, Node left, Node right, int haploAboveName, int continuingHaploName) {
+        this.height = height;
+        this.parent = parent;
+        if (left != null) {
+            if (children.isEmpty())
+                children.add(left);
+            else
+                children.set(0, left);
+            if (right != null) {
+                if (children.size() < 2)
+                    children.add(right);
+                else
+                    children.set(1, right);
+            }
+        }
+        this.haploAboveName = haploAboveName;
+        this.continuingHaploName = continuingHaploName;
+    }
+
+    /**
+     * Reset the haplotype of this tip to its stored values, used by QuasiSpeciesTree.restore().
+     *
+     * @param parentHaplo     stored parent haplotype
+     * @param storedTimes     array holding the stored attachment times
+     * @param offset          position of the first stored attachment time of this tip
+     * @param length          number of stored attachment times of this tip
+     * @param totalBranchLengths stored branch length sum and its state
+     */
+    void restoreHaplotype(int parentHaplo, double[] storedTimes, int offset, int length,
+                          double totalBranchLengths, boolean totalBranchLengthsKnown, int totalBranchLengthsUpdates) {
+        this.parentHaplo = parentHaplo;
+        if (attachmentTimesList != null || length > 0) {
+            if (attachmentTimesList == null || attachmentTimesList.length != length)
+                attachmentTimesList = new double[length];
+            System.arraycopy(storedTimes, offset, attachmentTimesList, 0, length);
+        }
+        this.totalBranchLengths = totalBranchLengths;
+        this.totalBranchLengthsKnown = totalBranchLengthsKnown;
+        this.totalBranchLengthsUpdates = totalBranchLengthsUpdates;
+    }
+
     /**
      * scale height of this node and all its descendants
      *
@@ -3,6 +3,7 @@ package piqmee.tree;
 import beast.core.*;
 import beast.evolution.alignment.Alignment;
 import beast.evolution.alignment.FilteredAlignment;
+import beast.evolution.alignment.Sequence;
 import beast.evolution.alignment.Taxon;
 import beast.evolution.alignment.TaxonSet;
 import beast.evolution.likelihood.GenericTreeLikelihood;
@@ -17,10 +18,10 @@ import java.util.*;
  */
 
 @Description("Class to initialize a QuasiSpeciesTree from the provided alignment" +
-             " using coalescent to determine provided sequence topology." +
-             " If duplicate sequence counts are provided in haplotypeCountsInput," +
-             " their branching times will be evenly spread between the MRCA" +
-             " of identical sequence sub-tree and respective tip times.")
+             " using coalescent on the unique sequences to determine the haplotype topology." +
+             " The branching times of duplicate sequences, identical in the alignment or" +
+             " provided as counts in haplotypeCountsInput, will be evenly spread between" +
+             " the start of the haplotype and respective tip times.")
 public class QuasiSpeciesRandomTree extends QuasiSpeciesTree implements StateNodeInitialiser{
 
     final public Input<PopulationFunction> populationFunctionInput = new Input<>("populationModel",
@@ -54,61 +55,76 @@ public class QuasiSpeciesRandomTree extends QuasiSpeciesTree implements StateNod
         if (data == null)
             throw new RuntimeException("The data input needs to be specified");
 
-        // create a toy tree for calculation of distances
-        RandomTree toyRandomTree = new RandomTree();
-        toyRandomTree.setDateTrait(timeTraitSet);
-        toyRandomTree.initByName(
-                "taxa", data,
-                "populationModel", populationFunctionInput.get());
-
-        // get monophyletic constraints necessary to cluster identical sequences
-        // specify monophyletic clusters from distance matrix
-        List<MRCAPrior> monophyleticGroups = new ArrayList();
-        // Get the distances for the sequences:
-        double[][] distanceMatrix = getDistanceMatrix(data, toyRandomTree, collapseSequencesWithMissingDataInput.get());
-        // specify monophyletic constraints
-        for (int i = 0; i < distanceMatrix.length; i++){
-            List<Taxon> identical = new ArrayList<>();
-            Taxon currentTaxon = new Taxon(data.getTaxaNames().get(i));
-            identical.add(currentTaxon);
-            for (int j = 0; j < i; j++){
-                if (distanceMatrix[j][i] == 0)
+        if (!collapseIdenticalSequencesInput.get()) {
+            RandomTree inputTree = new RandomTree();
+            inputTree.setDateTrait(timeTraitSet);
+            inputTree.initByName(
+                    "taxa", data,
+                    "populationModel", populationFunctionInput.get(),
+                    "rootHeight", rootHeightInput.get());
+
+            if (haplotypeCountsSet != null && !haplotypeCountIsAll1(haplotypeCountsSet))
+                initFromUniqueHaploTree(inputTree, data,
+                        false, collapseSequencesWithMissingDataInput.get(),
+                        haplotypeCountsSet);
+            else
+                initFromFullTree(inputTree, data,
+                        false, collapseSequencesWithMissingDataInput.get());
+        } else {
+            // simulate the coalescent for one sequence per haplotype and sampling time only,
+            //  the attachment times of the other sequences are placed by initFromUniqueHaploTree
+            Map<String, Integer> representatives = getHaplotypeRepresentatives(data,
+                    true, collapseSequencesWithMissingDataInput.get());
+            List<Sequence> sequences = new ArrayList<>();
+            for (String taxon : representatives.keySet())
+                sequences.add(data.sequenceInput.get().get(data.getTaxonIndex(taxon)));
+            Alignment uniqueData = new Alignment(sequences, data.dataTypeInput.get());
+
+            // a haplotype sampled at several times has one sequence per time, these have to form a clade
+            Map<Integer, List<Taxon>> haplotypeTaxa = new LinkedHashMap<>();
+            List<String> uniqueTaxa = uniqueData.getTaxaNames();
+            int[] haplotypeGroups = getHaplotypeGroups(data, uniqueTaxa, collapseSequencesWithMissingDataInput.get());
+            for (int i = 0; i < uniqueTaxa.size(); i++) {
+                // incidence sequences are not collapsed
+                if (isIncidenceSequence(uniqueData, uniqueTaxa.get(i)))
                     continue;
+                haplotypeTaxa.computeIfAbsent(haplotypeGroups[i], group -> new ArrayList<>())
+                        .add(new Taxon(uniqueTaxa.get(i)));
             }
-            for (int k = i+1; k < distanceMatrix.length; k++ ) {
-                if (distanceMatrix[k][i] == 0) {
-                    Taxon newTaxon = new Taxon(data.getTaxaNames().get(k));
-                    identical.add(newTaxon);
+            List<MRCAPrior> monophyleticGroups = new ArrayList<>();
+            RandomTree toyRandomTree = null;
+            for (List<Taxon> identical : haplotypeTaxa.values()) {
+                if (identical.size() < 2)
+                    continue;
+                // MRCAPrior needs a tree with the same taxa to check its taxon set against
+                if (toyRandomTree == null) {
+                    toyRandomTree = new RandomTree();
+                    toyRandomTree.setDateTrait(timeTraitSet);
+                    toyRandomTree.initByName(
+                            "taxa", uniqueData,
+                            "populationModel", populationFunctionInput.get());
                 }
+                MRCAPrior group = new MRCAPrior();
+                group.initByName(
+                        "tree", toyRandomTree,
+                        "taxonset", new TaxonSet(identical),
+                        "monophyletic", "true");
+                monophyleticGroups.add(group);
             }
-            if (identical.size() == 1)
-                continue;
-
-            MRCAPrior group = new MRCAPrior();
-            group.initByName(
-                    "tree", toyRandomTree,
-                    "taxonset", new TaxonSet(identical),
-                    "monophyletic", "true");
-            monophyleticGroups.add(group);
-        }
 
-        // initialize random tree with constraints specified such that all identical sequences form monophyletic clusters
-        RandomTree inputTree = new RandomTree();
-        inputTree.setDateTrait(timeTraitSet);
-        inputTree.initByName(
-                "taxa", data,
-                "populationModel", populationFunctionInput.get(),
-                "constraint", monophyleticGroups,
-                "rootHeight", rootHeightInput.get());
-
-        // initialize the quasispecies tree - and collapse identical sequences, if necessary
-        if (haplotypeCountsSet != null && !haplotypeCountIsAll1(haplotypeCountsSet))
+            // RandomTree has no weights for taxa, so the counts do not enter the coalescent simulation
+            RandomTree inputTree = new RandomTree();
+            inputTree.setDateTrait(timeTraitSet);
+            inputTree.initByName(
+                    "taxa", uniqueData,
+                    "populationModel", populationFunctionInput.get(),
+                    "constraint", monophyleticGroups,
+                    "rootHeight", rootHeightInput.get());
+
             initFromUniqueHaploTree(inputTree, data,
-                    collapseIdenticalSequencesInput.get(), collapseSequencesWithMissingDataInput.get(),
-                    haplotypeCountsSet);
-        else
-            initFromFullTree(inputTree, data,
-                    collapseIdenticalSequencesInput.get(), collapseSequencesWithMissingDataInput.get());
+                    true, collapseSequencesWithMissingDataInput.get(),
+                    getHaplotypeCountsTrait(representatives, new TaxonSet(uniqueData)));
+        }
 
         initStateNodes();
     }
@@ -9,13 +9,13 @@ import beast.core.util.Log;
 import beast.evolution.alignment.Alignment;
 import beast.evolution.alignment.FilteredAlignment;
 import beast.evolution.alignment.Sequence;
-import beast.evolution.alignment.distance.Distance;
+import beast.evolution.alignment.TaxonSet;
 import beast.evolution.datatype.DataType;
 import beast.evolution.tree.Node;
 import beast.evolution.tree.TraitSet;
 import beast.evolution.tree.Tree;
 import beast.util.TreeParser;
-import piqmee.distance.DifferenceCount;
+import piqmee.distance.AmbiguousSequenceIndex;
 import beast.evolution.likelihood.GenericTreeLikelihood;
 
 import java.io.PrintStream;
@@ -44,9 +44,33 @@ public class QuasiSpeciesTree extends Tree {
     protected TraitSet haplotypeCountsSet;
     protected Map<String,Integer> haplotypeCounts;
     protected String qsLabel = "qscounts";
+    // sequences consisting of N's only are incidences
+    private static final Pattern INCIDENCE_SEQUENCE = Pattern.compile("^(N)\\1*$");
 
     protected QuasiSpeciesIncidence[] incidences;
 
+    // nodes that may differ from their stored state since the last store(), only these are copied by store() and restore()
+    protected boolean[] nodeEdited;
+    protected int[] editedNodes;
+    protected int editedNodeCount;
+    protected boolean allNodesEdited = true;
+
+    // stored state of the nodes as flat arrays indexed by node number, -1 where there is no parent/child
+    protected double[] storedHeights;
+    protected int[] storedParents;
+    protected int[] storedLefts;
+    protected int[] storedRights;
+    protected int[] storedHaploAboveNames;
+    protected int[] storedContinuingHaploNames;
+    protected int[] storedParentHaplos;
+    protected int storedRootNr;
+    // stored attachment times of all haplotypes in one arena, those of tip i start at storedAttachmentTimeOffsets[i]
+    protected double[] storedAttachmentTimes;
+    protected int[] storedAttachmentTimeOffsets;
+    protected double[] storedTotalBranchLengths;
+    protected boolean[] storedTotalBranchLengthsKnown;
+    protected int[] storedTotalBranchLengthsUpdates;
+
     // for quick access to external nodes
     Node[] externalNodeArray = null;
     // hash table with unique sequences and the corresponding tip names -- for likelihood to be able to subset the data
@@ -534,17 +558,60 @@ public class QuasiSpeciesTree extends Tree {
     */
 
     /**
-     * Initiate node and storedNodes arrays
+     * Initiate node array and the arrays holding the stored state,
+     * the existing arrays are reused if the number of nodes did not change
      *
      */
     @Override
     protected final void initArrays() {
-        // initialise tree-as-array representation + its stored variant
-        m_nodes = new QuasiSpeciesNode[nodeCount];
+        // initialise tree-as-array representation, the stored state is kept in flat arrays instead of node copies
+        if (!(m_nodes instanceof QuasiSpeciesNode[]) || m_nodes.length != nodeCount)
+            m_nodes = new QuasiSpeciesNode[nodeCount];
         listNodes((QuasiSpeciesNode)root, (QuasiSpeciesNode[]) m_nodes);
-        m_storedNodes = new QuasiSpeciesNode[nodeCount];
-        Node copy = root.copy();
-        listNodes((QuasiSpeciesNode)copy, (QuasiSpeciesNode[])m_storedNodes);
+        m_storedNodes = null;
+        editedNodeCount = 0;
+
+        if (storedHeights == null || storedHeights.length != nodeCount) {
+            nodeEdited = new boolean[nodeCount];
+            editedNodes = new int[nodeCount];
+            storedHeights = new double[nodeCount];
+            storedParents = new int[nodeCount];
+            storedLefts = new int[nodeCount];
+            storedRights = new int[nodeCount];
+            storedHaploAboveNames = new int[nodeCount];
+            storedContinuingHaploNames = new int[nodeCount];
+            storedParentHaplos = new int[nodeCount];
+        } else {
+            Arrays.fill(nodeEdited, false);
+        }
+        initAttachmentTimeArena();
+
+        // fill the stored state, so that restore() is valid even before the first store()
+        allNodesEdited = true;
+        storeNodes();
+        allNodesEdited = true;
+    }
+
+    /**
+     * Lay out the stored attachment times of all tips in one array
+     */
+    protected void initAttachmentTimeArena() {
+        if (storedAttachmentTimeOffsets == null || storedAttachmentTimeOffsets.length != nodeCount + 1) {
+            storedAttachmentTimeOffsets = new int[nodeCount + 1];
+            storedTotalBranchLengths = new double[nodeCount];
+            storedTotalBranchLengthsKnown = new boolean[nodeCount];
+            storedTotalBranchLengthsUpdates = new int[nodeCount];
+        }
+        int offset = 0;
+        for (int i = 0; i < nodeCount; i++) {
+            storedAttachmentTimeOffsets[i] = offset;
+            double[] attachmentTimes = ((QuasiSpeciesNode) m_nodes[i]).getAttachmentTimesList();
+            if (m_nodes[i].isLeaf() && attachmentTimes != null)
+                offset += attachmentTimes.length;
+        }
+        storedAttachmentTimeOffsets[nodeCount] = offset;
+        if (storedAttachmentTimes == null || storedAttachmentTimes.length != offset)
+            storedAttachmentTimes = new double[offset];
     }
 
     /**
@@ -565,6 +632,7 @@ public class QuasiSpeciesTree extends Tree {
 
     /**
      * Deep copy, returns a completely new quasi-species tree.
+     * The tip times and haplotype counts do not change once the tree is set up, so they are shared.
      *
      * @return a deep copy of this quasi-species tree
      */
@@ -584,6 +652,7 @@ public class QuasiSpeciesTree extends Tree {
 
     /**
      * Copy all values from an existing quasi-species tree.
+     * The node objects and their arrays are reused if the tree has the same number of tips and nodes.
      *
      * @param other
      */
@@ -591,9 +660,15 @@ public class QuasiSpeciesTree extends Tree {
     public void assignFrom(StateNode other) {
         QuasiSpeciesTree qsTree = (QuasiSpeciesTree) other;
 
-        QuasiSpeciesNode[] qsNodes = new QuasiSpeciesNode[qsTree.getNodeCount()];
-        for (int i = 0; i < qsTree.getNodeCount(); i++)
-            qsNodes[i] = new QuasiSpeciesNode();
+        QuasiSpeciesNode[] qsNodes;
+        if (m_nodes instanceof QuasiSpeciesNode[] && m_nodes.length == qsTree.getNodeCount()
+                && nodeCount == qsTree.nodeCount && leafNodeCount == qsTree.leafNodeCount) {
+            qsNodes = (QuasiSpeciesNode[]) m_nodes;
+        } else {
+            qsNodes = new QuasiSpeciesNode[qsTree.getNodeCount()];
+            for (int i = 0; i < qsTree.getNodeCount(); i++)
+                qsNodes[i] = new QuasiSpeciesNode();
+        }
 
         ID = qsTree.ID;
         root = qsNodes[qsTree.root.getNr()];
@@ -635,7 +710,7 @@ public class QuasiSpeciesTree extends Tree {
         qsRoot.setHaploAboveName(((QuasiSpeciesNode)(otherNodes[iRoot])).getHaploAboveName());
         qsRoot.setContinuingHaploName(((QuasiSpeciesNode)(otherNodes[iRoot])).getContinuingHaploName());
         //qsRoot.setStartBranchCounts(((QuasiSpeciesNode)(otherNodes[iRoot])).getStartBranchCounts());
-        qsRoot.setAttachmentTimesList(((QuasiSpeciesNode)(otherNodes[iRoot])).getAttachmentTimesList());
+        qsRoot.setAttachmentTimesList(copyAttachmentTimes(qsRoot, (QuasiSpeciesNode) otherNodes[iRoot]));
         qsRoot.setTipTimesList(((QuasiSpeciesNode)(otherNodes[iRoot])).getTipTimesList());
         qsRoot.setTipTimesCountList(((QuasiSpeciesNode)(otherNodes[iRoot])).getTipTimesCountList());
         qsRoot.setParentHaplo(((QuasiSpeciesNode)(otherNodes[iRoot])).getParentHaplo());
@@ -664,6 +739,22 @@ public class QuasiSpeciesTree extends Tree {
         initArrays();
     }
 
+    /**
+     * The attachment times are edited in place, so they cannot be shared with the other tree.
+     *
+     * @return the attachment times of src, copied into the array of sink if it has the right length
+     */
+    private static double[] copyAttachmentTimes(QuasiSpeciesNode sink, QuasiSpeciesNode src) {
+        double[] srcTimes = src.getAttachmentTimesList();
+        if (srcTimes == null)
+            return null;
+        double[] sinkTimes = sink.getAttachmentTimesList();
+        if (sinkTimes == null || sinkTimes.length != srcTimes.length)
+            return srcTimes.clone();
+        System.arraycopy(srcTimes, 0, sinkTimes, 0, srcTimes.length);
+        return sinkTimes;
+    }
+
     /**
      * helper to assignFromFragile *
      */
@@ -677,7 +768,7 @@ public class QuasiSpeciesTree extends Tree {
             sink.setHaploAboveName(src.getHaploAboveName());
             sink.setContinuingHaploName(src.getContinuingHaploName());
             //sink.setStartBranchCounts(src.getStartBranchCounts());
-            sink.setAttachmentTimesList(src.getAttachmentTimesList());
+            sink.setAttachmentTimesList(copyAttachmentTimes(sink, src));
             sink.setTipTimesList(src.getTipTimesList());
             sink.setTipTimesCountList(src.getTipTimesCountList());
             sink.setParentHaplo(src.getParentHaplo());
@@ -995,8 +1086,9 @@ public class QuasiSpeciesTree extends Tree {
     public void initFromUniqueHaploTree(Tree uniqueHaploTree, Alignment data, boolean collapseIdentical,
                                         boolean collapseSequencesWithMissingData, TraitSet haplotypeCountsTrait){
         // In unique haplo tree, there can still be duplicate sequences, if found at different points in time
-        // Get the distances for the sequences:
-        double[][] distanceMatrix = getDistanceMatrix(data, uniqueHaploTree, collapseSequencesWithMissingData);
+        // Group the identical sequences:
+        int[] haplotypeGroups = getHaplotypeGroups(data, uniqueHaploTree, collapseSequencesWithMissingData);
+        int[] haplotypeGroupSizes = getHaplotypeGroupSizes(haplotypeGroups);
 
         // Build new quasi-species tree:
         ArrayList haplotypesSeen = new ArrayList<>();
@@ -1010,7 +1102,7 @@ public class QuasiSpeciesTree extends Tree {
 
         ArrayList result = processNextNodeOfFullNewickTree(
                 uniqueHaploTree.getRoot(), qsTips, qsInternalNodes,
-                distanceMatrix, haplotypesSeen, incidenceTaxa, collapseIdentical);
+                haplotypeGroups, haplotypeGroupSizes, haplotypesSeen, incidenceTaxa, collapseIdentical);
 
         // renumber tips to match the number of tips in the qsTree (so far matching fullTree node numbers)
         // need to match the tip times and attach time and haplo count lists!! -- this should not affect the order
@@ -1091,8 +1183,9 @@ public class QuasiSpeciesTree extends Tree {
     public void initFromFullTree(Tree fullTree, Alignment data, boolean collapseIdentical,
                                  boolean collapseSequencesWithMissingData){
 
-        // Get the distances for the sequences:
-        double[][] distanceMatrix = getDistanceMatrix(data, fullTree, collapseSequencesWithMissingData);
+        // Group the identical sequences:
+        int[] haplotypeGroups = getHaplotypeGroups(data, fullTree, collapseSequencesWithMissingData);
+        int[] haplotypeGroupSizes = getHaplotypeGroupSizes(haplotypeGroups);
 
         // Build new quasi-species tree:
         ArrayList haplotypesSeen = new ArrayList<>();
@@ -1103,7 +1196,7 @@ public class QuasiSpeciesTree extends Tree {
 
         ArrayList result = processNextNodeOfFullNewickTree(
                 fullTree.getRoot(), qsTips, qsInternalNodes,
-                distanceMatrix, haplotypesSeen, incidenceTaxa,
+                haplotypeGroups, haplotypeGroupSizes, haplotypesSeen, incidenceTaxa,
                 collapseIdentical);
 
         // renumber tips to match the number of tips in the qsTree (so far matching fullTree node numbers)
@@ -1171,17 +1264,14 @@ public class QuasiSpeciesTree extends Tree {
     }
 
     /**
-     * Calculate the distance matrix from all partitions
+     * Collect the alignments of all tree likelihoods using this tree,
+     * such that sequences are only collapsed if they are identical in every partition
      *
-     * @param data
-     * @param tree
-     * @param collapseSequencesWithMissingData
+     * @param data alignment used if the tree is not linked with any likelihood
+     * @return the alignments linked with this tree
      */
-    public double[][] getDistanceMatrix(Alignment data, Tree tree, boolean collapseSequencesWithMissingData) {
-        int taxaSize = data.getTaxonCount();
-        double[][] distanceMatrix = new double[taxaSize][taxaSize];
-        double[][] distanceMatrixSum = new double[taxaSize][taxaSize];
-        double[][] distanceMatrixTmp;
+    protected List<Alignment> getLinkedAlignments(Alignment data) {
+        List<Alignment> alignments = new ArrayList<>();
         // 1) check if there are multiple alignments linked with this tree -- such that unique sequences correctly identified
         Set<BEASTInterface> outputset;
         if (m_initial.get() != null)
@@ -1199,125 +1289,367 @@ public class QuasiSpeciesTree extends Tree {
                     Alignment odatatmp = new Alignment(odata.sequenceInput.get(), odata.dataTypeInput.get());
                     odata = odatatmp;
                 }
-                // 2) make a distance matrix for each such alignment
-                distanceMatrixTmp = getSequenceDistances(odata, tree, collapseSequencesWithMissingData);
-                // 3) add this distance to distances from other alignments
-                for (int i = 0; i < taxaSize - 1; i++) {
-                    for (int j = i + 1; j < taxaSize; j++) {
-                        distanceMatrixSum[i][j] = distanceMatrix[i][j] + distanceMatrixTmp[i][j];
-                        distanceMatrixSum[j][i] = distanceMatrixSum[i][j];
-                    }
-                }
-                // 4)copy sum of distances to distanceMatrix
-                System.arraycopy(distanceMatrixSum, 0, distanceMatrix, 0, distanceMatrix.length);
+                if (!alignments.contains(odata))
+                    alignments.add(odata);
             }
         }
-        // 5) it could be, especially in a test case, that the tree is not linked with any output - check for this
-        if (outputset.size() == 0)
-            distanceMatrix = getSequenceDistances(data, tree, collapseSequencesWithMissingData);
-
-        // quickly check if all sequences are unique reciprocally, if not throw an error for now
-        if (! checkIfDistMatrixFullyReciprocal(distanceMatrix)){
-            throw new IllegalArgumentException("When we do allow for collapsing of sequences that are identical even if"+
-                    "we take ambiguous sites into account, we have several possibilities of how this collapsing should " +
-                    "be done. ");
-        }
-        // TODO : change the method of sequence collapsing by not outputting distance matrix but hash with unique sequences
-        //  & corresponding tip names
-        //  Also in the loop checking if we have partitions, get all partitions and pipe it to the function that
-        //  should collapse sequences if identical ... in this function, loop through each partition at the same time
-        //  and check / create consensus sequence, then assign it to the tips that should be collapsed such that when
-        //  we retrieve the collapsed alignment for the purpose of likelihood calculation, we do not need to do this again
-        //  --- when two "unique" sequences are collapsed, then recalculate distances and rejudge what shall be merged
-
+        // 2) it could be, especially in a test case, that the tree is not linked with any likelihood - check for this
+        if (alignments.isEmpty())
+            alignments.add(data);
+        return alignments;
+    }
 
-        return distanceMatrix;
+    /**
+     * Group the tips of a tree into haplotypes, see getHaplotypeGroups(Alignment, List, boolean)
+     *
+     * @param data alignment used if the tree is not linked with any likelihood
+     * @param tree tree whose tips are grouped
+     * @param collapseSequencesWithMissingData
+     * @return haplotype of each tip indexed by node number, haplotypes are numbered from 0, -1 for internal nodes
+     */
+    public int[] getHaplotypeGroups(Alignment data, Tree tree, boolean collapseSequencesWithMissingData) {
+        List<Node> tips = tree.getExternalNodes();
+        List<String> taxa = new ArrayList<>(tips.size());
+        for (Node tip : tips)
+            taxa.add(tip.getID());
+        int[] taxonGroups = getHaplotypeGroups(data, taxa, collapseSequencesWithMissingData);
+
+        int[] haplotypeGroups = new int[tree.getNodeCount()];
+        Arrays.fill(haplotypeGroups, -1);
+        for (int k = 0; k < tips.size(); k++)
+            haplotypeGroups[tips.get(k).getNr()] = taxonGroups[k];
+        return haplotypeGroups;
     }
 
     /**
-     * Helper method used by initFromFullTree/initFromUniqueHaploTree to
-     * calculate pairwise sequence distances and return the matrix of them.
+     * Group taxa into haplotypes. Taxa share a haplotype if their sequences are identical
+     * in all partitions, or, with collapseSequencesWithMissingData, identical up to ambiguous sites.
+     * Identical sequences are found by hashing, so no matrix over all pairs of taxa is needed.
      *
-     * @param data
+     * @param data alignment used if the tree is not linked with any likelihood
+     * @param taxa names of the taxa to group
      * @param collapseSequencesWithMissingData
-     * @return
+     * @return haplotype of each taxon in the order of taxa, haplotypes are numbered from 0
      */
-    protected double[][] getSequenceDistances(Alignment data, Tree tree, boolean collapseSequencesWithMissingData) {
-        // collect unique sequences into a hash
-        Map<String, List<Integer>> sequenceMap = new HashMap<>();
-        for (Node node : tree.getExternalNodes()){
-            int taxonNrInData = data.getTaxonIndex(node.getID());
-            Sequence seq = data.sequenceInput.get().get(taxonNrInData);
-            String sequence = seq.dataInput.get();
-            if (!sequenceMap.containsKey(sequence)) {
-                sequenceMap.put(sequence, new ArrayList<>());
+    public int[] getHaplotypeGroups(Alignment data, List<String> taxa, boolean collapseSequencesWithMissingData) {
+        List<Alignment> alignments = getLinkedAlignments(data);
+
+        // 1) number the distinct sequences of each alignment
+        int[][] tipSequences = new int[alignments.size()][taxa.size()];
+        for (int p = 0; p < alignments.size(); p++) {
+            Alignment alignment = alignments.get(p);
+            Map<String, Integer> sequenceNumbers = new HashMap<>();
+            for (int k = 0; k < taxa.size(); k++) {
+                int taxonNrInData = alignment.getTaxonIndex(taxa.get(k));
+                String sequence = alignment.sequenceInput.get().get(taxonNrInData).dataInput.get();
+                Integer sequenceNr = sequenceNumbers.get(sequence);
+                if (sequenceNr == null) {
+                    sequenceNr = sequenceNumbers.size();
+                    sequenceNumbers.put(sequence, sequenceNr);
+                }
+                tipSequences[p][k] = sequenceNr;
             }
-            sequenceMap.get(sequence).add(node.getNr());
         }
-        // Get the distances for the sequences:
-        Distance distance = new DifferenceCount();
-        ((Distance.Base) distance).setPatterns(data);
-        // make a tip sequence distance matrix
-        int taxaSize = data.getTaxonCount();
-        double[][] distanceMatrix = new double[taxaSize][taxaSize];
 
-        String [] uniqueSequences = sequenceMap.keySet().toArray(new String[]{});
-        int n = uniqueSequences.length;
+        // 2) combine the numbers of all alignments, taxa with the same combined number are identical in every partition
+        int[] tipClasses = tipSequences[0].clone();
+        int classCount = 0;
+        for (int tipClass : tipClasses)
+            classCount = Math.max(classCount, tipClass + 1);
+        for (int p = 1; p < alignments.size(); p++) {
+            Map<Long, Integer> combinedNumbers = new HashMap<>();
+            for (int k = 0; k < taxa.size(); k++) {
+                long key = ((long) tipClasses[k] << 32) | tipSequences[p][k];
+                Integer combinedNr = combinedNumbers.get(key);
+                if (combinedNr == null) {
+                    combinedNr = combinedNumbers.size();
+                    combinedNumbers.put(key, combinedNr);
+                }
+                tipClasses[k] = combinedNr;
+            }
+            classCount = combinedNumbers.size();
+        }
+        // first taxon of each class, representing it
+        int[] classTips = new int[classCount];
+        Arrays.fill(classTips, -1);
+        for (int k = 0; k < taxa.size(); k++) {
+            if (classTips[tipClasses[k]] == -1)
+                classTips[tipClasses[k]] = k;
+        }
 
-        Log.info("Found " + n + " unique sequences out of " + taxaSize + " sequences");
+        Log.info("Found " + classCount + " unique sequences out of " + taxa.size() + " sequences");
 
-        if (n > 1000) {
-            Log.warning("\nWARNING: with " + n + " unique sequences you might consider sub-sampling\n");
+        if (classCount > 1000) {
+            Log.warning("\nWARNING: with " + classCount + " unique sequences you might consider sub-sampling\n");
         }
 
-        // if collapseSequencesWithMissingData = true we need to check if ambiguities in sequences happen
-        boolean[] ambiguousSequences = new boolean[uniqueSequences.length];
+        // 3) if collapseSequencesWithMissingData = true we can perhaps further collapse some of the unique sequences
+        int[] classGroups;
         if (collapseSequencesWithMissingData) {
-            // need to find out if sequences are identical when ambiguities are taken into account
-            //   first need to know which sequences contain ambiguous codes
-            ambiguousSequences = new boolean[uniqueSequences.length];
-            for (int i = 0; i < uniqueSequences.length; i++) {
-                ambiguousSequences[i] = isAmbiguousSequence(uniqueSequences[i], dataInput.get().getDataType());
+            classGroups = groupSequencesIdenticalUpToMissingData(alignments, taxa, classTips);
+        } else {
+            classGroups = new int[classCount];
+            for (int c = 0; c < classCount; c++)
+                classGroups[c] = c;
+        }
+
+        int[] haplotypeGroups = new int[taxa.size()];
+        for (int k = 0; k < taxa.size(); k++)
+            haplotypeGroups[k] = classGroups[tipClasses[k]];
+        return haplotypeGroups;
+    }
+
+    /**
+     * Helper method used by getHaplotypeGroups to collapse unique sequences that are identical
+     * if ambiguous sites are taken into account.
+     *
+     * @param alignments   alignments linked with the tree
+     * @param taxa         names of the taxa
+     * @param classTips    taxon representing each class of sequences identical in all alignments
+     * @return group of each class, numbered from 0
+     */
+    protected int[] groupSequencesIdenticalUpToMissingData(List<Alignment> alignments, List<String> taxa, int[] classTips) {
+        final int classCount = classTips.length;
+        // need to find out if sequences are identical when ambiguities are taken into account
+        //   index the sequences of all partitions as bit sets of states, such that only candidate pairs are compared
+        int[][] classTaxa = new int[alignments.size()][classCount];
+        for (int p = 0; p < alignments.size(); p++) {
+            for (int c = 0; c < classCount; c++)
+                classTaxa[p][c] = alignments.get(p).getTaxonIndex(taxa.get(classTips[c]));
+        }
+        Log.warning.print("Indexing sequences with ambiguous sites...");
+        AmbiguousSequenceIndex index = new AmbiguousSequenceIndex(alignments, classTaxa);
+        List<int[]> identicalPairs = index.getCompatiblePairs();
+        Log.warning.println("Done.");
+
+        // collapsing is only well defined if it is transitive, i.e. if the sequences connected by identical pairs
+        //  form cliques: join the connected sequences and count the identical pairs within each component
+        int[] components = new int[classCount];
+        int[] componentSizes = new int[classCount];
+        for (int c = 0; c < classCount; c++) {
+            components[c] = c;
+            componentSizes[c] = 1;
+        }
+        for (int[] pair : identicalPairs) {
+            int root1 = findComponent(components, pair[0]);
+            int root2 = findComponent(components, pair[1]);
+            if (root1 == root2)
+                continue;
+            if (componentSizes[root1] < componentSizes[root2]) {
+                int tmp = root1;
+                root1 = root2;
+                root2 = tmp;
             }
+            components[root2] = root1;
+            componentSizes[root1] += componentSizes[root2];
+        }
+        long[] componentPairCounts = new long[classCount];
+        for (int[] pair : identicalPairs)
+            componentPairCounts[findComponent(components, pair[0])]++;
+        List<Integer> nonCliques = new ArrayList<>();
+        for (int c = 0; c < classCount; c++) {
+            final long size = componentSizes[c];
+            if (components[c] == c && componentPairCounts[c] != size * (size - 1) / 2)
+                nonCliques.add(c);
+        }
+        if (!nonCliques.isEmpty())
+            throw new IllegalArgumentException(getNonTransitiveCollapsingMessage(nonCliques, components,
+                    identicalPairs, taxa, classTips));
+
+        // the components are the groups, numbered in the order of their first sequence
+        int[] classGroups = new int[classCount];
+        int[] componentGroups = new int[classCount];
+        Arrays.fill(componentGroups, -1);
+        int groupCount = 0;
+        for (int c = 0; c < classCount; c++) {
+            final int root = findComponent(components, c);
+            if (componentGroups[root] == -1)
+                componentGroups[root] = groupCount++;
+            classGroups[c] = componentGroups[root];
+        }
+        return classGroups;
+    }
+
+    /**
+     * Find the representative of the component of a sequence, halving the path on the way
+     *
+     * @param components parent of each sequence in the union-find forest
+     * @param c          sequence
+     * @return representative of the component of c
+     */
+    private static int findComponent(int[] components, int c) {
+        while (components[c] != c) {
+            components[c] = components[components[c]];
+            c = components[c];
         }
+        return c;
+    }
 
-        Log.warning.print("Prepping distance matrix");
-        // fill in the entries of distance matrix which are not 0
-        //    and at the same time check if some sequences are identical up to missing data parts
-        for (int i = 0; i < n - 1; i++) {
-            List<Integer> taxa1 = sequenceMap.get(uniqueSequences[i]);
-            for (int j = i + 1; j < n; j++) {
-                List<Integer> taxa2 = sequenceMap.get(uniqueSequences[j]);
-                double dist;
-                // if collapseSequencesWithMissingData = true
-                //    we can perhaps further collapse some of the uniqueSequences found so far
-                if (collapseSequencesWithMissingData && (ambiguousSequences[i] || ambiguousSequences[j]) ) {
-                    dist = ((DifferenceCount) distance).pairwiseDifference(taxa1.get(0), taxa2.get(0),
-                                                                            collapseSequencesWithMissingData);
-                } else {
-                    dist = 1;
-                }
-                if (dist == 0){
-                    Log.warning.print("\nwe can reduce the matrix\n");
+    /**
+     * Describe the sequences that cannot be collapsed unambiguously: for each component that is not a clique
+     * its taxa and two of them that are identical up to missing data to a third one, but not to each other.
+     */
+    private String getNonTransitiveCollapsingMessage(List<Integer> nonCliques, int[] components,
+                                                     List<int[]> identicalPairs, List<String> taxa, int[] classTips) {
+        final int classCount = classTips.length;
+        List<List<Integer>> neighbours = new ArrayList<>(classCount);
+        for (int c = 0; c < classCount; c++)
+            neighbours.add(new ArrayList<>());
+        for (int[] pair : identicalPairs) {
+            neighbours.get(pair[0]).add(pair[1]);
+            neighbours.get(pair[1]).add(pair[0]);
+        }
+
+        StringBuilder message = new StringBuilder("Sequences that are identical up to ambiguous sites " +
+                "cannot be collapsed unambiguously, since collapsing them is not transitive:");
+        for (int root : nonCliques) {
+            List<String> componentTaxa = new ArrayList<>();
+            int componentSize = 0;
+            for (int c = 0; c < classCount; c++) {
+                if (findComponent(components, c) == root) {
+                    componentSize++;
+                    componentTaxa.add(taxa.get(classTips[c]));
                 }
-                for (int k = 0; k < taxa1.size(); k++) {
-                    int taxon1 = taxa1.get(k);
-                    for (int m = 0; m < taxa2.size(); m++) {
-                        int taxon2 = taxa2.get(m);
-                        // for sequences that remained un-collapsed  fill in distance 1
-                        //   the exact distance is not of interest here, just an indication that some distance exists
-                        distanceMatrix[taxon1][taxon2] = dist;
-                        distanceMatrix[taxon2][taxon1] = dist;
+            }
+            // a sequence not identical to all others of its component has some sequence at two steps from it
+            String example = "";
+            for (int c = 0; c < classCount && example.isEmpty(); c++) {
+                if (findComponent(components, c) != root || neighbours.get(c).size() == componentSize - 1)
+                    continue;
+                Set<Integer> direct = new HashSet<>(neighbours.get(c));
+                for (int middle : neighbours.get(c)) {
+                    for (int far : neighbours.get(middle)) {
+                        if (far != c && !direct.contains(far)) {
+                            example = "\n  " + taxa.get(classTips[c]) + " and " + taxa.get(classTips[far])
+                                    + " are both identical to " + taxa.get(classTips[middle])
+                                    + " up to ambiguous sites, but not to each other";
+                            break;
+                        }
                     }
+                    if (!example.isEmpty())
+                        break;
                 }
             }
-            if (i % 100 == 0) {
-                Log.warning.print(".");
+            message.append(example).append("\n  taxa concerned: ").append(componentTaxa);
+        }
+        message.append("\nPlease resolve the ambiguities of these sequences or set " +
+                "collapseSequencesIfIdenticalUpToMissingParts to false.");
+        return message.toString();
+    }
+
+    /**
+     * @param haplotypeGroups haplotype of each tip as returned by getHaplotypeGroups
+     * @return number of tips of each haplotype
+     */
+    protected static int[] getHaplotypeGroupSizes(int[] haplotypeGroups) {
+        int groupCount = 0;
+        for (int group : haplotypeGroups)
+            groupCount = Math.max(groupCount, group + 1);
+        int[] groupSizes = new int[groupCount];
+        for (int group : haplotypeGroups) {
+            if (group >= 0)
+                groupSizes[group]++;
+        }
+        return groupSizes;
+    }
+
+    /**
+     * Rule used to name a haplotype after one of its sequences, such that the same taxon is picked
+     * as the unique haplo node even after restart from state file
+     *
+     * @param candidate taxon name of a sequence of the haplotype
+     * @param current   taxon name currently used for the haplotype
+     * @return true if the haplotype should be named after candidate instead of current
+     */
+    protected static boolean isPreferredHaplotypeName(String candidate, String current) {
+        // prefer tips starting with t
+        if (!current.startsWith("t") && candidate.startsWith("t"))
+            return true;
+        // otherwise keep always the tip with smallest number
+        return current.compareTo(candidate) > 0;
+    }
+
+    /**
+     * Reduce the taxa of an alignment to one representative taxon per haplotype and sampling time,
+     * such that an initial tree needs to be built for the unique sequences only.
+     * Incidence taxa (sequences of N's only) are always kept as they are.
+     *
+     * @param data alignment with all taxa
+     * @param collapseIdentical if false, every taxon represents itself
+     * @param collapseSequencesWithMissingData
+     * @return the representative taxa in the order of the alignment, mapped to the number of sequences they stand for
+     */
+    protected Map<String, Integer> getHaplotypeRepresentatives(Alignment data, boolean collapseIdentical,
+                                                              boolean collapseSequencesWithMissingData) {
+        List<String> taxa = data.getTaxaNames();
+        Map<String, Integer> representatives = new LinkedHashMap<>();
+        if (!collapseIdentical) {
+            for (String taxon : taxa)
+                representatives.put(taxon, getInputHaplotypeCount(taxon));
+            return representatives;
+        }
+
+        int[] haplotypeGroups = getHaplotypeGroups(data, taxa, collapseSequencesWithMissingData);
+        // representative of each haplotype at each sampling height
+        List<Map<Double, String>> groupRepresentatives = new ArrayList<>();
+        for (int k = 0; k < taxa.size(); k++) {
+            String taxon = taxa.get(k);
+            int count = getInputHaplotypeCount(taxon);
+            if (isIncidenceSequence(data, taxon)) {
+                representatives.put(taxon, count);
+                continue;
+            }
+            while (groupRepresentatives.size() <= haplotypeGroups[k])
+                groupRepresentatives.add(new HashMap<>());
+            double height = timeTraitSet == null ? 0.0 : timeTraitSet.getValue(taxon);
+            String representative = groupRepresentatives.get(haplotypeGroups[k]).get(height);
+            if (representative == null) {
+                groupRepresentatives.get(haplotypeGroups[k]).put(height, taxon);
+                representatives.put(taxon, count);
+            } else if (isPreferredHaplotypeName(taxon, representative)) {
+                groupRepresentatives.get(haplotypeGroups[k]).put(height, taxon);
+                representatives.put(taxon, representatives.remove(representative) + count);
+            } else {
+                representatives.put(representative, representatives.get(representative) + count);
             }
         }
-        Log.warning.println("Done.");
+        return representatives;
+    }
 
-        return distanceMatrix;
+    /**
+     * The haplotype counts map is only filled once the tree is built, so while an initial tree
+     * is being set up the counts have to be read from the trait set.
+     *
+     * @return number of sequences the taxon stands for according to the haplotype counts provided
+     */
+    protected int getInputHaplotypeCount(String taxon) {
+        if (haplotypeCountsSet != null)
+            return (int) haplotypeCountsSet.getValue(taxon);
+        return haplotypeCounts.getOrDefault(taxon, 1);
+    }
+
+    /**
+     * @return true if the sequence of the taxon consists of N's only, i.e. is an incidence sequence
+     */
+    protected static boolean isIncidenceSequence(Alignment data, String taxon) {
+        return INCIDENCE_SEQUENCE.matcher(data.sequenceInput.get().get(data.getTaxonIndex(taxon)).getData()).matches();
+    }
+
+    /**
+     * @param representatives taxa mapped to the number of sequences they stand for, see getHaplotypeRepresentatives
+     * @param taxonSet        taxon set of the representatives
+     * @return haplotype counts trait set of the representatives
+     */
+    protected TraitSet getHaplotypeCountsTrait(Map<String, Integer> representatives, TaxonSet taxonSet) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Integer> representative : representatives.entrySet()) {
+            if (sb.length() > 0)
+                sb.append(",\n");
+            sb.append(representative.getKey()).append("=").append(representative.getValue());
+        }
+        TraitSet countsTrait = new TraitSet();
+        countsTrait.initByName("traitname", qsLabel, "taxa", taxonSet, "value", sb.toString());
+        return countsTrait;
     }
 
     /**
@@ -1370,45 +1702,6 @@ public class QuasiSpeciesTree extends Tree {
         return type.encodingToString(intersectionsequence);
     }
 
-    /**
-     * Method to determine if a distance matrix is fully reciprocal,
-     *   ie if dist=0 would represent and edge between two taxa (nodes), and we have fully reciprocal distance matrix,
-     *   we would have fully connected cliques
-     *
-     * @param distanceMatrix matrix of distances between taxa (expected 0 - something positive)
-     * @return          return true if the matrix is reciprocal
-     */
-
-    private boolean checkIfDistMatrixFullyReciprocal(double[][] distanceMatrix){
-        List<List<Integer>> taxaGroups = new ArrayList<>();
-        List<Integer> groupoftaxa = new ArrayList<>();
-        groupoftaxa.add(0);
-        for (int j = 0; j < distanceMatrix.length; j++){
-            if (distanceMatrix[0][j] == 0)
-                groupoftaxa.add(j);
-        }
-        taxaGroups.add(groupoftaxa);
-        for (int i = 1; i < distanceMatrix.length; i++){
-            groupoftaxa.clear();
-            for (int j = 0; j < distanceMatrix.length; j++){
-                if (distanceMatrix[i][j] == 0)
-                    groupoftaxa.add(j);
-            }
-            for ( List<Integer> existingGroup : taxaGroups ){
-                if ( existingGroup.contains(i)){
-                    if (existingGroup.size() == groupoftaxa.size()) {
-                        break;
-                    } else {
-                        return false;
-                    }
-                }
-
-            }
-            taxaGroups.add(groupoftaxa);
-        }
-        return true;
-    }
-
     /**
      * Helper method used by initFromFullTree/initFromUniqueHaploTree to evaluate
      * which nodes are to be kept as internal nodes and to assign the attachmentTimes array.
@@ -1418,13 +1711,14 @@ public class QuasiSpeciesTree extends Tree {
      * @param node
      * @param qsTips
      * @param qsInternalNodes
-     * @param distanceMatrix
+     * @param haplotypeGroups haplotype of each tip of the full tree, see getHaplotypeGroups
+     * @param haplotypeGroupSizes number of tips of each haplotype
      * @param haplotypesSeen list of taxon names that will be tips in the qsTree with unique sequences already seen
      * @return
      */
     private ArrayList processNextNodeOfFullNewickTree(
             Node node, List<QuasiSpeciesNode> qsTips, List<QuasiSpeciesNode> qsInternalNodes,
-            double[][] distanceMatrix, ArrayList haplotypesSeen, List<String> incidenceTaxa, boolean collapseIdentical) {
+            int[] haplotypeGroups, int[] haplotypeGroupSizes, ArrayList haplotypesSeen, List<String> incidenceTaxa, boolean collapseIdentical) {
 
         QuasiSpeciesNode returnNode = null;
         ArrayList haplotypesAtThisNode = new ArrayList();
@@ -1442,7 +1736,7 @@ public class QuasiSpeciesTree extends Tree {
                 // check if the sequence has been seen already
                 if (collapseIdentical == true) {
                     for (int i = 0; i < haplotypesSeen.size(); i++) {
-                        if (distanceMatrix[node.getNr()][(int) haplotypesSeen.get(i)] == 0) {
+                        if (haplotypeGroups[node.getNr()] == haplotypeGroups[(int) haplotypesSeen.get(i)]) {
                             QuasiSpeciesNode seenNode = qsTips.get(i);
                             // check if the time of the tip is less than the uniqueHaploTree tip
                             // if not, rewrite the info on the uniqueHaploTree tip
@@ -1450,11 +1744,7 @@ public class QuasiSpeciesTree extends Tree {
                                 seenNode.setHeight(node.getHeight());
                             }
                             // to robustly always pick the same node as the unique haplo node even after restart from state file
-                            if (!Pattern.compile("^t").matcher(seenNode.getID()).find() && Pattern.compile("^t").matcher(node.getID()).find()) {
-                                seenNode.setID(String.valueOf(node.getID()));
-                            }
-                            // if the tips do not start with t - then keep always the tip with smallest number
-                            else if (seenNode.getID().compareTo(node.getID()) > 0) {
+                            if (isPreferredHaplotypeName(node.getID(), seenNode.getID())) {
                                 seenNode.setID(String.valueOf(node.getID()));
                             }
                             // since the sequence has been seen already, assign the tip time to array
@@ -1478,11 +1768,13 @@ public class QuasiSpeciesTree extends Tree {
                             } else {
                                 // since we are assigning from the full tree, we need to check if we have
                                 //  already observed the same time for another already processed tip
+                                // a tip can stand for several sequences if it represents a haplotype at one sampling time
+                                int count = haplotypeCounts.size() != 0 ? getHaplotypeCounts(node) : 1;
                                 boolean haploSeen = false;
                                 for (int j = 0; j < tipTimesListTmp.length; j++) {
-                                    // if yes, just increase the corresponding timecount array by one
+                                    // if yes, just increase the corresponding timecount array
                                     if ( Math.abs(tipTimesListTmp[j] - node.getHeight()) < 1e-10) {
-                                        tipTimesCountListTmp[j] += 1;
+                                        tipTimesCountListTmp[j] += count;
                                         haploSeen = true;
                                         break;
                                     }
@@ -1490,7 +1782,7 @@ public class QuasiSpeciesTree extends Tree {
                                 // if not create a new entry
                                 if (!haploSeen) {
                                     // expand the TipTimesList and add a new value
-                                    addNewTimesAndCountEntry(seenNode, tipTimesListTmp, tipTimesCountListTmp, node.getHeight(), 1);
+                                    addNewTimesAndCountEntry(seenNode, tipTimesListTmp, tipTimesCountListTmp, node.getHeight(), count);
                                 }
                             }
                             skip = true;
@@ -1510,16 +1802,8 @@ public class QuasiSpeciesTree extends Tree {
                     returnNode.setHeight(node.getHeight());
                     returnNode.setID(String.valueOf(node.getID()));
                     returnNode.setNr(node.getNr());
-                    // create a new attachmentTimesList and tipTimesList entry and check how long it needs to be
-                    int newEntryLength = 0;
-                    double[] distances = distanceMatrix[node.getNr()].clone();
-                    Arrays.sort(distances);
-                    for (int i = 0; i < distances.length; i++){
-                        if (distances[i] == 0)
-                            newEntryLength += 1;
-                        else
-                            break;
-                    }
+                    // create a new attachmentTimesList and tipTimesList entry, one attachment time per sequence of the haplotype
+                    int newEntryLength = haplotypeGroupSizes[haplotypeGroups[node.getNr()]];
                     returnNode.setAttachmentTimesList(new double[newEntryLength]);
                     returnNode.setTipTimesList(new double[1]);
                     returnNode.getTipTimesList()[0] = node.getHeight();
@@ -1537,10 +1821,10 @@ public class QuasiSpeciesTree extends Tree {
         else {
             ArrayList leftOut = processNextNodeOfFullNewickTree(
                     node.getLeft(), qsTips, qsInternalNodes,
-                    distanceMatrix, haplotypesSeen, incidenceTaxa, collapseIdentical);
+                    haplotypeGroups, haplotypeGroupSizes, haplotypesSeen, incidenceTaxa, collapseIdentical);
             ArrayList rightOut = processNextNodeOfFullNewickTree(
                     node.getRight(), qsTips, qsInternalNodes,
-                    distanceMatrix, haplotypesSeen, incidenceTaxa, collapseIdentical);
+                    haplotypeGroups, haplotypeGroupSizes, haplotypesSeen, incidenceTaxa, collapseIdentical);
 
             QuasiSpeciesNode leftNode = (QuasiSpeciesNode) leftOut.get(0);
             QuasiSpeciesNode rightNode = (QuasiSpeciesNode) rightOut.get(0);
@@ -1787,8 +2071,7 @@ public class QuasiSpeciesTree extends Tree {
 
         for (Sequence sequence : data.sequenceInput.get()) {
             // match sequences consisting of only N's (i.e. incidence sequences)
-            Pattern p = Pattern.compile("^(N)\\1*$");
-            if (p.matcher(sequence.getData()).matches()) {
+            if (INCIDENCE_SEQUENCE.matcher(sequence.getData()).matches()) {
                 String taxon = sequence.getTaxon();
                 incidenceTaxa.add(taxon);
 
@@ -1870,116 +2153,175 @@ public class QuasiSpeciesTree extends Tree {
     //           StateNode implementation          //
     /////////////////////////////////////////////////
     /**
-     * Store method for storing state of the tree/nodes before the new proposal
+     * Store method for storing state of the tree/nodes before the new proposal.
+     * Only the nodes edited since the last store are copied, all others are identical to their stored state.
      *
      */
     @Override
     protected void store() {
-        int iRoot = root.getNr();
-        storedRoot = m_storedNodes[iRoot];
-
-        storeNodes(0, iRoot);
+        collectEditedNodes();
+        storeNodes();
 
-        storedRoot.setHeight(m_nodes[iRoot].getHeight());
-        if (this.getLeafNodeCount()>1){
-            storedRoot.setParent(null);
+        for (QuasiSpeciesIncidence incidence : incidences)
+            incidence.store();
+    }
 
-            if (root.getLeft()!=null)
-                storedRoot.setLeft(m_storedNodes[root.getLeft().getNr()]);
-            else
-                storedRoot.setLeft(null);
-            if (root.getRight()!=null)
-                storedRoot.setRight(m_storedNodes[root.getRight().getNr()]);
-            else
-                storedRoot.setRight(null);
+    /**
+     * Copy the edited nodes to the stored state arrays and start a new list of edited nodes
+     */
+    protected void storeNodes() {
+        storedRootNr = root.getNr();
+        boolean layoutValid = true;
+        if (allNodesEdited) {
+            for (int i = 0; i < nodeCount && layoutValid; i++)
+                layoutValid = storeNode(i);
+        } else {
+            for (int k = 0; k < editedNodeCount && layoutValid; k++)
+                layoutValid = storeNode(editedNodes[k]);
         }
-        QuasiSpeciesNode qsStoredRoot = (QuasiSpeciesNode)storedRoot;
-        qsStoredRoot.setHaploAboveName(((QuasiSpeciesNode)m_nodes[iRoot]).getHaploAboveName());
-        qsStoredRoot.setContinuingHaploName(((QuasiSpeciesNode)m_nodes[iRoot]).getContinuingHaploName());
-
-        if (m_nodes[iRoot].isLeaf()) {
-            System.arraycopy(((QuasiSpeciesNode) m_nodes[iRoot]).getAttachmentTimesList(),0,
-                    qsStoredRoot.getAttachmentTimesList(),0,
-                    ((QuasiSpeciesNode) m_nodes[iRoot]).getAttachmentTimesList().length);
-            System.arraycopy(((QuasiSpeciesNode) m_nodes[iRoot]).getTipTimesList(),0,
-                    qsStoredRoot.getTipTimesList(),0,
-                    ((QuasiSpeciesNode) m_nodes[iRoot]).getTipTimesList().length);
-            System.arraycopy(((QuasiSpeciesNode) m_nodes[iRoot]).getTipTimesCountList(),0,
-                    qsStoredRoot.getTipTimesCountList(),0,
-                    ((QuasiSpeciesNode) m_nodes[iRoot]).getTipTimesCountList().length);
-            qsStoredRoot.setParentHaplo(((QuasiSpeciesNode) m_nodes[iRoot]).getParentHaplo());
+        if (!layoutValid) {
+            // the number of attachment times of a tip changed, which only happens while the tree is set up
+            initAttachmentTimeArena();
+            for (int i = 0; i < nodeCount; i++)
+                storeNode(i);
         }
-        //else
-        //    qsStoredRoot.setStartBranchCounts(((QuasiSpeciesNode)m_nodes[iRoot]).getStartBranchCounts());
-
-        storeNodes(iRoot+1, nodeCount);
-
-        for (QuasiSpeciesIncidence incidence : incidences)
-            incidence.store();
+        clearEditedNodes();
     }
 
     /**
      * helper to store *
+     *
+     * @return false if the attachment times of the tip do not fit into its place in the arena
      */
-    private void storeNodes(int iStart, int iEnd) {
-        for (int i = iStart; i < iEnd; i++) {
-            QuasiSpeciesNode sink = (QuasiSpeciesNode)m_storedNodes[i];
-            QuasiSpeciesNode src = (QuasiSpeciesNode)m_nodes[i];
+    private boolean storeNode(int i) {
+        QuasiSpeciesNode src = (QuasiSpeciesNode) m_nodes[i];
+
+        storedHeights[i] = src.getHeight();
+        storedParents[i] = src.isRoot() ? -1 : src.getParent().getNr();
+        storedLefts[i] = src.getLeft() == null ? -1 : src.getLeft().getNr();
+        storedRights[i] = src.getRight() == null ? -1 : src.getRight().getNr();
+        storedHaploAboveNames[i] = src.getHaploAboveName();
+        storedContinuingHaploNames[i] = src.getContinuingHaploName();
+
+        if (src.isLeaf()) {
+            storedParentHaplos[i] = src.getParentHaplo();
+            double[] attachmentTimes = src.getAttachmentTimesList();
+            if (attachmentTimes != null) {
+                final int offset = storedAttachmentTimeOffsets[i];
+                if (attachmentTimes.length != storedAttachmentTimeOffsets[i + 1] - offset)
+                    return false;
+                System.arraycopy(attachmentTimes, 0, storedAttachmentTimes, offset, attachmentTimes.length);
+            }
+            storedTotalBranchLengths[i] = src.totalBranchLengths;
+            storedTotalBranchLengthsKnown[i] = src.totalBranchLengthsKnown;
+            storedTotalBranchLengthsUpdates[i] = src.totalBranchLengthsUpdates;
+        }
+        return true;
+    }
 
-            sink.setHeight(src.getHeight());
-            sink.setParent(m_storedNodes[src.getParent().getNr()]);
+    /**
+     * helper to restore *
+     */
+    private void restoreNode(int i) {
+        QuasiSpeciesNode sink = (QuasiSpeciesNode) m_nodes[i];
 
-            sink.setHaploAboveName(src.getHaploAboveName());
-            sink.setContinuingHaploName(src.getContinuingHaploName());
+        sink.restoreNode(storedHeights[i],
+                storedParents[i] < 0 ? null : m_nodes[storedParents[i]],
+                storedLefts[i] < 0 ? null : m_nodes[storedLefts[i]],
+                storedRights[i] < 0 ? null : m_nodes[storedRights[i]],
+                storedHaploAboveNames[i], storedContinuingHaploNames[i]);
 
-            if (src.isLeaf()){
-                System.arraycopy(src.getAttachmentTimesList(),0,sink.getAttachmentTimesList(),0,src.getAttachmentTimesList().length);
-                System.arraycopy(src.getTipTimesList(),0,sink.getTipTimesList(),0,src.getTipTimesList().length);
-                System.arraycopy(src.getTipTimesCountList(),0,sink.getTipTimesCountList(),0,src.getTipTimesCountList().length);
-                sink.setParentHaplo(src.getParentHaplo());
-            } //else
-              //  sink.setStartBranchCounts(src.getStartBranchCounts());
+        if (sink.isLeaf()) {
+            final int offset = storedAttachmentTimeOffsets[i];
+            sink.restoreHaplotype(storedParentHaplos[i], storedAttachmentTimes, offset,
+                    storedAttachmentTimeOffsets[i + 1] - offset, storedTotalBranchLengths[i],
+                    storedTotalBranchLengthsKnown[i], storedTotalBranchLengthsUpdates[i]);
+        }
 
+        if (i != storedRootNr) {
             sink.setNewtimeofchangedcopy(-1);
             sink.setOldtimeofchangedcopy(-1);
             sink.resetAttachmentTimesListChangedTag();
+        }
+    }
 
-            if (src.getLeft()!=null) {
-                sink.setLeft(m_storedNodes[src.getLeft().getNr()]);
-                if (src.getRight()!=null)
-                    sink.setRight(m_storedNodes[src.getRight().getNr()]);
-                else
-                    sink.setRight(null);
+    /**
+     * Marks the nodes changed by the operators since the last call, i.e. the dirty nodes, together with
+     * their current and stored parents, whose children may have changed with them.
+     */
+    protected void collectEditedNodes() {
+        if (nodeEdited == null || nodeEdited.length != m_nodes.length) {
+            nodeEdited = new boolean[m_nodes.length];
+            editedNodes = new int[m_nodes.length];
+            editedNodeCount = 0;
+            allNodesEdited = true;
+        }
+        if (allNodesEdited)
+            return;
+        for (int i = 0; i < nodeCount; i++) {
+            final Node node = m_nodes[i];
+            if (node.isDirty() != IS_CLEAN) {
+                markNodeEdited(i);
+                if (node.getParent() != null)
+                    markNodeEdited(node.getParent().getNr());
+                if (storedParents[i] >= 0)
+                    markNodeEdited(storedParents[i]);
             }
         }
     }
 
+    private void markNodeEdited(int nodeNr) {
+        if (!nodeEdited[nodeNr]) {
+            nodeEdited[nodeNr] = true;
+            editedNodes[editedNodeCount++] = nodeNr;
+        }
+    }
+
+    private void clearEditedNodes() {
+        for (int k = 0; k < editedNodeCount; k++)
+            nodeEdited[editedNodes[k]] = false;
+        editedNodeCount = 0;
+        allNodesEdited = false;
+    }
 
+    /**
+     * The framework cleans the dirty flags after each step, so pick up the edited nodes before that.
+     */
     @Override
-    public void restore() {
+    public void setEverythingDirty(final boolean isDirty) {
+        if (m_nodes != null) {
+            if (isDirty)
+                allNodesEdited = true;
+            else
+                collectEditedNodes();
+        }
+        super.setEverythingDirty(isDirty);
+    }
 
-        // necessary for sampled ancestor trees
-        nodeCount = m_storedNodes.length;
+    /**
+     * Writes the stored state back into the nodes edited since the last store,
+     * the node objects themselves are kept.
+     */
+    @Override
+    public void restore() {
 
-        final Node[] tmp = m_storedNodes;
-        m_storedNodes = m_nodes;
-        m_nodes = tmp;
-        root = m_nodes[storedRoot.getNr()];
+        // the nodes edited in this step are the only ones that differ from their stored state
+        collectEditedNodes();
 
-        // necessary for sampled ancestor trees,
-        // we have the nodes, no need for expensive recursion
-        leafNodeCount = 0;
-        for( Node n : m_nodes ) {
-            leafNodeCount += n.isLeaf() ? 1 : 0;
+        if (allNodesEdited) {
+            for (int i = 0; i < nodeCount; i++)
+                restoreNode(i);
+        } else {
+            for (int k = 0; k < editedNodeCount; k++)
+                restoreNode(editedNodes[k]);
         }
-
-        //leafNodeCount = root.getLeafNodeCount();
+        clearEditedNodes();
+        root = m_nodes[storedRootNr];
 
         hasStartedEditing = false;
 
-        for( Node n : m_nodes ) {
-            n.makeDirty(Tree.IS_CLEAN);
-        }
+        // the nodes are now identical to their stored state
+        root.makeAllDirty(Tree.IS_CLEAN);
 
         postCache = null;
 
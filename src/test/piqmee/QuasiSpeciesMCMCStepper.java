@@ -0,0 +1,62 @@
+package test.piqmee;
+
+import beast.core.Distribution;
+import beast.core.Operator;
+import beast.core.State;
+import beast.core.StateNode;
+
+import java.util.Arrays;
+
+/**
+ * Runs proposals through a State the way MCMC does, so that the calculation nodes of a model are
+ * checked, stored, restored and accepted by the framework just as in a real analysis.
+ */
+public class QuasiSpeciesMCMCStepper {
+
+    final State state;
+    final Distribution posterior;
+    long sampleNr;
+
+    public QuasiSpeciesMCMCStepper(Distribution posterior, StateNode... stateNodes) {
+        this.posterior = posterior;
+        state = new State();
+        state.initByName("stateNode", Arrays.asList(stateNodes));
+        state.initialise();
+        state.setPosterior(posterior);
+
+        state.setEverythingDirty(true);
+        posterior.calculateLogP();
+        state.setEverythingDirty(false);
+    }
+
+    /**
+     * Stores the state, applies the proposal and recalculates the posterior
+     *
+     * @param operator operator proposing the new state
+     * @return the log posterior of the proposed state, or negative infinity if the proposal failed,
+     * in which case the state is already restored
+     */
+    public double propose(Operator operator) {
+        state.store(sampleNr++);
+        if (operator.proposal() == Double.NEGATIVE_INFINITY) {
+            state.restore();
+            state.setEverythingDirty(false);
+            return Double.NEGATIVE_INFINITY;
+        }
+        state.storeCalculationNodes();
+        state.checkCalculationNodesDirtiness();
+        return posterior.calculateLogP();
+    }
+
+    public void accept() {
+        state.acceptCalculationNodes();
+        state.setEverythingDirty(false);
+    }
+
+    public void reject() {
+        state.restore();
+        state.restoreCalculationNodes();
+        state.setEverythingDirty(false);
+    }
+
+}
@@ -15,6 +15,12 @@ import java.util.List;
  */
 public class QuasiSpeciesTestCase {
 
+    // tree and sequences with several site patterns, the identical sequences t3 to t6 collapse into one haplotype
+    static public final String MULTI_SITE_NEWICK =
+            "(((t3:1.,t4:1.):2.0,(t5:1.5,t6:0.5):0.5):1.0,((t0:1.5,t1:0.5):1.,t2:0.5):1.5);";
+    static public final String[] MULTI_SITE_SEQUENCES = new String[] {"ACGTACGTACGTTGCA", "ACGTTCGTACGATGCA",
+            "AGGTACGTAAGTTGCC", "CCGTACGAACGTAGCA", "CCGTACGAACGTAGCA", "CCGTACGAACGTAGCA", "CCGTACGAACGTAGCA"};
+
     static public Alignment getAlignment(String[] data) {
         List<Sequence> seqList = new ArrayList<Sequence>();
 
@@ -0,0 +1,86 @@
+package test.piqmee.distance;
+
+import beast.core.Description;
+import beast.evolution.alignment.Alignment;
+import beast.util.Randomizer;
+import org.junit.Test;
+import piqmee.distance.AmbiguousSequenceIndex;
+import piqmee.distance.DifferenceCount;
+import test.piqmee.QuasiSpeciesTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+@Description("Test that the sequence index finds the same identical up to missing data pairs as DifferenceCount")
+public class AmbiguousSequenceIndexTests {
+
+    /**
+     * @return sequences derived from a few haplotypes, with point mutations, N-runs and ambiguous characters
+     */
+    private String[] createSequences(int count, int length) {
+        String[] haplotypes = new String[3];
+        for (int h = 0; h < haplotypes.length; h++) {
+            StringBuilder haplotype = new StringBuilder();
+            for (int i = 0; i < length; i++)
+                haplotype.append("ACGT".charAt(Randomizer.nextInt(4)));
+            haplotypes[h] = haplotype.toString();
+        }
+        String[] sequences = new String[count];
+        for (int s = 0; s < count; s++) {
+            char[] sequence = haplotypes[Randomizer.nextInt(haplotypes.length)].toCharArray();
+            if (Randomizer.nextDouble() < 0.3)
+                sequence[Randomizer.nextInt(length)] = "ACGT".charAt(Randomizer.nextInt(4));
+            if (Randomizer.nextDouble() < 0.5) {
+                int start = Randomizer.nextInt(length);
+                int end = Math.min(length, start + 1 + Randomizer.nextInt(length / 2));
+                for (int i = start; i < end; i++)
+                    sequence[i] = 'N';
+            }
+            if (Randomizer.nextDouble() < 0.3)
+                sequence[Randomizer.nextInt(length)] = "RYKM".charAt(Randomizer.nextInt(4));
+            sequences[s] = new String(sequence);
+        }
+        return sequences;
+    }
+
+    @Test
+    public void testCompatiblePairs() {
+        Randomizer.setSeed(53);
+        for (int repeat = 0; repeat < 20; repeat++) {
+            Alignment alignment = QuasiSpeciesTestCase.getAlignment(createSequences(40, 70));
+            int[][] taxa = new int[1][alignment.getTaxonCount()];
+            for (int i = 0; i < alignment.getTaxonCount(); i++)
+                taxa[0][i] = i;
+
+            List<String> expected = new ArrayList<>();
+            DifferenceCount distance = new DifferenceCount();
+            distance.setPatterns(alignment);
+            for (int i = 0; i < alignment.getTaxonCount() - 1; i++) {
+                for (int j = i + 1; j < alignment.getTaxonCount(); j++) {
+                    if (distance.pairwiseDifference(i, j, true) == 0)
+                        expected.add(i + "-" + j);
+                }
+            }
+
+            List<String> found = new ArrayList<>();
+            AmbiguousSequenceIndex index = new AmbiguousSequenceIndex(Collections.singletonList(alignment), taxa);
+            for (int[] pair : index.getCompatiblePairs()) {
+                // identical sequences without ambiguities are left to the hashing of the sequences
+                found.add(pair[0] + "-" + pair[1]);
+            }
+            for (int i = 0; i < alignment.getTaxonCount() - 1; i++) {
+                for (int j = i + 1; j < alignment.getTaxonCount(); j++) {
+                    if (!index.isAmbiguous(i) && !index.isAmbiguous(j) && index.isCompatible(i, j))
+                        found.add(i + "-" + j);
+                }
+            }
+            Collections.sort(expected);
+            Collections.sort(found);
+            assertEquals(expected, found);
+        }
+    }
+
+}
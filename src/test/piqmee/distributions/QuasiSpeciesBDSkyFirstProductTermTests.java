@@ -0,0 +1,118 @@
+package test.piqmee.distributions;
+
+import beast.core.Description;
+import beast.core.parameter.BooleanParameter;
+import beast.core.parameter.RealParameter;
+import org.junit.Test;
+import piqmee.distributions.QuasiSpeciesBirthDeathSkylineModel;
+import piqmee.tree.QuasiSpeciesTree;
+import test.piqmee.QuasiSpeciesTestCase;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+@Description("Test that the first product term summed per skyline interval equals the sum of log_q over the attachment times")
+public class QuasiSpeciesBDSkyFirstProductTermTests {
+
+    /**
+     * Exposes the first product term of a haplotype and the sum over its attachment times it replaces
+     */
+    public static class FirstProductTermModel extends QuasiSpeciesBirthDeathSkylineModel {
+
+        double getLogFirstProductTerm(double[] QSTimes, int haploNr) {
+            return logFirstProductTerm(QSTimes, QSTimes.length, haploNr);
+        }
+
+        double getLogFirstProductTermPerTime(double[] QSTimes) {
+            double logP = 0;
+            for (int j = 1; j < QSTimes.length; j++) {
+                final double x = times[totalIntervals - 1] - QSTimes[j];
+                final int index = index(x);
+                logP += FastMathLog(birth[index]) + log_q(index, times[index], x);
+            }
+            return logP;
+        }
+
+        /**
+         * @return the heights of the boundaries between the skyline intervals
+         */
+        List<Double> getIntervalBoundaryHeights() {
+            List<Double> heights = new ArrayList<>();
+            for (int i = 0; i < totalIntervals - 1; i++)
+                heights.add(times[totalIntervals - 1] - times[i]);
+            return heights;
+        }
+    }
+
+    /**
+     * @return attachment times in the format of a haplotype, in descending order with the QS start first,
+     * including times on and next to every interval boundary
+     */
+    private double[] getAttachmentTimes(FirstProductTermModel model, double... times) {
+        List<Double> heights = new ArrayList<>();
+        for (double time : times)
+            heights.add(time);
+        for (double boundary : model.getIntervalBoundaryHeights()) {
+            heights.add(boundary);
+            heights.add(boundary);
+            heights.add(boundary + 0.01);
+            if (boundary > 0.01)
+                heights.add(boundary - 0.01);
+        }
+        heights.sort(Collections.reverseOrder());
+        double[] attachmentTimes = new double[heights.size() + 1];
+        attachmentTimes[0] = heights.get(0);
+        for (int i = 0; i < heights.size(); i++)
+            attachmentTimes[i + 1] = heights.get(i);
+        return attachmentTimes;
+    }
+
+    @Test
+    public void testFirstProductTermOnMultipleIntervals() {
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromNewick(
+                "((t3 : 1.5, t0 : 0.5) : 1 , (t1 : 2, t2 : 1) : 3);", new String[]{"A", "C", "G", "T"});
+        RealParameter origin = new RealParameter("6.0");
+        RealParameter rhoTimes = new RealParameter("0.0 3.0");
+
+        FirstProductTermModel model = new FirstProductTermModel();
+        model.setInputValue("tree", tree);
+        model.setInputValue("origin", origin);
+        model.setInputValue("conditionOnSurvival", false);
+        model.setInputValue("birthRate", new RealParameter("2.0 3.0"));
+        model.setInputValue("birthRateChangeTimes", new RealParameter("0.0 2.5"));
+        model.setInputValue("deathRate", new RealParameter("1.0"));
+        model.setInputValue("samplingRate", new RealParameter("0.5"));
+        model.setInputValue("rho", new RealParameter("0.3 0.2"));
+        model.setInputValue("rhoSamplingTimes", rhoTimes);
+        model.setInputValue("reverseTimeArrays", new BooleanParameter("true false false true false"));
+        model.initAndValidate();
+        model.calculateTreeLogLikelihood(tree);
+
+        // t0 has a single copy, so the interval cached for it is only touched by the calls below
+        final int haploNr = 0;
+        double[] attachmentTimes = getAttachmentTimes(model, 5.8, 4.2, 1.7, 0.2);
+        assertEquals(model.getLogFirstProductTermPerTime(attachmentTimes),
+                model.getLogFirstProductTerm(attachmentTimes, haploNr), 1e-10);
+
+        // the oldest attachment time now lies in a later interval than the cached one
+        double[] youngAttachmentTimes = new double[]{0.8, 0.8, 0.5, 0.2};
+        assertEquals(model.getLogFirstProductTermPerTime(youngAttachmentTimes),
+                model.getLogFirstProductTerm(youngAttachmentTimes, haploNr), 1e-10);
+        assertEquals(model.getLogFirstProductTermPerTime(attachmentTimes),
+                model.getLogFirstProductTerm(attachmentTimes, haploNr), 1e-10);
+
+        // moving the origin and a rho sampling time moves the intervals under the cached interval
+        origin.setValue(7.0);
+        rhoTimes.setValue(1, 1.0);
+        model.calculateTreeLogLikelihood(tree);
+        assertEquals(model.getLogFirstProductTermPerTime(attachmentTimes),
+                model.getLogFirstProductTerm(attachmentTimes, haploNr), 1e-10);
+        attachmentTimes = getAttachmentTimes(model, 6.5, 4.2, 1.7, 0.2);
+        assertEquals(model.getLogFirstProductTermPerTime(attachmentTimes),
+                model.getLogFirstProductTerm(attachmentTimes, haploNr), 1e-10);
+    }
+
+}
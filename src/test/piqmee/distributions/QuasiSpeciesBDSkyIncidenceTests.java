@@ -4,6 +4,7 @@ import beast.core.Description;
 import beast.core.parameter.BooleanParameter;
 import beast.core.parameter.RealParameter;
 import beast.evolution.tree.Tree;
+import beast.util.Randomizer;
 import beast.util.TreeParser;
 import org.junit.Test;
 import piqmee.distributions.BirthDeathSkylineModel;
@@ -105,7 +106,8 @@ public class QuasiSpeciesBDSkyIncidenceTests {
 
         for (QuasiSpeciesIncidence incidence : incidences) {
             expectedSamplingTimes.add(incidence.getSamplingTime());
-            expectedAttachmentTimes.addAll(incidence.getAttachmentTimes());
+            for (double attachmentTime : incidence.getAttachmentTimes())
+                expectedAttachmentTimes.add(attachmentTime);
         }
 
         assertEquals(expectedSamplingTimes, actualSamplingTimes);
@@ -169,6 +171,68 @@ public class QuasiSpeciesBDSkyIncidenceTests {
         assertEquals(expectedLogCount, actualLogCount, 1e-5);
     }
 
+    @Test
+    public void testLogNumberOfIncidenceTreesAfterMove() {
+        QuasiSpeciesTree tree = getQuasiSpeciesTree();
+
+        final RealParameter origin = new RealParameter("7.0");
+        final boolean conditionOnSurvival = false;
+        final RealParameter birth = new RealParameter("2.0");
+        final RealParameter death = new RealParameter("1.0");
+        final RealParameter sampling = new RealParameter("0.5");
+        final RealParameter rho = new RealParameter("0.5 0.5 0.5");
+        final RealParameter rhoTimes = new RealParameter("4.0 1.0 2.0");
+
+        QuasiSpeciesBirthDeathSkylineModel qsbdSkyModel = getQSBDSkyModel(tree, origin, conditionOnSurvival,
+                                                                            birth, death, sampling, rho, rhoTimes);
+        qsbdSkyModel.logNumberOfIncidenceTrees(tree);
+
+        // move single attachment times, such that only the terms in between are updated
+        for (QuasiSpeciesIncidence incidence : tree.getIncidences()) {
+            int last = incidence.getAttachmentTimeCount() - 1;
+            incidence.moveAttachmentTime(last, (incidence.getSamplingTime() + incidence.getAttachmentTime(0)) / 2);
+            double updatedLogCount = qsbdSkyModel.logNumberOfIncidenceTrees(tree);
+
+            QuasiSpeciesBirthDeathSkylineModel newModel = getQSBDSkyModel(tree, origin, conditionOnSurvival,
+                                                                            birth, death, sampling, rho, rhoTimes);
+            assertEquals(newModel.logNumberOfIncidenceTrees(tree), updatedLogCount, 1e-10);
+        }
+    }
+
+    @Test
+    public void testLogNumberOfIncidenceTreesAfterRandomMoves() {
+        Randomizer.setSeed(127);
+        QuasiSpeciesTree tree = getQuasiSpeciesTree();
+
+        final RealParameter origin = new RealParameter("7.0");
+        final boolean conditionOnSurvival = false;
+        final RealParameter birth = new RealParameter("2.0");
+        final RealParameter death = new RealParameter("1.0");
+        final RealParameter sampling = new RealParameter("0.5");
+        final RealParameter rho = new RealParameter("0.5 0.5 0.5");
+        final RealParameter rhoTimes = new RealParameter("4.0 1.0 2.0");
+
+        QuasiSpeciesBirthDeathSkylineModel qsbdSkyModel = getQSBDSkyModel(tree, origin, conditionOnSurvival,
+                                                                            birth, death, sampling, rho, rhoTimes);
+        qsbdSkyModel.logNumberOfIncidenceTrees(tree);
+
+        // new times anywhere between the sampling time and the root, so that moves pass several neighbours either way
+        final double rootHeight = tree.getRoot().getHeight();
+        QuasiSpeciesIncidence[] incidences = tree.getIncidences();
+        for (int step = 0; step < 500; step++) {
+            QuasiSpeciesIncidence incidence = incidences[Randomizer.nextInt(incidences.length)];
+            final int index = Randomizer.nextInt(incidence.getAttachmentTimeCount());
+            final double samplingTime = incidence.getSamplingTime();
+            incidence.moveAttachmentTime(index, samplingTime + Randomizer.nextDouble() * (rootHeight - samplingTime));
+            double updatedLogCount = qsbdSkyModel.logNumberOfIncidenceTrees(tree);
+
+            QuasiSpeciesBirthDeathSkylineModel newModel = getQSBDSkyModel(tree, origin, conditionOnSurvival,
+                                                                            birth, death, sampling, rho, rhoTimes);
+            assertEquals("log number of incidence trees in step " + step,
+                    newModel.logNumberOfIncidenceTrees(tree), updatedLogCount, 1e-10);
+        }
+    }
+
     @Test
     public void testIncidencesContributionToTreeLogLikelihood() {
         final RealParameter origin = new RealParameter("7.0");
@@ -0,0 +1,174 @@
+package test.piqmee.likelihood;
+
+import beast.core.Description;
+import beast.core.Operator;
+import beast.core.parameter.RealParameter;
+import beast.core.util.CompoundDistribution;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.JukesCantor;
+import beast.evolution.tree.Node;
+import beast.util.Randomizer;
+import org.junit.Test;
+import piqmee.distributions.QuasiSpeciesBirthDeathSkylineModel;
+import piqmee.likelihood.QuasiSpeciesAutoTreeLikelihood;
+import piqmee.likelihood.QuasiSpeciesTreeLikelihood;
+import piqmee.operators.QuasiSpeciesHaplotypeScale;
+import piqmee.operators.QuasiSpeciesSequenceAttachmentUniform;
+import piqmee.operators.QuasiSpeciesUniform;
+import piqmee.tree.QuasiSpeciesNode;
+import piqmee.tree.QuasiSpeciesTree;
+import test.piqmee.QuasiSpeciesMCMCStepper;
+import test.piqmee.QuasiSpeciesTestCase;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+@Description("Test that the engine chosen by QuasiSpeciesAutoTreeLikelihood gives the likelihood of the default engine")
+public class QuasiSpeciesAutoTreeLikelihoodTests {
+
+    private double getLogPFromScratch(Alignment data, QuasiSpeciesTree tree, SiteModel siteModel) {
+        QuasiSpeciesTreeLikelihood likelihood = new QuasiSpeciesTreeLikelihood();
+        likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+        return likelihood.calculateLogP();
+    }
+
+    private String getNodeTimes(QuasiSpeciesTree tree) {
+        StringBuilder times = new StringBuilder();
+        for (Node node : tree.getNodesAsArray()) {
+            times.append(node.getNr()).append(": ").append(node.getHeight());
+            if (node.isLeaf())
+                times.append(" ").append(Arrays.toString(((QuasiSpeciesNode) node).getAttachmentTimesList()));
+            times.append("\n");
+        }
+        return times.toString();
+    }
+
+    @Test
+    public void testChosenEngineEqualsDefault() {
+        System.setProperty("java.only", "true");
+        Randomizer.setSeed(127);
+
+        // haplotypes with duplicates, so the benchmark moves attachment times as well as node heights
+        String[] sequences = Arrays.copyOf(QuasiSpeciesTestCase.MULTI_SITE_SEQUENCES, 4);
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromNewick(
+                "((t2 : 0.5, t3 : 0.5) : 0.5, (t0 : 0.25, t1 : 0.25) : 0.25);", sequences);
+        Alignment data = QuasiSpeciesTestCase.getAlignment(sequences);
+        JukesCantor JC = new JukesCantor();
+        JC.initAndValidate();
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("mutationRate", "0.5", "gammaCategoryCount", 4, "shape", "0.5", "substModel", JC);
+
+        final String nodeTimes = getNodeTimes(tree);
+        QuasiSpeciesAutoTreeLikelihood likelihood = new QuasiSpeciesAutoTreeLikelihood();
+        likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+        assertEquals("tree after the benchmark", nodeTimes, getNodeTimes(tree));
+
+        final double logP = getLogPFromScratch(data, tree, siteModel);
+        assertEquals(logP, likelihood.calculateLogP(), 1e-10);
+        assertEquals(logP, likelihood.getLikelihood().calculateLogP(), 1e-10);
+
+        // the chosen engine keeps following the tree once the benchmark is done
+        QuasiSpeciesMCMCStepper stepper = new QuasiSpeciesMCMCStepper(likelihood, tree);
+        RealParameter origin = new RealParameter("5.0");
+        Operator[] operators = new Operator[2];
+        operators[0] = new QuasiSpeciesUniform();
+        operators[0].initByName("quasiSpeciesTree", tree, "origin", origin, "weight", 1.0);
+        operators[1] = new QuasiSpeciesSequenceAttachmentUniform();
+        operators[1].initByName("quasiSpeciesTree", tree, "origin", origin, "weight", 1.0);
+        for (int step = 0; step < 100; step++) {
+            if (stepper.propose(operators[Randomizer.nextInt(operators.length)]) == Double.NEGATIVE_INFINITY)
+                continue;
+            assertEquals("log likelihood in step " + step,
+                    getLogPFromScratch(data, tree, siteModel), likelihood.getCurrentLogP(), 1e-10);
+            if (Randomizer.nextBoolean()) {
+                stepper.accept();
+            } else {
+                stepper.reject();
+                assertEquals("log likelihood after restore in step " + step,
+                        getLogPFromScratch(data, tree, siteModel), likelihood.getCurrentLogP(), 1e-10);
+            }
+        }
+    }
+
+    private QuasiSpeciesBirthDeathSkylineModel getTreePrior(QuasiSpeciesTree tree, RealParameter origin) {
+        QuasiSpeciesBirthDeathSkylineModel model = new QuasiSpeciesBirthDeathSkylineModel();
+        model.initByName("tree", tree, "origin", origin, "conditionOnSurvival", false,
+                "birthRate", new RealParameter("2.0"), "deathRate", new RealParameter("1.0"),
+                "samplingRate", new RealParameter("0.5"));
+        return model;
+    }
+
+    /**
+     * Checks the cached branch length sum of every haplotype against a computation from scratch
+     */
+    private void checkTotalBranchLengths(QuasiSpeciesTree tree, int step) {
+        for (Node n : tree.getExternalNodes()) {
+            QuasiSpeciesNode node = (QuasiSpeciesNode) n;
+            double total = 0.0;
+            for (double attachmentTime : node.getAttachmentTimesList())
+                total += attachmentTime;
+            for (int i = 0; i < node.getTipTimesList().length; i++)
+                total -= node.getTipTimesList()[i] * node.getTipTimesCountList()[i];
+            assertEquals("branch length sum of " + node.getID() + " in step " + step,
+                    total, node.getTotalBranchLengths(), 1e-9);
+        }
+    }
+
+    /**
+     * The benchmark moves attachment times of the live tree, it must not leave anything behind
+     * that the tree prior or the cached branch length sums pick up in the steps after it
+     */
+    @Test
+    public void testTreeCachesAfterBenchmark() {
+        System.setProperty("java.only", "true");
+        Randomizer.setSeed(127);
+
+        String[] sequences = Arrays.copyOf(QuasiSpeciesTestCase.MULTI_SITE_SEQUENCES, 4);
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromNewick(
+                "((t2 : 0.5, t3 : 0.5) : 0.5, (t0 : 0.25, t1 : 0.25) : 0.25);", sequences);
+        Alignment data = QuasiSpeciesTestCase.getAlignment(sequences);
+        JukesCantor JC = new JukesCantor();
+        JC.initAndValidate();
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("mutationRate", "0.5", "gammaCategoryCount", 4, "shape", "0.5", "substModel", JC);
+
+        RealParameter origin = new RealParameter("5.0");
+        QuasiSpeciesBirthDeathSkylineModel treePrior = getTreePrior(tree, origin);
+        // cache the first product terms, so the prior can take its single copy update right after the benchmark
+        treePrior.calculateLogP();
+        QuasiSpeciesAutoTreeLikelihood likelihood = new QuasiSpeciesAutoTreeLikelihood();
+        likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+        checkTotalBranchLengths(tree, -1);
+
+        CompoundDistribution posterior = new CompoundDistribution();
+        posterior.initByName("distribution", Arrays.asList(treePrior, likelihood));
+        QuasiSpeciesMCMCStepper stepper = new QuasiSpeciesMCMCStepper(posterior, tree);
+
+        // the haplotype scale rewrites whole attachment time lists, the others move single times and heights
+        Operator[] operators = new Operator[3];
+        operators[0] = new QuasiSpeciesSequenceAttachmentUniform();
+        operators[0].initByName("quasiSpeciesTree", tree, "origin", origin, "weight", 1.0);
+        operators[1] = new QuasiSpeciesHaplotypeScale();
+        operators[1].initByName("quasiSpeciesTree", tree, "origin", origin, "weight", 1.0);
+        operators[2] = new QuasiSpeciesUniform();
+        operators[2].initByName("quasiSpeciesTree", tree, "origin", origin, "weight", 1.0);
+        for (int step = 0; step < 200; step++) {
+            if (stepper.propose(operators[Randomizer.nextInt(operators.length)]) == Double.NEGATIVE_INFINITY)
+                continue;
+            checkTotalBranchLengths(tree, step);
+            assertEquals("tree prior in step " + step,
+                    getTreePrior(tree, origin).calculateLogP(), treePrior.getCurrentLogP(), 1e-10);
+            if (Randomizer.nextBoolean()) {
+                stepper.accept();
+            } else {
+                stepper.reject();
+                checkTotalBranchLengths(tree, step);
+                assertEquals("tree prior after restore in step " + step,
+                        getTreePrior(tree, origin).calculateLogP(), treePrior.getCurrentLogP(), 1e-10);
+            }
+        }
+    }
+
+}
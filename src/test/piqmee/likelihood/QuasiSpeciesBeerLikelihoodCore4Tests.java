@@ -0,0 +1,144 @@
+package test.piqmee.likelihood;
+
+import beast.core.Description;
+import beast.util.Randomizer;
+import org.junit.Test;
+import piqmee.likelihood.QuasiSpeciesBeerLikelihoodCore;
+import piqmee.likelihood.QuasiSpeciesBeerLikelihoodCore4;
+
+import static org.junit.Assert.assertArrayEquals;
+
+@Description("Test that the 4-state likelihood core with the unrolled loops gives the results of the generic core")
+public class QuasiSpeciesBeerLikelihoodCore4Tests {
+
+    private static final int STATES = 4;
+    private static final int LEAVES = 6;
+    private static final int NODES = 2 * LEAVES - 1;
+    private static final double TOLERANCE = 1e-12;
+
+    /**
+     * Fixed tree on which all combinations of tips and internal nodes as children occur:
+     * 6 = (0,1), 7 = (2,3), 8 = (6,4), 9 = (7,8), 10 = (9,5)
+     */
+    private static final int[][] CHILDREN = new int[][]{{0, 1}, {2, 3}, {6, 4}, {7, 8}, {9, 5}};
+
+    private double[] getRandomArray(int length) {
+        double[] values = new double[length];
+        for (int i = 0; i < length; i++)
+            values[i] = Randomizer.nextDouble();
+        return values;
+    }
+
+    private double[] normalize(double[] values) {
+        double sum = 0.0;
+        for (double value : values)
+            sum += value;
+        for (int i = 0; i < values.length; i++)
+            values[i] /= sum;
+        return values;
+    }
+
+    /**
+     * Runs one random configuration of tip data, matrices and continuing haplotypes through both cores
+     * and compares all partials and pattern log likelihoods they compute.
+     */
+    private void compareCores(int trial) {
+        final int patternCount = 1 + Randomizer.nextInt(9);
+        final int categoryCount = 1 + Randomizer.nextInt(4);
+        final boolean useAmbiguities = Randomizer.nextBoolean();
+
+        QuasiSpeciesBeerLikelihoodCore[] cores = new QuasiSpeciesBeerLikelihoodCore[]{
+                new QuasiSpeciesBeerLikelihoodCore(STATES), new QuasiSpeciesBeerLikelihoodCore4(STATES)};
+        for (QuasiSpeciesBeerLikelihoodCore core : cores)
+            core.initialize(NODES + LEAVES, patternCount, categoryCount, true, useAmbiguities);
+
+        // tips have states, a state of 4 is unknown, or partials if ambiguities are used
+        for (int tip = 0; tip < LEAVES; tip++) {
+            if (useAmbiguities) {
+                double[] partials = getRandomArray(patternCount * STATES);
+                for (QuasiSpeciesBeerLikelihoodCore core : cores)
+                    core.setNodePartials(tip, partials);
+            } else {
+                int[] states = new int[patternCount];
+                for (int k = 0; k < patternCount; k++)
+                    states[k] = Randomizer.nextDouble() < 0.2 ? STATES : Randomizer.nextInt(STATES);
+                for (QuasiSpeciesBeerLikelihoodCore core : cores)
+                    core.setNodeStates(tip, states);
+            }
+        }
+        for (int node = LEAVES; node < NODES + LEAVES; node++) {
+            for (QuasiSpeciesBeerLikelihoodCore core : cores)
+                core.createNodePartials(node);
+        }
+        // matrices of the branches, and of the partial branches above the QS starts from node count on
+        for (int node = 0; node < NODES + LEAVES; node++) {
+            for (int category = 0; category < categoryCount; category++) {
+                double[] matrix = getRandomArray(STATES * STATES);
+                for (QuasiSpeciesBeerLikelihoodCore core : cores)
+                    core.setNodeMatrix(node, category, matrix);
+            }
+        }
+
+        // every tip continues its own haplotype, every internal node one of its children's or none
+        int[] continuingQS = new int[NODES];
+        for (int tip = 0; tip < LEAVES; tip++)
+            continuingQS[tip] = tip;
+        int[] operations = new int[CHILDREN.length * QuasiSpeciesBeerLikelihoodCore.OPERATION_SIZE];
+        for (int i = 0; i < CHILDREN.length; i++) {
+            final int node = LEAVES + i;
+            final int swap = Randomizer.nextInt(2);
+            final int child1 = CHILDREN[i][swap];
+            final int child2 = CHILDREN[i][1 - swap];
+            int[] candidates = new int[]{-1, continuingQS[child1], continuingQS[child2]};
+            continuingQS[node] = candidates[Randomizer.nextInt(candidates.length)];
+
+            int v = i * QuasiSpeciesBeerLikelihoodCore.OPERATION_SIZE;
+            operations[v++] = node;
+            operations[v++] = child1;
+            operations[v++] = child2;
+            operations[v++] = continuingQS[child1];
+            operations[v++] = continuingQS[child2];
+            operations[v] = continuingQS[node];
+        }
+
+        final int originLength = categoryCount * patternCount * STATES;
+        final double[] proportions = normalize(getRandomArray(categoryCount));
+        final double[] frequencies = normalize(getRandomArray(STATES));
+        double[][] nodePartials = new double[cores.length][originLength];
+        double[][] originPartials = new double[cores.length][originLength];
+        double[][] integratedPartials = new double[cores.length][patternCount * STATES];
+        double[][] logLikelihoods = new double[cores.length][patternCount];
+        for (int c = 0; c < cores.length; c++)
+            cores[c].calculateQSPartials(operations, CHILDREN.length, NODES);
+        for (int node = LEAVES; node < NODES; node++) {
+            for (int c = 0; c < cores.length; c++)
+                cores[c].getNodePartials(node, nodePartials[c]);
+            assertArrayEquals("partials of node " + node + " in trial " + trial,
+                    nodePartials[0], nodePartials[1], TOLERANCE);
+        }
+
+        final int root = NODES - 1;
+        for (int c = 0; c < cores.length; c++) {
+            cores[c].calculateOriginRootPartials(root, continuingQS[root], NODES, originPartials[c]);
+            cores[c].integratePartials(originPartials[c], proportions, integratedPartials[c]);
+            cores[c].calculateLogLikelihoods(integratedPartials[c], frequencies, logLikelihoods[c]);
+        }
+        assertArrayEquals("origin partials from the root in trial " + trial, originPartials[0], originPartials[1], TOLERANCE);
+        assertArrayEquals("integrated partials in trial " + trial, integratedPartials[0], integratedPartials[1], TOLERANCE);
+        assertArrayEquals("pattern log likelihoods in trial " + trial, logLikelihoods[0], logLikelihoods[1], TOLERANCE);
+
+        // the origin partials of a tree with a single tip
+        final int tip = Randomizer.nextInt(LEAVES);
+        for (int c = 0; c < cores.length; c++)
+            cores[c].calculateOriginTipPartials(tip, tip, NODES, originPartials[c]);
+        assertArrayEquals("origin partials from tip " + tip + " in trial " + trial, originPartials[0], originPartials[1], TOLERANCE);
+    }
+
+    @Test
+    public void testCore4EqualsGenericCore() {
+        Randomizer.setSeed(127);
+        for (int trial = 0; trial < 1000; trial++)
+            compareCores(trial);
+    }
+
+}
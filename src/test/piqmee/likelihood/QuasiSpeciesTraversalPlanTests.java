@@ -0,0 +1,105 @@
+package test.piqmee.likelihood;
+
+import beast.core.Description;
+import beast.core.Operator;
+import beast.core.parameter.RealParameter;
+import beast.core.util.CompoundDistribution;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.alignment.FilteredAlignment;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.JukesCantor;
+import beast.util.Randomizer;
+import org.junit.Test;
+import piqmee.likelihood.QuasiSpeciesTraversalPlan;
+import piqmee.likelihood.QuasiSpeciesTreeLikelihood;
+import piqmee.operators.QuasiSpeciesSequenceAttachmentUniform;
+import piqmee.operators.QuasiSpeciesSubtreeExchange;
+import piqmee.operators.QuasiSpeciesUniform;
+import piqmee.operators.QuasiSpeciesWilsonBalding;
+import piqmee.tree.QuasiSpeciesTree;
+import test.piqmee.QuasiSpeciesMCMCStepper;
+import test.piqmee.QuasiSpeciesTestCase;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+@Description("Test that likelihoods sharing a traversal plan and likelihoods with their own plan " +
+        "follow topology changes and restores like a likelihood computed from scratch")
+public class QuasiSpeciesTraversalPlanTests {
+
+    private double getLogPFromScratch(Alignment data, QuasiSpeciesTree tree, SiteModel siteModel) {
+        QuasiSpeciesTreeLikelihood likelihood = new QuasiSpeciesTreeLikelihood();
+        likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+        return likelihood.calculateLogP();
+    }
+
+    private void checkLogP(String message, double expected, QuasiSpeciesTreeLikelihood[] partitions,
+                           QuasiSpeciesTreeLikelihood ownPlanLikelihood) {
+        assertEquals(message + " with its own plan", expected, ownPlanLikelihood.getCurrentLogP(), 1e-10);
+        assertEquals(message + " with a shared plan", expected,
+                partitions[0].getCurrentLogP() + partitions[1].getCurrentLogP(), 1e-10);
+    }
+
+    @Test
+    public void testPlanFollowsTopologyMoves() {
+        System.setProperty("java.only", "true");
+        Randomizer.setSeed(127);
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromFullNewick(
+                QuasiSpeciesTestCase.MULTI_SITE_NEWICK, QuasiSpeciesTestCase.MULTI_SITE_SEQUENCES);
+        Alignment data = QuasiSpeciesTestCase.getAlignment(QuasiSpeciesTestCase.MULTI_SITE_SEQUENCES);
+
+        JukesCantor JC = new JukesCantor();
+        JC.initAndValidate();
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("mutationRate", "0.5", "gammaCategoryCount", 4, "shape", "0.5", "substModel", JC);
+
+        // two partitions sharing one plan, and the whole alignment with the plan of the likelihood itself
+        QuasiSpeciesTraversalPlan plan = new QuasiSpeciesTraversalPlan();
+        plan.initByName("tree", tree);
+        String[] filters = new String[]{"1-8", "9-16"};
+        QuasiSpeciesTreeLikelihood[] partitions = new QuasiSpeciesTreeLikelihood[filters.length];
+        for (int i = 0; i < filters.length; i++) {
+            FilteredAlignment partition = new FilteredAlignment();
+            partition.initByName("data", data, "filter", filters[i]);
+            partitions[i] = new QuasiSpeciesTreeLikelihood();
+            partitions[i].initByName("data", partition, "tree", tree, "siteModel", siteModel, "traversalPlan", plan);
+        }
+        QuasiSpeciesTreeLikelihood ownPlanLikelihood = new QuasiSpeciesTreeLikelihood();
+        ownPlanLikelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+
+        CompoundDistribution posterior = new CompoundDistribution();
+        posterior.initByName("distribution", Arrays.asList(partitions[0], partitions[1], ownPlanLikelihood));
+        QuasiSpeciesMCMCStepper stepper = new QuasiSpeciesMCMCStepper(posterior, tree);
+        checkLogP("initial log likelihood", getLogPFromScratch(data, tree, siteModel), partitions, ownPlanLikelihood);
+
+        RealParameter origin = new RealParameter("5.0");
+        Operator[] operators = new Operator[4];
+        operators[0] = new QuasiSpeciesWilsonBalding();
+        operators[0].initByName("quasiSpeciesTree", tree, "origin", origin, "alpha", 0.2, "weight", 1.0);
+        operators[1] = new QuasiSpeciesSubtreeExchange();
+        operators[1].initByName("quasiSpeciesTree", tree, "origin", origin, "weight", 1.0);
+        operators[2] = new QuasiSpeciesUniform();
+        operators[2].initByName("quasiSpeciesTree", tree, "origin", origin, "weight", 1.0);
+        operators[3] = new QuasiSpeciesSequenceAttachmentUniform();
+        operators[3].initByName("quasiSpeciesTree", tree, "origin", origin, "weight", 1.0);
+
+        for (int step = 0; step < 500; step++) {
+            // the topology moves are proposed more often as they change the plan the most
+            Operator operator = operators[Randomizer.nextInt(6) % operators.length];
+            if (stepper.propose(operator) == Double.NEGATIVE_INFINITY)
+                continue;
+            checkLogP("log likelihood after " + operator.getClass().getSimpleName() + " in step " + step,
+                    getLogPFromScratch(data, tree, siteModel), partitions, ownPlanLikelihood);
+
+            if (Randomizer.nextBoolean()) {
+                stepper.accept();
+            } else {
+                stepper.reject();
+                checkLogP("log likelihood after restore in step " + step,
+                        getLogPFromScratch(data, tree, siteModel), partitions, ownPlanLikelihood);
+            }
+        }
+    }
+
+}
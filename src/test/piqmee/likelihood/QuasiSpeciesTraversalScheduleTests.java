@@ -0,0 +1,92 @@
+package test.piqmee.likelihood;
+
+import beast.core.Description;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.Tree;
+import org.junit.Test;
+import piqmee.likelihood.QuasiSpeciesTraversalSchedule;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@Description("Test the non-recursive traversal schedule of the piqmee tree likelihoods")
+public class QuasiSpeciesTraversalScheduleTests {
+
+    /**
+     * ladder tree ((((0,1),2),3),...), the internal nodes numbered from leafCount upwards
+     */
+    private Tree createLadderTree(int leafCount) {
+        Node node = new Node();
+        node.setNr(0);
+        node.setHeight(0.0);
+        for (int i = 1; i < leafCount; i++) {
+            Node leaf = new Node();
+            leaf.setNr(i);
+            leaf.setHeight(0.0);
+            Node parent = new Node();
+            parent.setNr(leafCount + i - 1);
+            parent.setHeight(i);
+            parent.addChild(node);
+            parent.addChild(leaf);
+            node = parent;
+        }
+        return new Tree(node);
+    }
+
+    private void checkPostOrder(Tree tree, int[] schedule, int scheduleLength) {
+        int[] position = new int[tree.getNodeCount()];
+        Arrays.fill(position, -1);
+        for (int k = 0; k < scheduleLength; k++) {
+            assertEquals("node visited twice", -1, position[schedule[k]]);
+            position[schedule[k]] = k;
+        }
+        for (int k = 0; k < scheduleLength; k++) {
+            Node node = tree.getNode(schedule[k]);
+            for (Node child : node.getChildren()) {
+                if (position[child.getNr()] != -1)
+                    assertTrue("child visited after its parent", position[child.getNr()] < k);
+            }
+        }
+    }
+
+    @Test
+    public void testFullTraversalIsPostOrder() {
+        Tree tree = createLadderTree(1000);
+        QuasiSpeciesTraversalSchedule schedule = new QuasiSpeciesTraversalSchedule(tree.getNodeCount());
+        schedule.update(tree, true);
+
+        assertEquals(tree.getNodeCount(), schedule.getScheduleLength());
+        checkPostOrder(tree, schedule.getSchedule(), schedule.getScheduleLength());
+        // the root comes last
+        assertEquals(tree.getRoot().getNr(), schedule.getSchedule()[schedule.getScheduleLength() - 1]);
+    }
+
+    @Test
+    public void testDirtyPathContainsAncestors() {
+        Tree tree = createLadderTree(50);
+        QuasiSpeciesTraversalSchedule schedule = new QuasiSpeciesTraversalSchedule(tree.getNodeCount());
+        schedule.update(tree, true);
+
+        // leaf 10 hangs off the internal node 59, so the path to the root has 50 - 10 + 1 nodes
+        tree.setEverythingDirty(false);
+        schedule.markDirty(10);
+        schedule.update(tree, false);
+
+        assertEquals(50 - 10 + 1, schedule.getScheduleLength());
+        // in post-order: the leaf, then the internal nodes 59 to the root 98 upwards
+        int[] expected = new int[50 - 10 + 1];
+        expected[0] = 10;
+        for (int k = 1; k < expected.length; k++)
+            expected[k] = 58 + k;
+        assertArrayEquals(expected, Arrays.copyOf(schedule.getSchedule(), schedule.getScheduleLength()));
+        checkPostOrder(tree, schedule.getSchedule(), schedule.getScheduleLength());
+
+        // the forced mark only holds for one step, a clean tree then has nothing to visit
+        schedule.update(tree, false);
+        assertEquals(0, schedule.getScheduleLength());
+    }
+
+}
@@ -0,0 +1,155 @@
+package test.piqmee.likelihood;
+
+import beast.core.Description;
+import beast.core.Operator;
+import beast.core.parameter.RealParameter;
+import beast.core.util.CompoundDistribution;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.alignment.TaxonSet;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.JukesCantor;
+import beast.evolution.tree.TraitSet;
+import beast.util.Randomizer;
+import org.junit.Test;
+import piqmee.likelihood.QuasiSpeciesTreeLikelihood;
+import piqmee.likelihood.QuasiSpeciesTreeLikelihood3;
+import piqmee.operators.QuasiSpeciesSequenceAttachmentUniform;
+import piqmee.operators.QuasiSpeciesTreeScale;
+import piqmee.operators.QuasiSpeciesUniform;
+import piqmee.tree.QuasiSpeciesTree;
+import piqmee.tree.QuasiSpeciesTreeFromNewick;
+import test.piqmee.QuasiSpeciesMCMCStepper;
+import test.piqmee.QuasiSpeciesTestCase;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@Description("Test the likelihood of QuasiSpeciesTreeLikelihood3 against a full evaluation and against QuasiSpeciesTreeLikelihood")
+public class QuasiSpeciesTreeLikelihood3Tests {
+
+    private SiteModel getSiteModel(String mutationRate, int gammaCategoryCount, String proportionInvariant) {
+        JukesCantor JC = new JukesCantor();
+        JC.initAndValidate();
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("mutationRate", mutationRate, "gammaCategoryCount", gammaCategoryCount, "shape", "0.5",
+                "proportionInvariant", proportionInvariant, "substModel", JC);
+        return siteModel;
+    }
+
+    private double getLogPFromScratch(Alignment data, QuasiSpeciesTree tree, SiteModel siteModel) {
+        QuasiSpeciesTreeLikelihood3 likelihood = new QuasiSpeciesTreeLikelihood3();
+        likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+        return likelihood.calculateLogP();
+    }
+
+    /**
+     * A tolerance below the smallest change proposed never allows an approximate update, so the
+     * likelihood has to stay exact, also across restores of the tolerance bookkeeping
+     */
+    @Test
+    public void testSmallToleranceKeepsLikelihoodExact() {
+        System.setProperty("java.only", "true");
+        Randomizer.setSeed(127);
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromFullNewick(
+                QuasiSpeciesTestCase.MULTI_SITE_NEWICK, QuasiSpeciesTestCase.MULTI_SITE_SEQUENCES);
+        Alignment data = QuasiSpeciesTestCase.getAlignment(QuasiSpeciesTestCase.MULTI_SITE_SEQUENCES);
+        SiteModel siteModel = getSiteModel("0.5", 4, "0.0");
+
+        QuasiSpeciesTreeLikelihood3 exactLikelihood = new QuasiSpeciesTreeLikelihood3();
+        exactLikelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+        QuasiSpeciesTreeLikelihood3 toleranceLikelihood = new QuasiSpeciesTreeLikelihood3();
+        toleranceLikelihood.initByName("data", data, "tree", tree, "siteModel", siteModel, "tolerance", 1e-12);
+
+        CompoundDistribution posterior = new CompoundDistribution();
+        posterior.initByName("distribution", Arrays.asList(exactLikelihood, toleranceLikelihood));
+        QuasiSpeciesMCMCStepper stepper = new QuasiSpeciesMCMCStepper(posterior, tree);
+
+        RealParameter origin = new RealParameter("5.0");
+        Operator[] operators = new Operator[3];
+        operators[0] = new QuasiSpeciesUniform();
+        operators[0].initByName("quasiSpeciesTree", tree, "origin", origin, "weight", 1.0);
+        operators[1] = new QuasiSpeciesSequenceAttachmentUniform();
+        operators[1].initByName("quasiSpeciesTree", tree, "origin", origin, "weight", 1.0);
+        operators[2] = new QuasiSpeciesTreeScale();
+        operators[2].initByName("quasiSpeciesTree", tree, "origin", origin, "scaleFactor", 0.9, "weight", 1.0);
+
+        for (int step = 0; step < 500; step++) {
+            if (stepper.propose(operators[Randomizer.nextInt(operators.length)]) == Double.NEGATIVE_INFINITY)
+                continue;
+            final double logP = getLogPFromScratch(data, tree, siteModel);
+            assertEquals("log likelihood without tolerance in step " + step, logP, exactLikelihood.getCurrentLogP(), 1e-10);
+            assertEquals("log likelihood with tolerance in step " + step, logP, toleranceLikelihood.getCurrentLogP(), 1e-10);
+
+            if (Randomizer.nextBoolean()) {
+                stepper.accept();
+            } else {
+                stepper.reject();
+                final double restoredLogP = getLogPFromScratch(data, tree, siteModel);
+                assertEquals("log likelihood without tolerance after restore in step " + step,
+                        restoredLogP, exactLikelihood.getCurrentLogP(), 1e-10);
+                assertEquals("log likelihood with tolerance after restore in step " + step,
+                        restoredLogP, toleranceLikelihood.getCurrentLogP(), 1e-10);
+            }
+        }
+    }
+
+    private void checkEqualsQuasiSpeciesTreeLikelihood(String message, Alignment data, QuasiSpeciesTree tree, SiteModel siteModel) {
+        QuasiSpeciesTreeLikelihood reference = new QuasiSpeciesTreeLikelihood();
+        reference.initByName("data", data, "tree", tree, "siteModel", siteModel);
+        assertEquals(message, reference.calculateLogP(), getLogPFromScratch(data, tree, siteModel), 1e-8);
+    }
+
+    @Test
+    public void testLikelihood3EqualsQuasiSpeciesTreeLikelihood() {
+        System.setProperty("java.only", "true");
+        Randomizer.setSeed(127);
+
+        String[] sequences = new String[]{"A", "A", "C", "C"};
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromFullNewick(
+                "((t2 : 0.5, t3 : 0.5) : 0.5, (t0 : 0.25, t1 : 0.25) : 0.25);", sequences);
+        checkEqualsQuasiSpeciesTreeLikelihood("single site", QuasiSpeciesTestCase.getAlignment(sequences),
+                tree, getSiteModel("13.0", 1, "0.0"));
+        // a variable site gets no contribution from the invariant category
+        checkEqualsQuasiSpeciesTreeLikelihood("single variable site with invariant sites",
+                QuasiSpeciesTestCase.getAlignment(sequences), tree, getSiteModel("13.0", 1, "0.5"));
+
+        // several site categories, and constant patterns for the invariant category
+        tree = QuasiSpeciesTestCase.setTreeFromFullNewick(
+                QuasiSpeciesTestCase.MULTI_SITE_NEWICK, QuasiSpeciesTestCase.MULTI_SITE_SEQUENCES);
+        Alignment data = QuasiSpeciesTestCase.getAlignment(QuasiSpeciesTestCase.MULTI_SITE_SEQUENCES);
+        checkEqualsQuasiSpeciesTreeLikelihood("gamma categories", data, tree, getSiteModel("0.5", 4, "0.0"));
+        checkEqualsQuasiSpeciesTreeLikelihood("gamma categories and invariant sites", data, tree,
+                getSiteModel("0.5", 4, "0.2"));
+
+        // haplotypes with duplicates given as counts
+        sequences = Arrays.copyOf(QuasiSpeciesTestCase.MULTI_SITE_SEQUENCES, 4);
+        tree = QuasiSpeciesTestCase.setTreeFromNewick("((t2 : 0.5, t3 : 0.5) : 0.5, (t0 : 0.25, t1 : 0.25) : 0.25);", sequences);
+        checkEqualsQuasiSpeciesTreeLikelihood("haplotype counts", QuasiSpeciesTestCase.getAlignment(sequences),
+                tree, getSiteModel("0.5", 4, "0.2"));
+    }
+
+    /**
+     * With this many duplicates the probability of no change on the QS branches of a haplotype is
+     * below the smallest double, the integration over the site categories has to be done in log space
+     */
+    @Test
+    public void testManyDuplicatesDoNotUnderflow() {
+        System.setProperty("java.only", "true");
+        Randomizer.setSeed(127);
+        String[] sequences = Arrays.copyOf(QuasiSpeciesTestCase.MULTI_SITE_SEQUENCES, 3);
+        Alignment data = QuasiSpeciesTestCase.getAlignment(sequences);
+        TaxonSet taxonSet = new TaxonSet(data);
+        TraitSet haploCounts = new TraitSet();
+        haploCounts.initByName("traitname", "qscounts", "taxa", taxonSet, "value", "t0=1,t1=2000,t2=1");
+
+        QuasiSpeciesTree tree = new QuasiSpeciesTreeFromNewick();
+        tree.initByName("newick", "((t0 : 0.5, t1 : 0.5) : 0.5, t2 : 1.0);", "adjustTipHeights", false,
+                "taxonset", taxonSet, "haplotypeCounts", haploCounts, "data", data);
+
+        final double logP = getLogPFromScratch(data, tree, getSiteModel("13.0", 4, "0.2"));
+        assertTrue("log likelihood " + logP + " is not finite", logP > Double.NEGATIVE_INFINITY && logP < 0);
+    }
+
+}
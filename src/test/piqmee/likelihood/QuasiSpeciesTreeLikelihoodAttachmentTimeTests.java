@@ -0,0 +1,67 @@
+package test.piqmee.likelihood;
+
+import beast.core.Description;
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.JukesCantor;
+import beast.util.Randomizer;
+import org.junit.Test;
+import piqmee.likelihood.QuasiSpeciesTreeLikelihood;
+import piqmee.operators.QuasiSpeciesSequenceAttachmentUniform;
+import piqmee.tree.QuasiSpeciesTree;
+import test.piqmee.QuasiSpeciesMCMCStepper;
+import test.piqmee.QuasiSpeciesTestCase;
+
+import static org.junit.Assert.assertEquals;
+
+@Description("Test that the likelihood updated for moves of attachment times only equals the likelihood computed from scratch")
+public class QuasiSpeciesTreeLikelihoodAttachmentTimeTests {
+
+    private double getLogPFromScratch(Alignment data, QuasiSpeciesTree tree, SiteModel siteModel) {
+        QuasiSpeciesTreeLikelihood likelihood = new QuasiSpeciesTreeLikelihood();
+        likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+        return likelihood.calculateLogP();
+    }
+
+    @Test
+    public void testAttachmentTimeMovesAndRestores() {
+        System.setProperty("java.only", "true");
+        Randomizer.setSeed(127);
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromFullNewick(
+                QuasiSpeciesTestCase.MULTI_SITE_NEWICK, QuasiSpeciesTestCase.MULTI_SITE_SEQUENCES);
+        Alignment data = QuasiSpeciesTestCase.getAlignment(QuasiSpeciesTestCase.MULTI_SITE_SEQUENCES);
+
+        JukesCantor JC = new JukesCantor();
+        JC.initAndValidate();
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("mutationRate", "0.5", "gammaCategoryCount", 4, "shape", "0.5", "substModel", JC);
+
+        QuasiSpeciesTreeLikelihood likelihood = new QuasiSpeciesTreeLikelihood();
+        likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+        QuasiSpeciesMCMCStepper stepper = new QuasiSpeciesMCMCStepper(likelihood, tree);
+        assertEquals(getLogPFromScratch(data, tree, siteModel), likelihood.getCurrentLogP(), 1e-10);
+
+        QuasiSpeciesSequenceAttachmentUniform operator = new QuasiSpeciesSequenceAttachmentUniform();
+        operator.initByName("quasiSpeciesTree", tree, "origin", new RealParameter("5.0"), "weight", 1.0);
+
+        // enough steps for the periodic full traversal of the fast path to happen
+        for (int step = 0; step < 1500; step++) {
+            double logP = stepper.propose(operator);
+            if (logP == Double.NEGATIVE_INFINITY)
+                continue;
+            assertEquals("log likelihood after the move in step " + step,
+                    getLogPFromScratch(data, tree, siteModel), logP, 1e-10);
+
+            // reject every third move, such that the next move starts from a restored likelihood
+            if (step % 3 == 0) {
+                stepper.reject();
+                assertEquals("log likelihood after restore in step " + step,
+                        getLogPFromScratch(data, tree, siteModel), likelihood.getCurrentLogP(), 1e-10);
+            } else {
+                stepper.accept();
+            }
+        }
+    }
+
+}
@@ -0,0 +1,96 @@
+package test.piqmee.likelihood;
+
+import beast.core.Description;
+import beast.core.Operator;
+import beast.core.parameter.RealParameter;
+import beast.core.util.CompoundDistribution;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.alignment.TaxonSet;
+import beast.evolution.likelihood.TreeLikelihood;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.JukesCantor;
+import beast.evolution.tree.TraitSet;
+import beast.util.Randomizer;
+import org.junit.Test;
+import piqmee.likelihood.QuasiSpeciesTreeLikelihood;
+import piqmee.operators.QuasiSpeciesSequenceAttachmentUniform;
+import piqmee.operators.QuasiSpeciesUniform;
+import piqmee.tree.QuasiSpeciesTree;
+import piqmee.tree.QuasiSpeciesTreeFromNewick;
+import test.piqmee.QuasiSpeciesMCMCStepper;
+import test.piqmee.QuasiSpeciesTestCase;
+
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+@Description("Test that the dynamically scaled likelihood equals the unscaled one, also across store and restore")
+public class QuasiSpeciesTreeLikelihoodScalingTests {
+
+    private void checkLogP(String message, QuasiSpeciesTreeLikelihood scaledLikelihood,
+                           QuasiSpeciesTreeLikelihood unscaledLikelihood, double logPFromScratch) {
+        assertEquals(message + " without scaling", logPFromScratch, unscaledLikelihood.getCurrentLogP(), 1e-8);
+        assertEquals(message + " with scaling", logPFromScratch, scaledLikelihood.getCurrentLogP(), 1e-8);
+    }
+
+    @Test
+    public void testScaledEqualsUnscaled() {
+        System.setProperty("java.only", "true");
+        Randomizer.setSeed(127);
+
+        // the no change probability on the QS branches of the 400 copies of t1 is around the scaling
+        // threshold, so whether the partials above t1 are rescaled changes from step to step
+        String[] sequences = Arrays.copyOf(QuasiSpeciesTestCase.MULTI_SITE_SEQUENCES, 3);
+        Alignment data = QuasiSpeciesTestCase.getAlignment(sequences);
+        TaxonSet taxonSet = new TaxonSet(data);
+        TraitSet haploCounts = new TraitSet();
+        haploCounts.initByName("traitname", "qscounts", "taxa", taxonSet, "value", "t0=1,t1=400,t2=1");
+        QuasiSpeciesTree tree = new QuasiSpeciesTreeFromNewick();
+        tree.initByName("newick", "((t0 : 0.5, t1 : 0.5) : 0.5, t2 : 1.0);", "adjustTipHeights", false,
+                "taxonset", taxonSet, "haplotypeCounts", haploCounts, "data", data);
+
+        JukesCantor JC = new JukesCantor();
+        JC.initAndValidate();
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("mutationRate", "1.0", "gammaCategoryCount", 1, "substModel", JC);
+
+        QuasiSpeciesTreeLikelihood scaledLikelihood = new QuasiSpeciesTreeLikelihood();
+        scaledLikelihood.initByName("data", data, "tree", tree, "siteModel", siteModel,
+                "scaling", TreeLikelihood.Scaling.always);
+        QuasiSpeciesTreeLikelihood unscaledLikelihood = new QuasiSpeciesTreeLikelihood();
+        unscaledLikelihood.initByName("data", data, "tree", tree, "siteModel", siteModel,
+                "scaling", TreeLikelihood.Scaling.none);
+
+        CompoundDistribution posterior = new CompoundDistribution();
+        posterior.initByName("distribution", Arrays.asList(scaledLikelihood, unscaledLikelihood));
+        QuasiSpeciesMCMCStepper stepper = new QuasiSpeciesMCMCStepper(posterior, tree);
+        checkLogP("initial log likelihood", scaledLikelihood, unscaledLikelihood, unscaledLikelihood.getCurrentLogP());
+
+        // an origin close to the root keeps the unscaled likelihood from underflowing
+        RealParameter origin = new RealParameter("1.5");
+        Operator[] operators = new Operator[2];
+        operators[0] = new QuasiSpeciesUniform();
+        operators[0].initByName("quasiSpeciesTree", tree, "origin", origin, "weight", 1.0);
+        operators[1] = new QuasiSpeciesSequenceAttachmentUniform();
+        operators[1].initByName("quasiSpeciesTree", tree, "origin", origin, "weight", 1.0);
+
+        for (int step = 0; step < 500; step++) {
+            if (stepper.propose(operators[Randomizer.nextInt(operators.length)]) == Double.NEGATIVE_INFINITY)
+                continue;
+            QuasiSpeciesTreeLikelihood likelihood = new QuasiSpeciesTreeLikelihood();
+            likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel, "scaling", TreeLikelihood.Scaling.none);
+            checkLogP("log likelihood in step " + step, scaledLikelihood, unscaledLikelihood, likelihood.calculateLogP());
+
+            if (Randomizer.nextBoolean()) {
+                stepper.accept();
+            } else {
+                stepper.reject();
+                likelihood = new QuasiSpeciesTreeLikelihood();
+                likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel, "scaling", TreeLikelihood.Scaling.none);
+                checkLogP("log likelihood after restore in step " + step, scaledLikelihood, unscaledLikelihood,
+                        likelihood.calculateLogP());
+            }
+        }
+    }
+
+}
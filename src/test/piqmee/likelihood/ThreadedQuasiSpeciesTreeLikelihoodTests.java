@@ -0,0 +1,75 @@
+package test.piqmee.likelihood;
+
+import beast.core.Description;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.sitemodel.SiteModel;
+import beast.evolution.substitutionmodel.JukesCantor;
+import org.junit.Test;
+import piqmee.likelihood.QuasiSpeciesTreeLikelihood;
+import piqmee.likelihood.ThreadedQuasiSpeciesTreeLikelihood;
+import piqmee.tree.QuasiSpeciesTree;
+import test.piqmee.QuasiSpeciesTestCase;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+@Description("Test that splitting the site patterns over threads gives the likelihood of a single QuasiSpeciesTreeLikelihood")
+public class ThreadedQuasiSpeciesTreeLikelihoodTests {
+
+    @Test
+    public void testThreadedLikelihoodEqualsSingleThreaded() {
+        System.setProperty("java.only", "true");
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromFullNewick(
+                QuasiSpeciesTestCase.MULTI_SITE_NEWICK, QuasiSpeciesTestCase.MULTI_SITE_SEQUENCES);
+        Alignment data = QuasiSpeciesTestCase.getAlignment(QuasiSpeciesTestCase.MULTI_SITE_SEQUENCES);
+
+        JukesCantor JC = new JukesCantor();
+        JC.initAndValidate();
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("mutationRate", "0.5", "gammaCategoryCount", 4, "shape", "0.5", "substModel", JC);
+
+        QuasiSpeciesTreeLikelihood likelihood = new QuasiSpeciesTreeLikelihood();
+        likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+        double logP = likelihood.calculateLogP();
+
+        for (int threads = 2; threads <= 3; threads++) {
+            ThreadedQuasiSpeciesTreeLikelihood threadedLikelihood = new ThreadedQuasiSpeciesTreeLikelihood();
+            threadedLikelihood.setID("threaded" + threads);
+            threadedLikelihood.initByName("data", data, "tree", tree, "siteModel", siteModel, "threads", threads);
+            assertEquals("log likelihood with " + threads + " threads", logP, threadedLikelihood.calculateLogP(), 1e-10);
+        }
+    }
+
+    /**
+     * Without java.only the chunks could pick up BEAGLE, they have to stay on the java path
+     * that uses the shared plan and fills the pattern log likelihoods
+     */
+    @Test
+    public void testPatternLogLikelihoodsWithoutJavaOnly() {
+        System.clearProperty("java.only");
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromFullNewick(
+                QuasiSpeciesTestCase.MULTI_SITE_NEWICK, QuasiSpeciesTestCase.MULTI_SITE_SEQUENCES);
+        Alignment data = QuasiSpeciesTestCase.getAlignment(QuasiSpeciesTestCase.MULTI_SITE_SEQUENCES);
+
+        JukesCantor JC = new JukesCantor();
+        JC.initAndValidate();
+        SiteModel siteModel = new SiteModel();
+        siteModel.initByName("mutationRate", "0.5", "gammaCategoryCount", 4, "shape", "0.5", "substModel", JC);
+
+        ThreadedQuasiSpeciesTreeLikelihood threadedLikelihood = new ThreadedQuasiSpeciesTreeLikelihood();
+        threadedLikelihood.setID("threaded");
+        threadedLikelihood.initByName("data", data, "tree", tree, "siteModel", siteModel, "threads", 2);
+        final double logP = threadedLikelihood.calculateLogP();
+        System.setProperty("java.only", "true");
+
+        double[] patternLogLikelihoods = threadedLikelihood.getPatternLogLikelihoods();
+        assertEquals(data.getPatternCount(), patternLogLikelihoods.length);
+        for (double patternLogLikelihood : patternLogLikelihoods)
+            assertTrue("pattern log likelihood " + patternLogLikelihood, patternLogLikelihood < 0);
+
+        QuasiSpeciesTreeLikelihood likelihood = new QuasiSpeciesTreeLikelihood();
+        likelihood.initByName("data", data, "tree", tree, "siteModel", siteModel);
+        assertEquals(likelihood.calculateLogP(), logP, 1e-10);
+    }
+
+}
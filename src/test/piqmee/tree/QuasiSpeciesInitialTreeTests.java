@@ -0,0 +1,86 @@
+package test.piqmee.tree;
+
+import beast.core.Description;
+import beast.core.parameter.RealParameter;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.alignment.TaxonSet;
+import beast.evolution.tree.Node;
+import beast.evolution.tree.TraitSet;
+import beast.evolution.tree.coalescent.ConstantPopulation;
+import beast.util.Randomizer;
+import org.junit.Test;
+import piqmee.tree.QuasiSpeciesClusterTree;
+import piqmee.tree.QuasiSpeciesNode;
+import piqmee.tree.QuasiSpeciesRandomTree;
+import piqmee.tree.QuasiSpeciesTree;
+import test.piqmee.QuasiSpeciesTestCase;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+@Description("Test that the initial trees built on the unique sequences keep the haplotype counts provided")
+public class QuasiSpeciesInitialTreeTests {
+
+    // t0 and t1 are identical, so their counts add up
+    private static final String[] SEQUENCES = new String[]{"ACGT", "ACGT", "CCGT", "CCGA"};
+    private static final String COUNTS = "t0=2,t1=3,t2=4,t3=1";
+
+    private TraitSet getCountsTrait(TaxonSet taxonSet) {
+        TraitSet counts = new TraitSet();
+        counts.initByName("traitname", "qscounts", "taxa", taxonSet, "value", COUNTS);
+        return counts;
+    }
+
+    /**
+     * Checks that every haplotype has as many copies, and thus attachment times, as expected
+     */
+    private void checkHaplotypeCounts(QuasiSpeciesTree tree) {
+        Map<String, Integer> expected = new HashMap<>();
+        expected.put("t0", 5);
+        expected.put("t2", 4);
+        expected.put("t3", 1);
+
+        assertEquals(expected.size(), tree.getLeafNodeCount());
+        for (Node node : tree.getExternalNodes()) {
+            int count = expected.get(node.getID());
+            assertEquals("wrong count of haplotype " + node.getID(), count, tree.getHaplotypeCounts(node));
+            assertEquals("wrong number of attachment times of haplotype " + node.getID(),
+                    count, ((QuasiSpeciesNode) node).getAttachmentTimesList().length);
+        }
+    }
+
+    @Test
+    public void testClusterTreeKeepsHaplotypeCounts() {
+        Alignment alignment = QuasiSpeciesTestCase.getAlignment(SEQUENCES);
+        TaxonSet taxonSet = new TaxonSet(alignment);
+
+        QuasiSpeciesClusterTree tree = new QuasiSpeciesClusterTree();
+        tree.initByName(
+                "data", alignment,
+                "taxonset", taxonSet,
+                "haplotypeCounts", getCountsTrait(taxonSet));
+
+        checkHaplotypeCounts(tree);
+    }
+
+    @Test
+    public void testRandomTreeKeepsHaplotypeCounts() {
+        Randomizer.setSeed(17);
+        Alignment alignment = QuasiSpeciesTestCase.getAlignment(SEQUENCES);
+        TaxonSet taxonSet = new TaxonSet(alignment);
+        ConstantPopulation populationModel = new ConstantPopulation();
+        populationModel.initByName("popSize", new RealParameter("1.0"));
+
+        QuasiSpeciesRandomTree tree = new QuasiSpeciesRandomTree();
+        tree.initByName(
+                "data", alignment,
+                "taxonset", taxonSet,
+                "haplotypeCounts", getCountsTrait(taxonSet),
+                "populationModel", populationModel);
+
+        checkHaplotypeCounts(tree);
+    }
+
+}
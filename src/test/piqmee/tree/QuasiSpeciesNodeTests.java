@@ -101,7 +101,49 @@ public class QuasiSpeciesNodeTests {
     }
 
 
+    /**
+     *
+     * Attachment time repositioning and counting
+     *
+     */
+
+    @Test
+    public void testMoveAttachmentTime() throws Exception {
+
+        QuasiSpeciesNode node = new QuasiSpeciesNode();
+        node.setHeight(1.0);
+        node.setAttachmentTimesList(new double[] {9.0, 9.0, 7.0, 5.0, 3.0, 2.0});
+
+        // move down past two times
+        assertEquals(4, node.moveAttachmentTime(2, 2.5));
+        assertArrayEquals(new double[] {9.0, 9.0, 5.0, 3.0, 2.5, 2.0}, node.getAttachmentTimesList(), 1e-100);
 
+        // move up to the first position, which also moves the haplotype start
+        assertEquals(1, node.moveAttachmentTime(4, 10.0));
+        assertArrayEquals(new double[] {10.0, 10.0, 9.0, 5.0, 3.0, 2.0}, node.getAttachmentTimesList(), 1e-100);
+
+        // move within the interval between its neighbours
+        assertEquals(3, node.moveAttachmentTime(3, 4.0));
+        assertArrayEquals(new double[] {10.0, 10.0, 9.0, 4.0, 3.0, 2.0}, node.getAttachmentTimesList(), 1e-100);
+        assertTrue(node.attachmentTimesListChanged());
+    }
+
+    @Test
+    public void testCountAttachmentTimes() throws Exception {
+
+        QuasiSpeciesNode node = createQuasiSpeciesNode();
+
+        assertEquals(3, node.countAttachmentTimesAbove(1.0));
+        assertEquals(2, node.countAttachmentTimesAbove(1.5));
+        assertEquals(0, node.countAttachmentTimesAbove(4.0));
+        assertEquals(1, node.countAttachmentTimesBelow(2.0));
+        assertEquals(3, node.countAttachmentTimesBelow(4.5));
+
+        // the branch of the sequence itself does not count, the haplotype's own branch always does
+        assertEquals(4, node.countPossibleAttachmentBranches(0, 1.2));
+        assertEquals(3, node.countPossibleAttachmentBranches(3, 1.2));
+        assertEquals(2, node.countPossibleAttachmentBranches(2, 1.7));
+    }
 
 
 //    // check if values changed correctly
@@ -0,0 +1,55 @@
+package test.piqmee.tree;
+
+import beast.core.Description;
+import beast.evolution.alignment.Alignment;
+import beast.evolution.alignment.Sequence;
+import beast.evolution.alignment.TaxonSet;
+import org.junit.Test;
+import piqmee.tree.QuasiSpeciesTree;
+import piqmee.tree.QuasiSpeciesTreeFromNewick;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@Description("Test collapsing of sequences that are identical up to missing data")
+public class QuasiSpeciesTreeCollapseTests {
+
+    private QuasiSpeciesTree getTree(String newick, String[] data) {
+        List<Sequence> seqList = new ArrayList<>();
+        for (int i = 0; i < data.length; i++)
+            seqList.add(new Sequence("t" + i, data[i]));
+        Alignment alignment = new Alignment(seqList, "nucleotide");
+
+        QuasiSpeciesTree tree = new QuasiSpeciesTreeFromNewick();
+        tree.setInputValue("newick", newick);
+        tree.setInputValue("adjustTipHeights", "false");
+        tree.setInputValue("taxonset", new TaxonSet(alignment));
+        tree.setInputValue("data", alignment);
+        tree.setInputValue("collapseSequencesIfIdenticalUpToMissingParts", true);
+        tree.initAndValidate();
+        return tree;
+    }
+
+    @Test
+    public void testCollapseUpToMissingData() {
+        QuasiSpeciesTree tree = getTree("((t0 : 1.0, t1 : 1.0) : 1.0, t2 : 2.0);",
+                new String[]{"ACGT", "ACNT", "TTTT"});
+        assertEquals(2, tree.getLeafNodeCount());
+    }
+
+    @Test
+    public void testNonTransitiveCollapsingReportsTaxa() {
+        try {
+            getTree("((t0 : 1.0, t1 : 1.0) : 1.0, t2 : 2.0);",
+                    new String[]{"ACGA", "ACNA", "ACTA"});
+            fail("collapsing t0 and t2 through t1 should not be accepted");
+        } catch (IllegalArgumentException e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("t0 and t2 are both identical to t1"));
+        }
+    }
+
+}
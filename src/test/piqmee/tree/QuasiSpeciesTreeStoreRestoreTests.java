@@ -0,0 +1,122 @@
+package test.piqmee.tree;
+
+import beast.core.Description;
+import beast.core.Operator;
+import beast.core.parameter.RealParameter;
+import beast.evolution.tree.Node;
+import beast.util.Randomizer;
+import org.junit.Test;
+import piqmee.operators.QuasiSpeciesIncidenceAttachmentUniform;
+import piqmee.operators.QuasiSpeciesSequenceAttachmentUniform;
+import piqmee.operators.QuasiSpeciesSubtreeExchange;
+import piqmee.operators.QuasiSpeciesTreeScale;
+import piqmee.operators.QuasiSpeciesUniform;
+import piqmee.operators.QuasiSpeciesWilsonBalding;
+import piqmee.tree.QuasiSpeciesIncidence;
+import piqmee.tree.QuasiSpeciesNode;
+import piqmee.tree.QuasiSpeciesTree;
+import test.piqmee.QuasiSpeciesTestCase;
+
+import java.lang.reflect.Method;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+
+@Description("Test that storing only the edited nodes and incidences keeps restore exact")
+public class QuasiSpeciesTreeStoreRestoreTests {
+
+    /**
+     * @return everything store() and restore() have to keep, in node number order
+     */
+    private String getTreeState(QuasiSpeciesTree tree) {
+        StringBuilder state = new StringBuilder();
+        state.append("root=").append(tree.getRoot().getNr()).append('\n');
+        for (Node n : tree.getNodesAsArray()) {
+            QuasiSpeciesNode node = (QuasiSpeciesNode) n;
+            state.append(node.getNr())
+                    .append(" height=").append(node.getHeight())
+                    .append(" parent=").append(node.isRoot() ? -1 : node.getParent().getNr())
+                    .append(" left=").append(node.getLeft() == null ? -1 : node.getLeft().getNr())
+                    .append(" right=").append(node.getRight() == null ? -1 : node.getRight().getNr())
+                    .append(" haploAbove=").append(node.getHaploAboveName())
+                    .append(" continuingHaplo=").append(node.getContinuingHaploName());
+            if (node.isLeaf()) {
+                state.append(" attachmentTimes=").append(Arrays.toString(node.getAttachmentTimesList()))
+                        .append(" tipTimes=").append(Arrays.toString(node.getTipTimesList()))
+                        .append(" tipTimesCounts=").append(Arrays.toString(node.getTipTimesCountList()))
+                        .append(" parentHaplo=").append(node.getParentHaplo());
+            }
+            state.append('\n');
+        }
+        for (QuasiSpeciesIncidence incidence : tree.getIncidences())
+            state.append("incidence ").append(Arrays.toString(incidence.getAttachmentTimes()))
+                    .append(" editId=").append(incidence.getEditId()).append('\n');
+        return state.toString();
+    }
+
+    /**
+     * Checks the cached branch length sum of every haplotype against a computation from scratch
+     */
+    private void checkTotalBranchLengths(QuasiSpeciesTree tree, int step) {
+        for (Node n : tree.getExternalNodes()) {
+            QuasiSpeciesNode node = (QuasiSpeciesNode) n;
+            double total = 0.0;
+            for (double attachmentTime : node.getAttachmentTimesList())
+                total += attachmentTime;
+            for (int i = 0; i < node.getTipTimesList().length; i++)
+                total -= node.getTipTimesList()[i] * node.getTipTimesCountList()[i];
+            assertEquals("branch length sum of " + node.getID() + " is wrong in step " + step,
+                    total, node.getTotalBranchLengths(), 1e-9);
+        }
+    }
+
+    private void store(QuasiSpeciesTree tree) throws Exception {
+        Method store = QuasiSpeciesTree.class.getDeclaredMethod("store");
+        store.setAccessible(true);
+        store.invoke(tree);
+    }
+
+    @Test
+    public void testRestoreAfterRandomOperatorSequence() throws Exception {
+        Randomizer.setSeed(127);
+        // t6 and t7 consist of N's only and form an incidence
+        QuasiSpeciesTree tree = QuasiSpeciesTestCase.setTreeFromFullNewick(
+                "(((t0 : 1.0, t1 : 1.0) : 1.0, ((t2 : 0.5, t3 : 0.5) : 1.0, (t4 : 0.75, t5 : 0.75) : 0.75) : 0.5) : 0.5, "
+                        + "(t6 : 2.0, t7 : 2.0) : 0.5);",
+                new String[] {"A", "A", "C", "C", "G", "T", "N", "N"});
+        assertEquals("incidences in the tree", 1, tree.getIncidences().length);
+        RealParameter origin = new RealParameter("5.0");
+
+        Operator[] operators = new Operator[6];
+        operators[0] = new QuasiSpeciesSequenceAttachmentUniform();
+        operators[0].initByName("quasiSpeciesTree", tree, "origin", origin, "weight", 1.0);
+        operators[1] = new QuasiSpeciesUniform();
+        operators[1].initByName("quasiSpeciesTree", tree, "origin", origin, "weight", 1.0);
+        operators[2] = new QuasiSpeciesWilsonBalding();
+        operators[2].initByName("quasiSpeciesTree", tree, "origin", origin, "alpha", 0.2, "weight", 1.0);
+        operators[3] = new QuasiSpeciesSubtreeExchange();
+        operators[3].initByName("quasiSpeciesTree", tree, "origin", origin, "weight", 1.0);
+        operators[4] = new QuasiSpeciesTreeScale();
+        operators[4].initByName("quasiSpeciesTree", tree, "origin", origin, "scaleFactor", 0.9, "weight", 1.0);
+        operators[5] = new QuasiSpeciesIncidenceAttachmentUniform();
+        operators[5].initByName("quasiSpeciesTree", tree, "origin", origin, "weight", 1.0);
+
+        tree.setEverythingDirty(false);
+        String acceptedState = getTreeState(tree);
+        for (int step = 0; step < 2000; step++) {
+            store(tree);
+            double logHR = operators[Randomizer.nextInt(operators.length)].proposal();
+            checkTotalBranchLengths(tree, step);
+
+            if (logHR != Double.NEGATIVE_INFINITY && Randomizer.nextBoolean()) {
+                acceptedState = getTreeState(tree);
+            } else {
+                tree.restore();
+                assertEquals("restore is not exact in step " + step, acceptedState, getTreeState(tree));
+                checkTotalBranchLengths(tree, step);
+            }
+            tree.setEverythingDirty(false);
+        }
+    }
+
+}